@@ -0,0 +1,505 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+import org.terasology.engine.world.generation.facets.base.BaseFacet3D;
+
+import java.util.Arrays;
+
+/**
+ * Splits the caves of the {@link CaveFacet} into connected components, so that the cave at a position, its size and
+ * extent can be looked up without going through the blocks. Two cave blocks are connected if they share a face.
+ *
+ * <p>The caves are stored as runs: vertical stretches of consecutive cave blocks in a column, numbered column by
+ * column and from bottom to top within a column. Each run belongs to one component.</p>
+ *
+ * <p>The components only cover this facet's region, so a cave crossing its boundary is split between neighbouring
+ * regions. The faces of the region each component touches are recorded, see {@link #getComponentBoundaries}, and
+ * the runs touching each face can be listed with {@link #getBoundaryRuns}. {@link #findJoinedComponents} finds the
+ * components of two neighbouring facets which are the same cave, whether their regions overlap, as they do once
+ * the facet is generated with a border, or only share a face.</p>
+ */
+public class CaveConnectivityFacet extends BaseFacet3D {
+    public static final int BOUNDARY_MIN_X = 1;
+    public static final int BOUNDARY_MAX_X = 1 << 1;
+    public static final int BOUNDARY_MIN_Y = 1 << 2;
+    public static final int BOUNDARY_MAX_Y = 1 << 3;
+    public static final int BOUNDARY_MIN_Z = 1 << 4;
+    public static final int BOUNDARY_MAX_Z = 1 << 5;
+
+    private final int offsetX;
+    private final int offsetY;
+    private final int offsetZ;
+    private final int sizeX;
+
+    /**
+     * The number of the first run of each column, up to and including {@link #lastColumn}.
+     */
+    private final int[] columnStarts;
+    private int lastColumn = -1;
+
+    private int[] runBottoms = new int[64];
+    private int[] runTops = new int[64];
+    private int[] runComponents = new int[64];
+    private int runCount;
+
+    private int componentCount;
+    private int[] componentVolumes = new int[0];
+    /**
+     * The world coordinates of the corners of the bounding box of each component, six per component.
+     */
+    private int[] componentBounds = new int[0];
+    private int[] componentOpenings = new int[0];
+    private int[] componentBoundaries = new int[0];
+
+    public CaveConnectivityFacet(BlockRegion targetRegion, Border3D border) {
+        super(targetRegion, border);
+        BlockRegion worldRegion = getWorldRegion();
+        BlockRegion relativeRegion = getRelativeRegion();
+        offsetX = worldRegion.minX() - relativeRegion.minX();
+        offsetY = worldRegion.minY() - relativeRegion.minY();
+        offsetZ = worldRegion.minZ() - relativeRegion.minZ();
+        sizeX = worldRegion.getSizeX();
+        columnStarts = new int[sizeX * worldRegion.getSizeZ()];
+    }
+
+    /**
+     * Adds a run to the given column. The columns have to be filled in order: by increasing z, then by increasing x,
+     * each column from bottom to top. The component is assigned later, by {@link #setComponents}.
+     *
+     * @param x the world x coordinate of the column
+     * @param z the world z coordinate of the column
+     * @param bottom the world y coordinate of the lowest block of the run
+     * @param top the world y coordinate of the highest block of the run
+     */
+    public void addWorldRun(int x, int z, int bottom, int top) {
+        int column = getColumn(x, z);
+        if (column < lastColumn) {
+            throw new IllegalStateException(String.format("Column (%d, %d) has already been filled", x, z));
+        }
+        while (lastColumn < column) {
+            columnStarts[++lastColumn] = runCount;
+        }
+        if (runCount == runBottoms.length) {
+            runBottoms = Arrays.copyOf(runBottoms, runCount * 2);
+            runTops = Arrays.copyOf(runTops, runCount * 2);
+            runComponents = Arrays.copyOf(runComponents, runCount * 2);
+        }
+        runBottoms[runCount] = bottom;
+        runTops[runCount] = top;
+        runCount++;
+    }
+
+    /**
+     * Assigns the runs to components, and works out the size, extent and boundaries of each component.
+     *
+     * @param components the component of each run, numbered from 0 to {@code count - 1}
+     * @param count the number of components
+     * @param openings whether each run is open to the surface
+     */
+    public void setComponents(int[] components, int count, boolean[] openings) {
+        componentCount = count;
+        componentVolumes = new int[count];
+        componentBounds = new int[6 * count];
+        componentOpenings = new int[count];
+        componentBoundaries = new int[count];
+        for (int component = 0; component < count; component++) {
+            Arrays.fill(componentBounds, 6 * component, 6 * component + 3, Integer.MAX_VALUE);
+            Arrays.fill(componentBounds, 6 * component + 3, 6 * component + 6, Integer.MIN_VALUE);
+        }
+
+        BlockRegion worldRegion = getWorldRegion();
+        for (int column = 0; column <= lastColumn; column++) {
+            int x = worldRegion.minX() + column % sizeX;
+            int z = worldRegion.minZ() + column / sizeX;
+            int boundaries = (x == worldRegion.minX() ? BOUNDARY_MIN_X : 0)
+                    | (x == worldRegion.maxX() ? BOUNDARY_MAX_X : 0)
+                    | (z == worldRegion.minZ() ? BOUNDARY_MIN_Z : 0)
+                    | (z == worldRegion.maxZ() ? BOUNDARY_MAX_Z : 0);
+            for (int run = columnStarts[column]; run < getColumnStart(column + 1); run++) {
+                int component = components[run];
+                runComponents[run] = component;
+                componentVolumes[component] += runTops[run] - runBottoms[run] + 1;
+                int bounds = 6 * component;
+                componentBounds[bounds] = Math.min(componentBounds[bounds], x);
+                componentBounds[bounds + 1] = Math.min(componentBounds[bounds + 1], runBottoms[run]);
+                componentBounds[bounds + 2] = Math.min(componentBounds[bounds + 2], z);
+                componentBounds[bounds + 3] = Math.max(componentBounds[bounds + 3], x);
+                componentBounds[bounds + 4] = Math.max(componentBounds[bounds + 4], runTops[run]);
+                componentBounds[bounds + 5] = Math.max(componentBounds[bounds + 5], z);
+                if (openings[run]) {
+                    componentOpenings[component]++;
+                }
+                componentBoundaries[component] |= boundaries
+                        | (runBottoms[run] == worldRegion.minY() ? BOUNDARY_MIN_Y : 0)
+                        | (runTops[run] == worldRegion.maxY() ? BOUNDARY_MAX_Y : 0);
+            }
+        }
+    }
+
+    /**
+     * @return the component of the cave at the given position relative to the region, or -1 if it isn't a cave
+     */
+    public int getComponent(int x, int y, int z) {
+        return getWorldComponent(x + offsetX, y + offsetY, z + offsetZ);
+    }
+
+    /**
+     * @return the component of the cave at the given world position, or -1 if it isn't a cave
+     */
+    public int getWorldComponent(int x, int y, int z) {
+        if (!getWorldRegion().contains(x, y, z)) {
+            throw new IllegalArgumentException(String.format("Out of bounds: (%d, %d, %d) for region %s",
+                    x, y, z, getWorldRegion().toString()));
+        }
+        int end = getWorldRunEnd(x, z);
+        for (int run = getWorldRunStart(x, z); run < end && runBottoms[run] <= y; run++) {
+            if (y <= runTops[run]) {
+                return runComponents[run];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of the first run in the given column
+     */
+    public int getWorldRunStart(int x, int z) {
+        return getColumnStart(getColumn(x, z));
+    }
+
+    /**
+     * @return one more than the number of the last run in the given column
+     */
+    public int getWorldRunEnd(int x, int z) {
+        return getColumnStart(getColumn(x, z) + 1);
+    }
+
+    /**
+     * @return the world y coordinate of the lowest block of the given run
+     */
+    public int getRunBottom(int run) {
+        return runBottoms[run];
+    }
+
+    /**
+     * @return the world y coordinate of the highest block of the given run
+     */
+    public int getRunTop(int run) {
+        return runTops[run];
+    }
+
+    public int getRunComponent(int run) {
+        return runComponents[run];
+    }
+
+    public int getRunCount() {
+        return runCount;
+    }
+
+    public int getComponentCount() {
+        return componentCount;
+    }
+
+    /**
+     * @return the number of cave blocks in the given component
+     */
+    public int getComponentVolume(int component) {
+        return componentVolumes[component];
+    }
+
+    /**
+     * Sets {@code dest} to the world region enclosing the given component.
+     *
+     * @return dest
+     */
+    public BlockRegion getComponentBounds(int component, BlockRegion dest) {
+        int bounds = 6 * component;
+        return dest.set(componentBounds[bounds], componentBounds[bounds + 1], componentBounds[bounds + 2],
+                componentBounds[bounds + 3], componentBounds[bounds + 4], componentBounds[bounds + 5]);
+    }
+
+    /**
+     * @return the number of runs of the given component which are open to the surface
+     */
+    public int getComponentOpenings(int component) {
+        return componentOpenings[component];
+    }
+
+    /**
+     * @return the faces of the region the given component touches, as a combination of the {@code BOUNDARY_}
+     *         flags
+     */
+    public int getComponentBoundaries(int component) {
+        return componentBoundaries[component];
+    }
+
+    /**
+     * Lists the runs touching the given face of the region, in the order of their columns: by increasing z, then by
+     * increasing x, and from bottom to top within a column.
+     *
+     * @param face one of the {@code BOUNDARY_} flags
+     */
+    public BoundaryRuns getBoundaryRuns(int face) {
+        BlockRegion worldRegion = getWorldRegion();
+        int minX = face == BOUNDARY_MAX_X ? worldRegion.maxX() : worldRegion.minX();
+        int maxX = face == BOUNDARY_MIN_X ? worldRegion.minX() : worldRegion.maxX();
+        int minZ = face == BOUNDARY_MAX_Z ? worldRegion.maxZ() : worldRegion.minZ();
+        int maxZ = face == BOUNDARY_MIN_Z ? worldRegion.minZ() : worldRegion.maxZ();
+        BoundaryRuns boundaryRuns = new BoundaryRuns(face);
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int x = minX; x <= maxX; x++) {
+                int end = getWorldRunEnd(x, z);
+                for (int run = getWorldRunStart(x, z); run < end; run++) {
+                    if (face == BOUNDARY_MIN_Y && runBottoms[run] != worldRegion.minY()
+                            || face == BOUNDARY_MAX_Y && runTops[run] != worldRegion.maxY()) {
+                        continue;
+                    }
+                    boundaryRuns.add(x, z, runBottoms[run], runTops[run], runComponents[run]);
+                }
+            }
+        }
+        return boundaryRuns;
+    }
+
+    /**
+     * Finds the components of two facets which are parts of the same cave. Where the regions of the facets overlap,
+     * as neighbouring regions generated with a border do, these are the components sharing a cave block within the
+     * overlap; both facets have to be generated from the same caves there. Where the regions only share a face, they
+     * are the components connected through that face. Pass the pairs to a union-find covering the components of all
+     * regions to join caves spanning any number of regions.
+     *
+     * @return the connected pairs, each as a component of {@code first} followed by one of {@code second}, every pair
+     *         at most once; empty if the regions neither overlap nor share a face
+     */
+    public static int[] findJoinedComponents(CaveConnectivityFacet first, CaveConnectivityFacet second) {
+        BlockRegion a = first.getWorldRegion();
+        BlockRegion b = second.getWorldRegion();
+        boolean overlapX = a.minX() <= b.maxX() && b.minX() <= a.maxX();
+        boolean overlapY = a.minY() <= b.maxY() && b.minY() <= a.maxY();
+        boolean overlapZ = a.minZ() <= b.maxZ() && b.minZ() <= a.maxZ();
+        if (overlapX && overlapY && overlapZ) {
+            return findOverlappingComponents(first, second);
+        }
+        int face;
+        if (overlapY && overlapZ && (a.maxX() + 1 == b.minX() || b.maxX() + 1 == a.minX())) {
+            face = a.maxX() < b.minX() ? BOUNDARY_MAX_X : BOUNDARY_MIN_X;
+        } else if (overlapX && overlapZ && (a.maxY() + 1 == b.minY() || b.maxY() + 1 == a.minY())) {
+            face = a.maxY() < b.minY() ? BOUNDARY_MAX_Y : BOUNDARY_MIN_Y;
+        } else if (overlapX && overlapY && (a.maxZ() + 1 == b.minZ() || b.maxZ() + 1 == a.minZ())) {
+            face = a.maxZ() < b.minZ() ? BOUNDARY_MAX_Z : BOUNDARY_MIN_Z;
+        } else {
+            return new int[0];
+        }
+        // The opposite face has the other bit of the same pair
+        int oppositeFace = (face & 0b010101) != 0 ? face << 1 : face >> 1;
+        return first.getBoundaryRuns(face).findJoinedComponents(second.getBoundaryRuns(oppositeFace));
+    }
+
+    /**
+     * Pairs the components of two facets with overlapping regions which share a cave block, walking up the runs of
+     * both facets in each column of the overlap at once.
+     */
+    private static int[] findOverlappingComponents(CaveConnectivityFacet first, CaveConnectivityFacet second) {
+        BlockRegion a = first.getWorldRegion();
+        BlockRegion b = second.getWorldRegion();
+        int minY = Math.max(a.minY(), b.minY());
+        int maxY = Math.min(a.maxY(), b.maxY());
+        long[] pairs = new long[16];
+        int pairCount = 0;
+        for (int z = Math.max(a.minZ(), b.minZ()); z <= Math.min(a.maxZ(), b.maxZ()); z++) {
+            for (int x = Math.max(a.minX(), b.minX()); x <= Math.min(a.maxX(), b.maxX()); x++) {
+                int run = first.getWorldRunStart(x, z);
+                int end = first.getWorldRunEnd(x, z);
+                int otherRun = second.getWorldRunStart(x, z);
+                int otherEnd = second.getWorldRunEnd(x, z);
+                while (run < end && otherRun < otherEnd) {
+                    int bottom = Math.max(minY, Math.max(first.runBottoms[run], second.runBottoms[otherRun]));
+                    int top = Math.min(maxY, Math.min(first.runTops[run], second.runTops[otherRun]));
+                    if (bottom <= top) {
+                        if (pairCount == pairs.length) {
+                            pairs = Arrays.copyOf(pairs, pairCount * 2);
+                        }
+                        pairs[pairCount++] = (long) first.runComponents[run] << 32 | second.runComponents[otherRun];
+                    }
+                    if (first.runTops[run] < second.runTops[otherRun]) {
+                        run++;
+                    } else {
+                        otherRun++;
+                    }
+                }
+            }
+        }
+        return getDistinctPairs(pairs, pairCount);
+    }
+
+    /**
+     * @param pairs pairs of components, each as the first component in the upper 32 bits and the second in the lower
+     * @return the distinct pairs, two components each, in order
+     */
+    private static int[] getDistinctPairs(long[] pairs, int pairCount) {
+        Arrays.sort(pairs, 0, pairCount);
+        int[] joined = new int[2 * pairCount];
+        int joinedCount = 0;
+        for (int i = 0; i < pairCount; i++) {
+            if (i == 0 || pairs[i] != pairs[i - 1]) {
+                joined[2 * joinedCount] = (int) (pairs[i] >>> 32);
+                joined[2 * joinedCount + 1] = (int) pairs[i];
+                joinedCount++;
+            }
+        }
+        return Arrays.copyOf(joined, 2 * joinedCount);
+    }
+
+    private int getColumn(int x, int z) {
+        BlockRegion worldRegion = getWorldRegion();
+        if (x < worldRegion.minX() || x > worldRegion.maxX() || z < worldRegion.minZ() || z > worldRegion.maxZ()) {
+            throw new IllegalArgumentException(String.format("Out of bounds: (%d, %d) for region %s",
+                    x, z, worldRegion.toString()));
+        }
+        return x - worldRegion.minX() + sizeX * (z - worldRegion.minZ());
+    }
+
+    private int getColumnStart(int column) {
+        return column <= lastColumn ? columnStarts[column] : runCount;
+    }
+
+    /**
+     * The runs touching one face of the region of a {@link CaveConnectivityFacet}, with the column, height and
+     * component of each, see {@link CaveConnectivityFacet#getBoundaryRuns}.
+     */
+    public static final class BoundaryRuns {
+        private final int face;
+        private int[] columnXs = new int[16];
+        private int[] columnZs = new int[16];
+        private int[] bottoms = new int[16];
+        private int[] tops = new int[16];
+        private int[] components = new int[16];
+        private int count;
+
+        BoundaryRuns(int face) {
+            this.face = face;
+        }
+
+        /**
+         * @return the face of the region, one of the {@code BOUNDARY_} flags
+         */
+        public int getFace() {
+            return face;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the world x coordinate of the column of the given run
+         */
+        public int getX(int run) {
+            return columnXs[run];
+        }
+
+        /**
+         * @return the world z coordinate of the column of the given run
+         */
+        public int getZ(int run) {
+            return columnZs[run];
+        }
+
+        /**
+         * @return the world y coordinate of the lowest block of the given run
+         */
+        public int getBottom(int run) {
+            return bottoms[run];
+        }
+
+        /**
+         * @return the world y coordinate of the highest block of the given run
+         */
+        public int getTop(int run) {
+            return tops[run];
+        }
+
+        public int getComponent(int run) {
+            return components[run];
+        }
+
+        /**
+         * Finds the components connected across the face, where these runs meet those of the opposite face of the
+         * neighbouring region.
+         *
+         * @return the connected pairs, each as a component of these runs followed by one of the other runs', every
+         *         pair at most once
+         */
+        public int[] findJoinedComponents(BoundaryRuns other) {
+            boolean vertical = face == BOUNDARY_MIN_Y || face == BOUNDARY_MAX_Y;
+            long[] pairs = new long[16];
+            int pairCount = 0;
+            // Walk the columns of both faces at once; within a column, walk up both of them
+            int run = 0;
+            int otherRun = 0;
+            while (run < count && otherRun < other.count) {
+                long column = getColumnKey(run);
+                long otherColumn = other.getColumnKey(otherRun);
+                if (column != otherColumn) {
+                    if (column < otherColumn) {
+                        run++;
+                    } else {
+                        otherRun++;
+                    }
+                    continue;
+                }
+                // Across a vertical face, runs in the same column always meet
+                if (vertical || bottoms[run] <= other.tops[otherRun] && other.bottoms[otherRun] <= tops[run]) {
+                    if (pairCount == pairs.length) {
+                        pairs = Arrays.copyOf(pairs, pairCount * 2);
+                    }
+                    pairs[pairCount++] = (long) components[run] << 32 | other.components[otherRun];
+                }
+                if (tops[run] < other.tops[otherRun]) {
+                    run++;
+                } else {
+                    otherRun++;
+                }
+            }
+
+            return getDistinctPairs(pairs, pairCount);
+        }
+
+        void add(int x, int z, int bottom, int top, int component) {
+            if (count == bottoms.length) {
+                columnXs = Arrays.copyOf(columnXs, count * 2);
+                columnZs = Arrays.copyOf(columnZs, count * 2);
+                bottoms = Arrays.copyOf(bottoms, count * 2);
+                tops = Arrays.copyOf(tops, count * 2);
+                components = Arrays.copyOf(components, count * 2);
+            }
+            columnXs[count] = x;
+            columnZs[count] = z;
+            bottoms[count] = bottom;
+            tops[count] = top;
+            components[count] = component;
+            count++;
+        }
+
+        /**
+         * Orders the columns the same way on both sides of the face: by the coordinates they don't share, z first.
+         */
+        private long getColumnKey(int run) {
+            switch (face) {
+                case BOUNDARY_MIN_X:
+                case BOUNDARY_MAX_X:
+                    return columnZs[run];
+                case BOUNDARY_MIN_Z:
+                case BOUNDARY_MAX_Z:
+                    return columnXs[run];
+                default:
+                    // Added rather than masked, so that the key still increases with a negative x
+                    return ((long) columnZs[run] << 32) + columnXs[run];
+            }
+        }
+    }
+}
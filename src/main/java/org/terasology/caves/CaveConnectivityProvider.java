@@ -0,0 +1,178 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Facet;
+import org.terasology.engine.world.generation.FacetProviderPlugin;
+import org.terasology.engine.world.generation.GeneratingRegion;
+import org.terasology.engine.world.generation.Produces;
+import org.terasology.engine.world.generation.Requires;
+import org.terasology.engine.world.generation.facets.ElevationFacet;
+import org.terasology.engine.world.generator.plugin.RegisterPlugin;
+import org.terasology.math.TeraMath;
+
+/**
+ * Finds the connected caves of the region, see {@link CaveConnectivityFacet}.
+ *
+ * <p>The columns of the cave facet are split into runs of consecutive cave blocks a word at a time, and the runs of
+ * neighbouring columns which overlap are joined with a union-find, so each cave block is only looked at as part of a
+ * run.</p>
+ */
+@RegisterPlugin
+@Produces(CaveConnectivityFacet.class)
+@Requires({@Facet(CaveFacet.class), @Facet(ElevationFacet.class)})
+public class CaveConnectivityProvider implements FacetProviderPlugin {
+
+    private final CaveMetrics metrics = CaveMetrics.get(CaveConnectivityProvider.class);
+
+    @Override
+    public void setSeed(long seed) {
+    }
+
+    @Override
+    public void process(GeneratingRegion region) {
+        CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+        ElevationFacet elevationFacet = region.getRegionFacet(ElevationFacet.class);
+        long start = CaveMetrics.start();
+        CaveConnectivityFacet facet =
+                new CaveConnectivityFacet(region.getRegion(), region.getBorderForFacet(CaveConnectivityFacet.class));
+
+        if (!caveFacet.isEmpty()) {
+            findRuns(caveFacet, facet);
+            try (CaveScratch scratch = CaveScratch.open()) {
+                connectRuns(facet, elevationFacet, scratch);
+            }
+        }
+        region.setRegionFacet(CaveConnectivityFacet.class, facet);
+        metrics.record(start, facet.getWorldRegion().volume(), facet.getComponentCount(), 0);
+    }
+
+    /**
+     * Adds the runs of cave blocks in each column of the facet's region.
+     */
+    private static void findRuns(CaveFacet caveFacet, CaveConnectivityFacet facet) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        int minY = worldRegion.minY();
+        int height = worldRegion.getSizeY();
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                boolean inRun = false;
+                int runBottom = 0;
+                for (int offset = 0; offset < height; offset += Long.SIZE) {
+                    long bits = caveFacet.getWorldColumnBits(x, z, minY + offset);
+                    if (height - offset < Long.SIZE) {
+                        bits &= (1L << (height - offset)) - 1;
+                    }
+                    // Jump from the start of each run to its end and on to the start of the next
+                    int bit = 0;
+                    while (bit < Long.SIZE) {
+                        long remaining = (inRun ? ~bits : bits) & -1L << bit;
+                        if (remaining == 0) {
+                            break;
+                        }
+                        bit = Long.numberOfTrailingZeros(remaining);
+                        if (inRun) {
+                            facet.addWorldRun(x, z, runBottom, minY + offset + bit - 1);
+                        } else {
+                            runBottom = minY + offset + bit;
+                        }
+                        inRun = !inRun;
+                    }
+                }
+                if (inRun) {
+                    facet.addWorldRun(x, z, runBottom, worldRegion.maxY());
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins the overlapping runs of neighbouring columns into components, and passes them to the facet.
+     */
+    private static void connectRuns(CaveConnectivityFacet facet, ElevationFacet elevationFacet, CaveScratch scratch) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        int runCount = facet.getRunCount();
+        int[] parents = scratch.getInts(runCount);
+        for (int run = 0; run < runCount; run++) {
+            parents[run] = run;
+        }
+        boolean[] openings = new boolean[runCount];
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                int runStart = facet.getWorldRunStart(x, z);
+                int runEnd = facet.getWorldRunEnd(x, z);
+                if (runStart == runEnd) {
+                    continue;
+                }
+                if (x > worldRegion.minX()) {
+                    connectColumns(facet, parents, runStart, runEnd,
+                            facet.getWorldRunStart(x - 1, z), facet.getWorldRunEnd(x - 1, z));
+                }
+                if (z > worldRegion.minZ()) {
+                    connectColumns(facet, parents, runStart, runEnd,
+                            facet.getWorldRunStart(x, z - 1), facet.getWorldRunEnd(x, z - 1));
+                }
+                // The run is open to the surface if it reaches the highest solid block of the terrain
+                int surface = TeraMath.ceilToInt(elevationFacet.getWorld(x, z)) - 1;
+                for (int run = runStart; run < runEnd; run++) {
+                    openings[run] = facet.getRunBottom(run) <= surface && surface <= facet.getRunTop(run);
+                }
+            }
+        }
+
+        // Number the components in the order of their first run
+        int[] components = scratch.getInts(runCount);
+        int componentCount = 0;
+        for (int run = 0; run < runCount; run++) {
+            int root = find(parents, run);
+            components[run] = root == run ? componentCount++ : components[root];
+        }
+        facet.setComponents(components, componentCount, openings);
+    }
+
+    /**
+     * Joins the runs of two neighbouring columns where they overlap, walking up both columns at once.
+     */
+    private static void connectColumns(CaveConnectivityFacet facet, int[] parents,
+                                       int runStart, int runEnd, int otherStart, int otherEnd) {
+        int run = runStart;
+        int other = otherStart;
+        while (run < runEnd && other < otherEnd) {
+            if (facet.getRunBottom(run) <= facet.getRunTop(other)
+                    && facet.getRunBottom(other) <= facet.getRunTop(run)) {
+                union(parents, run, other);
+            }
+            if (facet.getRunTop(run) < facet.getRunTop(other)) {
+                run++;
+            } else {
+                other++;
+            }
+        }
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        // Keep the lower run as the root, so that it comes first when the components are numbered
+        if (rootA < rootB) {
+            parents[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parents[rootA] = rootB;
+        }
+    }
+
+    private static int find(int[] parents, int run) {
+        int root = run;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        while (parents[run] != root) {
+            int next = parents[run];
+            parents[run] = root;
+            run = next;
+        }
+        return root;
+    }
+}
@@ -6,17 +6,228 @@ package org.terasology.caves;
 import org.joml.Vector3ic;
 import org.terasology.engine.world.block.BlockRegion;
 import org.terasology.engine.world.generation.Border3D;
-import org.terasology.engine.world.generation.facets.base.BaseBooleanFieldFacet3D;
+import org.terasology.engine.world.generation.facets.base.BaseFacet3D;
+import org.terasology.engine.world.generation.facets.base.BooleanFieldFacet3D;
+
+/**
+ * Marks the positions which are inside a cave.
+ *
+ * <p>The values are packed one bit per position, column by column: each x/z column is stored bottom-to-top in
+ * {@link #getWordsPerColumn()} consecutive {@code long} words, so bit {@code i} of word {@code w} is the value at
+ * {@code y = getWorldRegion().minY() + 64 * w + i}. Bits above the top of the region are always 0.</p>
+ */
+public class CaveFacet extends BaseFacet3D implements BooleanFieldFacet3D {
+    private final int offsetX;
+    private final int offsetY;
+    private final int offsetZ;
+    private final int sizeX;
+    private final int wordsPerColumn;
+    private final long[] data;
+
+    /**
+     * The number of positions inside a cave, or -1 if it has to be counted again. Writes only mark it as stale, so a
+     * batch of writes is followed by a single count. The facet may be written by several threads while it is
+     * generated, and read by others afterwards, so this has to be volatile: a count cached by one thread is then
+     * seen by the others, and so is a write making it stale.
+     */
+    private volatile int caveCount;
 
-public class CaveFacet extends BaseBooleanFieldFacet3D {
     public CaveFacet(BlockRegion targetRegion, Border3D border) {
         super(targetRegion, border);
+        BlockRegion worldRegion = getWorldRegion();
+        BlockRegion relativeRegion = getRelativeRegion();
+        offsetX = worldRegion.minX() - relativeRegion.minX();
+        offsetY = worldRegion.minY() - relativeRegion.minY();
+        offsetZ = worldRegion.minZ() - relativeRegion.minZ();
+        sizeX = worldRegion.getSizeX();
+        wordsPerColumn = (worldRegion.getSizeY() + Long.SIZE - 1) / Long.SIZE;
+        data = new long[sizeX * worldRegion.getSizeZ() * wordsPerColumn];
+    }
+
+    @Override
+    public boolean get(int x, int y, int z) {
+        return getWorld(x + offsetX, y + offsetY, z + offsetZ);
+    }
+
+    @Override
+    public boolean get(Vector3ic pos) {
+        return get(pos.x(), pos.y(), pos.z());
+    }
+
+    @Override
+    public boolean getWorld(int x, int y, int z) {
+        int bit = getWorldBitIndex(x, y, z);
+        return (data[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    @Override
+    public boolean getWorld(Vector3ic pos) {
+        return getWorld(pos.x(), pos.y(), pos.z());
+    }
+
+    @Override
+    public void set(int x, int y, int z, boolean value) {
+        setWorld(x + offsetX, y + offsetY, z + offsetZ, value);
+    }
+
+    @Override
+    public void set(Vector3ic pos, boolean value) {
+        set(pos.x(), pos.y(), pos.z(), value);
+    }
+
+    @Override
+    public void setWorld(int x, int y, int z, boolean value) {
+        int bit = getWorldBitIndex(x, y, z);
+        if (value) {
+            data[bit >>> 6] |= 1L << bit;
+        } else {
+            data[bit >>> 6] &= ~(1L << bit);
+        }
+        invalidateCaveCount();
+    }
+
+    @Override
+    public void setWorld(Vector3ic pos, boolean value) {
+        setWorld(pos.x(), pos.y(), pos.z(), value);
     }
 
     /**
-     * The index of the given position in arrays corresponding to the region this facet covers.
+     * The index of the given position in arrays covering the same region as this facet, such as those of the field
+     * facets, ordered from x to z. This facet itself stores its values by column instead.
      */
     public int getWorldIndex(Vector3ic pos) {
         return getWorldIndex(pos.x(), pos.y(), pos.z());
     }
+
+    /**
+     * @return whether no position in this facet is inside a cave
+     */
+    public boolean isEmpty() {
+        return getCaveCount() == 0;
+    }
+
+    /**
+     * @return whether every position in this facet is inside a cave
+     */
+    public boolean isFull() {
+        return getCaveCount() == getWorldRegion().volume();
+    }
+
+    /**
+     * The number of {@code long} words used to store a single column, see {@link #getWorldColumnWord}.
+     */
+    public int getWordsPerColumn() {
+        return wordsPerColumn;
+    }
+
+    /**
+     * Reads 64 vertically consecutive values of a column at once.
+     *
+     * @param x the world x coordinate of the column
+     * @param z the world z coordinate of the column
+     * @param word which word of the column to read, between 0 and {@link #getWordsPerColumn()} - 1
+     * @return the values of the column from {@code y = getWorldRegion().minY() + 64 * word} upwards, one per bit,
+     *         starting with the lowest bit
+     */
+    public long getWorldColumnWord(int x, int z, int word) {
+        return data[getWorldWordIndex(x, z, word)];
+    }
+
+    /**
+     * Reads 64 vertically consecutive values of a column at once, starting at any height.
+     *
+     * @param x the world x coordinate of the column
+     * @param z the world z coordinate of the column
+     * @param fromY the world y coordinate of the lowest value to read
+     * @return the values of the column from {@code fromY} upwards, one per bit, starting with the lowest bit;
+     *         positions above or below the region are read as 0
+     */
+    public long getWorldColumnBits(int x, int z, int fromY) {
+        int from = fromY - getWorldRegion().minY();
+        int word = Math.floorDiv(from, Long.SIZE);
+        int shift = Math.floorMod(from, Long.SIZE);
+        long bits = word >= 0 && word < wordsPerColumn ? getWorldColumnWord(x, z, word) : 0;
+        if (shift == 0) {
+            return bits;
+        }
+        long above = word + 1 >= 0 && word + 1 < wordsPerColumn ? getWorldColumnWord(x, z, word + 1) : 0;
+        return bits >>> shift | above << (Long.SIZE - shift);
+    }
+
+    /**
+     * Replaces 64 vertically consecutive values of a column at once, see {@link #getWorldColumnWord}.
+     * Bits above the top of the region are ignored.
+     */
+    public void setWorldColumnWord(int x, int z, int word, long bits) {
+        int index = getWorldWordIndex(x, z, word);
+        if (word == wordsPerColumn - 1) {
+            int usedBits = getWorldRegion().getSizeY() - word * Long.SIZE;
+            if (usedBits < Long.SIZE) {
+                bits &= (1L << usedBits) - 1;
+            }
+        }
+        data[index] = bits;
+        invalidateCaveCount();
+    }
+
+    /**
+     * @return a copy of all the words of this facet, column by column
+     */
+    long[] copyWords() {
+        return data.clone();
+    }
+
+    /**
+     * Replaces all the words of this facet with those returned by {@link #copyWords()} of a facet covering the same
+     * region.
+     */
+    void setWords(long[] words) {
+        if (words.length != data.length) {
+            throw new IllegalArgumentException("Expected " + data.length + " words, not " + words.length);
+        }
+        System.arraycopy(words, 0, data, 0, data.length);
+        invalidateCaveCount();
+    }
+
+    /**
+     * @return the number of positions in this facet which are inside a cave
+     */
+    public int getCaveCount() {
+        int count = caveCount;
+        if (count < 0) {
+            count = 0;
+            for (long word : data) {
+                count += Long.bitCount(word);
+            }
+            caveCount = count;
+        }
+        return count;
+    }
+
+    private void invalidateCaveCount() {
+        // Reading is cheaper than writing a volatile field, and most writes come after the count is already stale
+        if (caveCount >= 0) {
+            caveCount = -1;
+        }
+    }
+
+    private int getWorldBitIndex(int x, int y, int z) {
+        BlockRegion worldRegion = getWorldRegion();
+        if (!worldRegion.contains(x, y, z)) {
+            throw new IllegalArgumentException(String.format("Out of bounds: (%d, %d, %d) for region %s", x, y, z,
+                    worldRegion.toString()));
+        }
+        int column = x - worldRegion.minX() + sizeX * (z - worldRegion.minZ());
+        return column * wordsPerColumn * Long.SIZE + y - worldRegion.minY();
+    }
+
+    private int getWorldWordIndex(int x, int z, int word) {
+        BlockRegion worldRegion = getWorldRegion();
+        if (x < worldRegion.minX() || x > worldRegion.maxX() || z < worldRegion.minZ() || z > worldRegion.maxZ()
+                || word < 0 || word >= wordsPerColumn) {
+            throw new IllegalArgumentException(String.format("Out of bounds: column (%d, %d) word %d for region %s",
+                    x, z, word, worldRegion.toString()));
+        }
+        return (x - worldRegion.minX() + sizeX * (z - worldRegion.minZ())) * wordsPerColumn + word;
+    }
 }
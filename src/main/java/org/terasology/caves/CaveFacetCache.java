@@ -0,0 +1,173 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.world.block.BlockRegion;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the caves generated by {@link CaveFacetProvider} for recently generated regions, so that changing the
+ * configuration of the providers further down, such as {@link CaveObjectProvider}, doesn't compute the noise again
+ * when the world generator is run on the same regions.
+ *
+ * <p>A region is only reused if it was generated with the same seed and shape parameters, for exactly the same
+ * bounds, up to the same height, from exactly the same surface heights. The least recently used regions are dropped
+ * once there are more than the given maximum.</p>
+ *
+ * <p>Only the caves themselves are remembered, as they take by far the longest to generate. The facets made from
+ * them are generated again each time: {@link CaveToSurfaceProvider} has to, as it also changes the surfaces of the
+ * providers before it, which may be the ones whose configuration changed. {@link CaveLocationProvider} finds the
+ * caves of a column with a few word operations on the remembered caves, and by default only for the columns asked
+ * for, so remembering its facet would save little more than the copy costs.</p>
+ *
+ * <p>Entries aren't versioned beyond their key, as the caves depend on nothing else, and they are only kept in
+ * memory, so they never outlive the code which generated them.</p>
+ *
+ * <p>This is safe to use from several threads at once.</p>
+ */
+public class CaveFacetCache {
+    private final Map<Key, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CaveFacetCache(int maxRegions) {
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxRegions;
+            }
+        };
+    }
+
+    /**
+     * Fills the facet with the caves generated earlier for the same region, if there are any.
+     *
+     * @param shape the parameters the caves would be generated with
+     * @param maxY the height up to which the caves would be generated
+     * @param surfaceHeights the surface heights the caves would be generated from, column by column; any values
+     *                       after the last column are ignored
+     * @return whether the facet was filled
+     */
+    public boolean load(long seed, float[] shape, int maxY, CaveFacet facet, float[] surfaceHeights) {
+        Key key = new Key(seed, shape, maxY, facet.getWorldRegion());
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !Arrays.equals(entry.surfaceHeights, 0, entry.surfaceHeights.length,
+                surfaceHeights, 0, entry.surfaceHeights.length)) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        // The facet is changed further on, so it gets its own copy
+        facet.setWords(entry.words);
+        return true;
+    }
+
+    /**
+     * Remembers the caves which were generated for the facet's region.
+     *
+     * @param shape the parameters the caves were generated with, which are kept as they are, so they must not be
+     *              changed afterwards
+     * @param maxY the height up to which the caves were generated; the facet is empty above it
+     * @param surfaceHeights the surface heights the caves were generated from, column by column; any values after
+     *                       the last column are ignored
+     */
+    public void store(long seed, float[] shape, int maxY, CaveFacet facet, float[] surfaceHeights) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        int columnCount = worldRegion.getSizeX() * worldRegion.getSizeZ();
+        Entry entry = new Entry(Arrays.copyOf(surfaceHeights, columnCount), facet.copyWords());
+        synchronized (entries) {
+            entries.put(new Key(seed, shape, maxY, facet.getWorldRegion()), entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getRegionCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class Key {
+        private final long seed;
+        private final float[] shape;
+        private final int generatedMaxY;
+        private final int minX;
+        private final int minY;
+        private final int minZ;
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+
+        Key(long seed, float[] shape, int generatedMaxY, BlockRegion region) {
+            this.seed = seed;
+            this.shape = shape;
+            this.generatedMaxY = generatedMaxY;
+            this.minX = region.minX();
+            this.minY = region.minY();
+            this.minZ = region.minZ();
+            this.maxX = region.maxX();
+            this.maxY = region.maxY();
+            this.maxZ = region.maxZ();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return seed == other.seed && Arrays.equals(shape, other.shape) && generatedMaxY == other.generatedMaxY
+                    && minX == other.minX && minY == other.minY && minZ == other.minZ
+                    && maxX == other.maxX && maxY == other.maxY && maxZ == other.maxZ;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(seed);
+            result = 31 * result + Arrays.hashCode(shape);
+            result = 31 * result + generatedMaxY;
+            result = 31 * result + minX;
+            result = 31 * result + minY;
+            result = 31 * result + minZ;
+            result = 31 * result + maxX;
+            result = 31 * result + maxY;
+            result = 31 * result + maxZ;
+            return result;
+        }
+    }
+
+    private static final class Entry {
+        private final float[] surfaceHeights;
+        private final long[] words;
+
+        Entry(float[] surfaceHeights, long[] words) {
+            this.surfaceHeights = surfaceHeights;
+            this.words = words;
+        }
+    }
+}
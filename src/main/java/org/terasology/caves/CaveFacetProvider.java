@@ -4,58 +4,416 @@
 package org.terasology.caves;
 
 import org.joml.Math;
-import org.joml.Vector3ic;
+import org.joml.Vector3f;
 import org.terasology.engine.utilities.procedural.BrownianNoise;
 import org.terasology.engine.utilities.procedural.SimplexNoise;
 import org.terasology.engine.utilities.procedural.SubSampledNoise;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.ConfigurableFacetProvider;
 import org.terasology.engine.world.generation.Facet;
+import org.terasology.engine.world.generation.FacetBorder;
 import org.terasology.engine.world.generation.FacetProviderPlugin;
 import org.terasology.engine.world.generation.GeneratingRegion;
 import org.terasology.engine.world.generation.Produces;
 import org.terasology.engine.world.generation.Requires;
+import org.terasology.engine.world.generation.facets.DensityFacet;
 import org.terasology.engine.world.generation.facets.ElevationFacet;
 import org.terasology.engine.world.generator.plugin.RegisterPlugin;
+import org.terasology.gestalt.entitysystem.component.Component;
+import org.terasology.math.TeraMath;
+import org.terasology.nui.properties.Checkbox;
+import org.terasology.nui.properties.Range;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Generates 2 independent noise functions, then puts caves where both of them are
  * close to 0. For topological reasons, this tends to produce caves in the shape
  * of continuous lines, which can't have dead ends, but may loop around and have
  * junctions (of an even number of tunnels).
+ *
+ * <p>The size of the caves and the offset of the second noise function only depend on the depth below the surface,
+ * so they are worked out once per depth for each region. The depth is taken in whole blocks, from the block the
+ * surface height lies in, rather than from the exact surface height.</p>
+ *
+ * <p>The radius of the caves reaches 0 some way above the surface, see
+ * {@link CaveFacetConfiguration#getMaxHeightAboveSurface()}. Above that it becomes negative, and as only its square
+ * is compared, there are caves again. Those are removed by {@link CaveToSurfaceProvider} wherever the ground isn't
+ * solid, so they only remain in solid ground high above the surface, such as overhangs. The noise is therefore only
+ * sampled up to that height, or up to the highest solid block above it.</p>
  */
 @RegisterPlugin
 @Produces(CaveFacet.class)
-@Requires(@Facet(ElevationFacet.class))
-public class CaveFacetProvider implements FacetProviderPlugin {
+@Requires({
+    @Facet(ElevationFacet.class),
+    @Facet(value = DensityFacet.class, border = @FacetBorder(
+            sides = CaveToSurfaceProvider.SURFACE_SPREAD,
+            bottom = CaveToSurfaceProvider.SURFACE_SPREAD, top = 20)
+    )
+})
+public class CaveFacetProvider implements ConfigurableFacetProvider, FacetProviderPlugin {
+
+    /**
+     * The noise is sampled for this many layers at a time, so that the memory needed doesn't grow with the height of
+     * the region. This is a power of 2 and a multiple of the default sample rate, so the slabs share few lattice
+     * points, and those are served by {@link CaveNoiseCache}.
+     */
+    private static final int SLAB_HEIGHT = 16;
+
+    /**
+     * How many cells of noise lattice points to keep per noise function, see {@link CaveNoiseCache}.
+     */
+    private static final int MAX_CACHED_NOISE_CELLS = 1024;
+
+    /**
+     * How many regions to remember the caves of, see {@link CaveFacetCache}. This is shared by all instances, as the
+     * world generator may create new providers when the configuration of another one is changed. Regions are only
+     * remembered while {@link CaveFacetConfiguration#rememberRegions} is set, or another provider asked for it with
+     * {@link #setRememberRegions}, as storing them copies every facet.
+     */
+    private static final int MAX_CACHED_REGIONS = 256;
+
+    private static final CaveFacetCache FACET_CACHE = new CaveFacetCache(MAX_CACHED_REGIONS);
+
+    /**
+     * The seeds of the worlds whose regions are remembered whatever their cave configuration says.
+     */
+    private static final Set<Long> REMEMBERING_SEEDS = ConcurrentHashMap.newKeySet();
+
+    private final CaveMetrics metrics = CaveMetrics.get(CaveFacetProvider.class);
+
+    private long seed;
+    private boolean seeded;
+
+    private CaveFacetConfiguration configuration = new CaveFacetConfiguration();
 
-    SubSampledNoise[] caveNoise = new SubSampledNoise[2];
+    /**
+     * What the caves are currently generated from. This is replaced as a whole, and each region reads it once, so a
+     * region keeps using the same shape even if the configuration is changed while it is being processed.
+     */
+    private volatile CaveShape caveShape;
 
     @Override
     public void setSeed(long seed) {
-        for (int i = 0; i < 2; i++) {
-            BrownianNoise baseNoise = new BrownianNoise(new SimplexNoise(seed + 2 + i), 4);
-            caveNoise[i] = new SubSampledNoise(baseNoise, new org.joml.Vector3f(0.006f, 0.006f, 0.006f), 4);
-        }
+        this.seed = seed;
+        seeded = true;
+        caveShape = new CaveShape(seed, configuration);
     }
 
     @Override
     public void process(GeneratingRegion region) {
+        CaveShape shape = caveShape;
         ElevationFacet elevationFacet = region.getRegionFacet(ElevationFacet.class);
+        DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
+        long start = CaveMetrics.start();
         CaveFacet facet = new CaveFacet(region.getRegion(), region.getBorderForFacet(CaveFacet.class));
+        BlockRegion worldRegion = facet.getWorldRegion();
 
-        // get noise in batch for performance reasons.  Getting it by individual position takes 10 times as long
-        float[][] caveNoiseValues = new float[][]{caveNoise[0].noise(facet.getWorldRegion()), caveNoise[1].noise(facet.getWorldRegion())};
+        int sizeX = worldRegion.getSizeX();
+        int sizeZ = worldRegion.getSizeZ();
+        long voxels = 0;
+        try (CaveScratch scratch = CaveScratch.open()) {
+            float[] surfaceHeights = scratch.getFloats(sizeX * sizeZ);
+            int[] surfaceBlocks = scratch.getInts(sizeX * sizeZ);
+            int minSurfaceBlock = Integer.MAX_VALUE;
+            int maxSurfaceBlock = Integer.MIN_VALUE;
+            for (int dz = 0; dz < sizeZ; dz++) {
+                for (int dx = 0; dx < sizeX; dx++) {
+                    float surfaceHeight = elevationFacet.getWorld(worldRegion.minX() + dx, worldRegion.minZ() + dz);
+                    int surfaceBlock = TeraMath.floorToInt(surfaceHeight);
+                    surfaceHeights[dx + sizeX * dz] = surfaceHeight;
+                    surfaceBlocks[dx + sizeX * dz] = surfaceBlock;
+                    minSurfaceBlock = Math.min(minSurfaceBlock, surfaceBlock);
+                    maxSurfaceBlock = Math.max(maxSurfaceBlock, surfaceBlock);
+                }
+            }
 
-        for (Vector3ic pos : facet.getWorldRegion()) {
-            float depth = elevationFacet.getWorld(pos.x(), pos.z()) - pos.y();
-            //0: no reduction, 0.7: pretty much no caves. Also somewhat increases the tendency of caves to loop rather than continuing indefinitely.
-            float frequencyReduction = (float) Math.max(0, 0.3 - Math.max(depth, 0) / 400);
-            int i = facet.getWorldIndex(pos);
-            float xx = caveNoiseValues[0][i];
-            float yy = caveNoiseValues[1][i] + frequencyReduction;
-            float freqDepth = 0.06f + depth / 2000f;
-            facet.setWorld(pos, (xx * xx + yy * yy) < freqDepth * freqDepth);
+            // Only sample the noise for the layers which can contain caves which are kept. The noise is aligned to
+            // the world, so sampling a smaller region gives the same values.
+            int cutOffY = maxSurfaceBlock + shape.configuration.getMaxHeightAboveSurface();
+            int maxCaveY = Math.min(worldRegion.maxY(),
+                    Math.max(cutOffY, findHighestSolidY(densityFacet, worldRegion, cutOffY + 1)));
+            boolean remember = shape.configuration.rememberRegions || REMEMBERING_SEEDS.contains(shape.seed);
+            if (maxCaveY >= worldRegion.minY()
+                    && !(remember && FACET_CACHE.load(shape.seed, shape.key, maxCaveY, facet, surfaceHeights))) {
+                voxels = (long) sizeX * sizeZ * (maxCaveY - worldRegion.minY() + 1);
+                DepthTable depthTable = new DepthTable(shape.configuration, minSurfaceBlock - maxCaveY,
+                        maxSurfaceBlock - worldRegion.minY(), scratch);
+                // Rows of columns are independent, so each slice of rows can get its own noise if split between
+                // threads
+                CaveParallelism.forEachSlice(worldRegion.minZ(), worldRegion.maxZ(), (slice, minZ, maxZ) -> {
+                    BlockRegion noiseRegion = new BlockRegion(worldRegion.minX(), worldRegion.minY(), minZ,
+                            worldRegion.maxX(), maxCaveY, maxZ);
+                    generateCaves(shape, facet, noiseRegion, surfaceBlocks, depthTable);
+                });
+                if (remember) {
+                    FACET_CACHE.store(shape.seed, shape.key, maxCaveY, facet, surfaceHeights);
+                }
+            }
         }
 
         region.setRegionFacet(CaveFacet.class, facet);
+        metrics.record(start, voxels, facet.getCaveCount(), 0);
+    }
+
+    /**
+     * Remembers the caves of recent regions of the worlds with the given seed, as if
+     * {@link CaveFacetConfiguration#rememberRegions} was set in their configuration. This lets the providers further
+     * down offer it in their own configuration, such as {@link CaveObjectProvider}, where those changing it in a
+     * preview will find it.
+     */
+    static void setRememberRegions(long seed, boolean remember) {
+        if (remember) {
+            REMEMBERING_SEEDS.add(seed);
+        } else {
+            REMEMBERING_SEEDS.remove(seed);
+        }
+    }
+
+    /**
+     * @return whether the caves of the worlds with the given seed are remembered because another provider asked for
+     *         it, see {@link #setRememberRegions}
+     */
+    static boolean isRememberingRegions(long seed) {
+        return REMEMBERING_SEEDS.contains(seed);
+    }
+
+    /**
+     * Finds the highest layer of the region, from {@code minY} up, with a solid block in it. Blocks outside of the
+     * density facet's region count as solid, as they may be.
+     *
+     * @return the height of that layer, or {@link Integer#MIN_VALUE} if there is none
+     */
+    private static int findHighestSolidY(DensityFacet densityFacet, BlockRegion worldRegion, int minY) {
+        BlockRegion densityRegion = densityFacet.getWorldRegion();
+        for (int y = worldRegion.maxY(); y >= Math.max(minY, worldRegion.minY()); y--) {
+            for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+                for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                    if (!densityRegion.contains(x, y, z) || densityFacet.getWorld(x, y, z) > 0) {
+                        return y;
+                    }
+                }
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private static void generateCaves(CaveShape shape, CaveFacet facet, BlockRegion noiseRegion, int[] surfaceBlocks,
+                                      DepthTable depthTable) {
+        int sizeX = noiseRegion.getSizeX();
+        int wordsPerColumn = facet.getWordsPerColumn();
+
+        // Slabs are aligned to the world, so neighbouring regions split their noise the same way
+        // This may run on another thread, so it borrows from that thread's scratch
+        try (CaveScratch scratch = CaveScratch.open()) {
+            long[] rowWords = scratch.getLongs(sizeX * wordsPerColumn);
+            int slabMinY = noiseRegion.minY();
+            while (slabMinY <= noiseRegion.maxY()) {
+                int slabMaxY = Math.min(noiseRegion.maxY(), (slabMinY & -SLAB_HEIGHT) + SLAB_HEIGHT - 1);
+                BlockRegion slab = new BlockRegion(noiseRegion.minX(), slabMinY, noiseRegion.minZ(),
+                        noiseRegion.maxX(), slabMaxY, noiseRegion.maxZ());
+                generateSlab(shape, facet, slab, surfaceBlocks, depthTable, rowWords);
+                slabMinY = slabMaxY + 1;
+            }
+        }
+    }
+
+    private static void generateSlab(CaveShape shape, CaveFacet facet, BlockRegion slab, int[] surfaceBlocks,
+                                     DepthTable depthTable, long[] rowWords) {
+        // get noise in batch for performance reasons.  Getting it by individual position takes 10 times as long
+        float[] noiseX = shape.noiseX.noise(slab);
+        float[] noiseY = shape.noiseY.noise(slab);
+        float[] offsets = depthTable.offsets;
+        float[] radiiSquared = depthTable.radiiSquared;
+
+        BlockRegion worldRegion = facet.getWorldRegion();
+        int sizeX = slab.getSizeX();
+        int wordsPerColumn = facet.getWordsPerColumn();
+        int firstWord = (slab.minY() - worldRegion.minY()) >>> 6;
+        int lastWord = (slab.maxY() - worldRegion.minY()) >>> 6;
+
+        // The noise arrays are ordered x, then y, then z, so walk each x/z row of columns layer by layer, collecting
+        // the bits of all columns in the row before adding them to the facet.
+        int index = 0;
+        for (int z = slab.minZ(); z <= slab.maxZ(); z++) {
+            int row = sizeX * (z - worldRegion.minZ());
+            Arrays.fill(rowWords, 0);
+            for (int y = slab.minY(); y <= slab.maxY(); y++) {
+                int word = (y - worldRegion.minY()) >>> 6;
+                long bit = 1L << (y - worldRegion.minY());
+                int depthOffset = -y - depthTable.minDepth;
+                for (int dx = 0; dx < sizeX; dx++, index++) {
+                    int depth = surfaceBlocks[row + dx] + depthOffset;
+                    float xx = noiseX[index];
+                    float yy = noiseY[index] + offsets[depth];
+                    if (xx * xx + yy * yy < radiiSquared[depth]) {
+                        rowWords[dx * wordsPerColumn + word] |= bit;
+                    }
+                }
+            }
+            for (int dx = 0; dx < sizeX; dx++) {
+                int x = slab.minX() + dx;
+                for (int word = firstWord; word <= lastWord; word++) {
+                    long bits = rowWords[dx * wordsPerColumn + word];
+                    if (bits != 0) {
+                        facet.setWorldColumnWord(x, z, word, facet.getWorldColumnWord(x, z, word) | bits);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getConfigurationName() {
+        return "Caves";
+    }
+
+    @Override
+    public Component getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public void setConfiguration(Component configuration) {
+        this.configuration = (CaveFacetConfiguration) configuration;
+        if (seeded) {
+            caveShape = new CaveShape(seed, this.configuration);
+        }
+    }
+
+    /**
+     * The seed and a copy of the configuration, with the noise built from them. None of this is changed once built.
+     */
+    private static final class CaveShape {
+        final long seed;
+        final CaveFacetConfiguration configuration = new CaveFacetConfiguration();
+        /**
+         * The parameters identifying the shape in {@link CaveFacetCache}.
+         */
+        final float[] key;
+        final SubSampledNoise noiseX;
+        final SubSampledNoise noiseY;
+
+        CaveShape(long seed, CaveFacetConfiguration configuration) {
+            this.seed = seed;
+            this.configuration.copyFrom(configuration);
+            key = this.configuration.getShape();
+            noiseX = buildNoise(seed + 2, this.configuration);
+            noiseY = buildNoise(seed + 3, this.configuration);
+        }
+
+        private static SubSampledNoise buildNoise(long noiseSeed, CaveFacetConfiguration configuration) {
+            Vector3f zoom = new Vector3f(configuration.noiseScale, configuration.noiseScale, configuration.noiseScale);
+            BrownianNoise baseNoise = new BrownianNoise(new SimplexNoise(noiseSeed), configuration.octaves);
+            // The borders of neighbouring regions overlap, so they share many of the subsampled lattice points
+            CaveNoiseCache noiseCache =
+                    new CaveNoiseCache(baseNoise, zoom, configuration.sampleRate, MAX_CACHED_NOISE_CELLS);
+            return new SubSampledNoise(noiseCache, zoom, configuration.sampleRate);
+        }
+    }
+
+    /**
+     * The shape of the caves at each whole depth below the surface a region needs, from {@code minDepth} on.
+     */
+    private static final class DepthTable {
+        final int minDepth;
+        /**
+         * What is added to the second noise function. Also somewhat increases the tendency of caves to loop rather
+         * than continuing indefinitely.
+         */
+        final float[] offsets;
+        /**
+         * The square of the radius of the caves.
+         */
+        final float[] radiiSquared;
+
+        DepthTable(CaveFacetConfiguration configuration, int minDepth, int maxDepth, CaveScratch scratch) {
+            this.minDepth = minDepth;
+            offsets = scratch.getFloats(maxDepth - minDepth + 1);
+            radiiSquared = scratch.getFloats(maxDepth - minDepth + 1);
+            for (int depth = minDepth; depth <= maxDepth; depth++) {
+                offsets[depth - minDepth] = configuration.getOffset(depth);
+                float radius = configuration.getRadius(depth);
+                radiiSquared[depth - minDepth] = radius * radius;
+            }
+        }
+    }
+
+    public static class CaveFacetConfiguration implements Component<CaveFacetConfiguration> {
+        @Range(min = 0.001f, max = 0.05f, increment = 0.001f, precision = 3,
+                description = "How quickly the caves change direction; higher values give shorter, twistier caves")
+        public float noiseScale = 0.006f;
+
+        @Range(min = 1, max = 8, increment = 1, precision = 0,
+                description = "How many layers of noise make up the caves; fewer is faster but smoother")
+        public int octaves = 4;
+
+        @Range(min = 1, max = 16, increment = 1, precision = 0,
+                description = "Every how many blocks the noise is sampled; higher is faster but coarser")
+        public int sampleRate = 4;
+
+        @Range(min = 0, max = 0.5f, increment = 0.01f, precision = 2,
+                description = "The radius of the caves at the surface, in noise units")
+        public float surfaceRadius = 0.06f;
+
+        @Range(min = 100, max = 10000, increment = 100, precision = 0,
+                description = "How many blocks deeper the caves have to be for their radius to grow by 1")
+        public float radiusGrowthDepth = 2000f;
+
+        @Range(min = 0, max = 0.7f, increment = 0.01f, precision = 2,
+                description = "How much rarer caves are at the surface; 0.7 means pretty much no caves")
+        public float surfaceReduction = 0.3f;
+
+        @Range(min = 1, max = 2000, increment = 10, precision = 0,
+                description = "How many blocks deeper the caves have to be for the reduction to drop by 1")
+        public float reductionFadeDepth = 400f;
+
+        @Checkbox(description = "Remember the caves of recent regions, so that previewing the world again after "
+                + "changing other providers is quicker; best left off while playing")
+        public boolean rememberRegions;
+
+        /**
+         * @return the radius of the caves at the given depth below the surface, which is negative above
+         *         {@link #getMaxHeightAboveSurface()}; only its square matters
+         */
+        float getRadius(int depth) {
+            return surfaceRadius + depth / radiusGrowthDepth;
+        }
+
+        /**
+         * @return the offset of the second noise function at the given depth below the surface
+         */
+        float getOffset(int depth) {
+            return Math.max(0, surfaceReduction - Math.max(depth, 0) / reductionFadeDepth);
+        }
+
+        /**
+         * The height above the surface at which the caves' radius reaches 0.
+         */
+        int getMaxHeightAboveSurface() {
+            return TeraMath.ceilToInt(surfaceRadius * radiusGrowthDepth);
+        }
+
+        /**
+         * @return the values which affect the shape of the caves
+         */
+        float[] getShape() {
+            return new float[]{noiseScale, octaves, sampleRate, surfaceRadius, radiusGrowthDepth, surfaceReduction,
+                reductionFadeDepth};
+        }
+
+        @Override
+        public void copyFrom(CaveFacetConfiguration other) {
+            this.noiseScale = other.noiseScale;
+            this.octaves = other.octaves;
+            this.sampleRate = other.sampleRate;
+            this.surfaceRadius = other.surfaceRadius;
+            this.radiusGrowthDepth = other.radiusGrowthDepth;
+            this.surfaceReduction = other.surfaceReduction;
+            this.reductionFadeDepth = other.reductionFadeDepth;
+            this.rememberRegions = other.rememberRegions;
+        }
     }
 }
@@ -3,10 +3,15 @@
 
 package org.terasology.caves;
 
+import org.joml.Vector2ic;
+import org.terasology.engine.world.block.BlockAreac;
 import org.terasology.engine.world.block.BlockRegion;
 import org.terasology.engine.world.generation.Border3D;
 import org.terasology.engine.world.generation.Facet;
-import org.terasology.engine.world.generation.facets.base.BaseObjectFacet2D;
+import org.terasology.engine.world.generation.facets.base.BaseFacet2D;
+import org.terasology.engine.world.generation.facets.base.ObjectFacet2D;
+
+import java.util.Arrays;
 
 /**
  * This {@link Facet} adds to the {@link CaveFacet} by indicating the Y (height) value throughout the
@@ -16,9 +21,291 @@ import org.terasology.engine.world.generation.facets.base.BaseObjectFacet2D;
  * <p><em>Usage notes:</em> The value of the floor / ceiling is the height of the last relevant solid block.
  * So in order to place something "on the floor" / "on the ceiling" of the cave you should place it at
  * {@code caveLocation.floor + 1} / {@code caveLocation.ceiling - 1}</p>
+ *
+ * <p>The caves of all columns are stored together in two arrays, rather than as an array of {@link CaveLocation}s per
+ * column, which {@link #get} and {@link #set} convert from and to. The caves of each column are numbered
+ * consecutively, from top to bottom. To go through the caves of a column without creating any objects, use:</p>
+ * <pre>{@code
+ * int end = facet.getWorldLocationEnd(x, z);
+ * for (int i = facet.getWorldLocationStart(x, z); i < end; i++) {
+ *     float ceiling = facet.getCeiling(i);
+ *     float floor = facet.getFloor(i);
+ * }
+ * }</pre>
+ *
+ * <p>The columns may be filled up front, or as they are first asked for by a {@link ColumnGenerator}, so that
+ * consumers which only look at some of the columns don't pay for the others. The facet may be read from several
+ * threads at once either way: columns are generated while holding the facet's lock, and a column's caves are only
+ * read after its start has been asked for, which waits for any column being generated. Only changing the facet
+ * with {@link #addWorld} or {@link #set} while other threads read it is unsafe.</p>
  */
-public class CaveLocationFacet extends BaseObjectFacet2D<CaveLocation[]> {
+public class CaveLocationFacet extends BaseFacet2D implements ObjectFacet2D<CaveLocation[]> {
+    private final int offsetX;
+    private final int offsetZ;
+
+    /**
+     * The number of the first cave of each column, and the number of caves in it.
+     */
+    private final int[] columnStarts;
+    private final int[] columnCounts;
+    private int lastColumn = -1;
+
+    /**
+     * Which columns have been generated, one bit per column, if there is a generator.
+     */
+    private final long[] generatedColumns;
+    private ColumnGenerator generator;
+    /**
+     * Whether all columns have been generated, after which they are read without taking the lock.
+     */
+    private volatile boolean complete;
+
+    /**
+     * Volatile, as another thread generating a column may replace them with larger copies while they are read.
+     */
+    private volatile float[] ceilings;
+    private volatile float[] floors;
+    /**
+     * The number of the next cave to be stored, which is more than the number of caves once a column has been set.
+     */
+    private int end;
+    private int locationCount;
+
     public CaveLocationFacet(BlockRegion targetRegion, Border3D border) {
-        super(targetRegion, border, CaveLocation[].class);
+        super(targetRegion, border);
+        BlockAreac worldArea = getWorldArea();
+        BlockAreac relativeArea = getRelativeArea();
+        offsetX = worldArea.minX() - relativeArea.minX();
+        offsetZ = worldArea.minY() - relativeArea.minY();
+        columnStarts = new int[worldArea.area()];
+        columnCounts = new int[worldArea.area()];
+        generatedColumns = new long[(worldArea.area() + Long.SIZE - 1) / Long.SIZE];
+        ceilings = new float[Math.max(16, worldArea.area() / 2)];
+        floors = new float[ceilings.length];
+    }
+
+    /**
+     * Finds the caves of a single column, when it is first asked for.
+     */
+    @FunctionalInterface
+    public interface ColumnGenerator {
+        /**
+         * Adds the caves of the given column to the facet, with {@link #addWorld}.
+         *
+         * @param x the world x coordinate of the column
+         * @param z the world z coordinate of the column
+         */
+        void generate(CaveLocationFacet facet, int x, int z);
+    }
+
+    /**
+     * Has the columns without any caves yet generated as they are asked for. Other columns can't be filled by
+     * {@link #addWorld} directly any more afterwards.
+     */
+    public void setColumnGenerator(ColumnGenerator columnGenerator) {
+        this.generator = columnGenerator;
+        for (int column = 0; column < columnCounts.length; column++) {
+            if (columnCounts[column] > 0) {
+                generatedColumns[column >>> 6] |= 1L << column;
+            }
+        }
+    }
+
+    /**
+     * Generates all columns which haven't been yet, if there is a generator.
+     */
+    public void generateAllColumns() {
+        if (generator == null || complete) {
+            return;
+        }
+        synchronized (this) {
+            BlockAreac worldArea = getWorldArea();
+            for (int z = worldArea.minY(); z <= worldArea.maxY(); z++) {
+                for (int x = worldArea.minX(); x <= worldArea.maxX(); x++) {
+                    generateColumn(x, z);
+                }
+            }
+            complete = true;
+        }
+    }
+
+    /**
+     * Adds a cave to the given column. The caves of a column have to be added from top to bottom, all at once: a
+     * column can't have more caves added after caves were added to another column.
+     *
+     * @param x the world x coordinate of the column
+     * @param z the world z coordinate of the column
+     * @param ceiling the height of the cave's ceiling, or {@link CaveLocation#UNKNOWN}
+     * @param floor the height of the cave's floor, or {@link CaveLocation#UNKNOWN}
+     */
+    public synchronized void addWorld(int x, int z, float ceiling, float floor) {
+        int column = getWorldIndex(x, z);
+        if (column != lastColumn) {
+            if (columnCounts[column] > 0) {
+                throw new IllegalStateException(String.format("Column (%d, %d) has already been filled", x, z));
+            }
+            columnStarts[column] = end;
+            lastColumn = column;
+        }
+        ensureCapacity(end + 1);
+        ceilings[end] = ceiling;
+        floors[end] = floor;
+        end++;
+        locationCount++;
+        columnCounts[column]++;
+    }
+
+    /**
+     * @return the number of the first cave in the given column
+     */
+    public int getWorldLocationStart(int x, int z) {
+        return columnStarts[generateColumn(x, z)];
+    }
+
+    /**
+     * @return one more than the number of the last cave in the given column
+     */
+    public int getWorldLocationEnd(int x, int z) {
+        int column = generateColumn(x, z);
+        return columnStarts[column] + columnCounts[column];
+    }
+
+    /**
+     * @return the height of the given cave's ceiling, or {@link CaveLocation#UNKNOWN}
+     */
+    public float getCeiling(int location) {
+        return ceilings[location];
+    }
+
+    /**
+     * @return the height of the given cave's floor, or {@link CaveLocation#UNKNOWN}
+     */
+    public float getFloor(int location) {
+        return floors[location];
+    }
+
+    /**
+     * @return the total number of caves in all columns, generating them if needed
+     */
+    public synchronized int getLocationCount() {
+        generateAllColumns();
+        return locationCount;
+    }
+
+    /**
+     * @return the number of caves in the columns filled so far
+     */
+    public synchronized int getFilledLocationCount() {
+        return locationCount;
+    }
+
+    /**
+     * The caves in the given column, relative to the region. Creates new objects on every call, so prefer
+     * {@link #getWorldLocationStart} and {@link #getWorldLocationEnd} when going through many columns.
+     */
+    @Override
+    public CaveLocation[] get(int x, int z) {
+        return getWorld(x + offsetX, z + offsetZ);
+    }
+
+    @Override
+    public CaveLocation[] get(Vector2ic pos) {
+        return get(pos.x(), pos.y());
+    }
+
+    /**
+     * The caves in the given column. Creates new objects on every call, so prefer {@link #getWorldLocationStart}
+     * and {@link #getWorldLocationEnd} when going through many columns.
+     */
+    @Override
+    public CaveLocation[] getWorld(int x, int z) {
+        int start = getWorldLocationStart(x, z);
+        CaveLocation[] locations = new CaveLocation[getWorldLocationEnd(x, z) - start];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = new CaveLocation();
+            locations[i].ceiling = ceilings[start + i];
+            locations[i].floor = floors[start + i];
+        }
+        return locations;
+    }
+
+    @Override
+    public CaveLocation[] getWorld(Vector2ic pos) {
+        return getWorld(pos.x(), pos.y());
+    }
+
+    /**
+     * Replaces the caves in the given column, relative to the region.
+     *
+     * @param value the caves from top to bottom, or null if there are none
+     */
+    @Override
+    public void set(int x, int z, CaveLocation[] value) {
+        setWorld(x + offsetX, z + offsetZ, value);
+    }
+
+    @Override
+    public void set(Vector2ic pos, CaveLocation[] value) {
+        set(pos.x(), pos.y(), value);
+    }
+
+    /**
+     * Replaces the caves in the given column, which is then no longer generated. The caves are copied, so later
+     * changes to them don't change the facet. Unlike {@link #addWorld}, this can be used on any column at any time.
+     *
+     * @param value the caves from top to bottom, or null if there are none
+     */
+    @Override
+    public synchronized void setWorld(int x, int z, CaveLocation[] value) {
+        int column = getWorldIndex(x, z);
+        generatedColumns[column >>> 6] |= 1L << column;
+        int count = value == null ? 0 : value.length;
+        // Caves which don't fit where the column's old caves are go after all others
+        if (count > columnCounts[column]) {
+            ensureCapacity(end + count);
+            columnStarts[column] = end;
+            end += count;
+        }
+        for (int i = 0; i < count; i++) {
+            ceilings[columnStarts[column] + i] = value[i].ceiling;
+            floors[columnStarts[column] + i] = value[i].floor;
+        }
+        locationCount += count - columnCounts[column];
+        columnCounts[column] = count;
+        if (column == lastColumn) {
+            lastColumn = -1;
+        }
+    }
+
+    @Override
+    public void setWorld(Vector2ic pos, CaveLocation[] value) {
+        setWorld(pos.x(), pos.y(), value);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ceilings.length) {
+            int length = Math.max(capacity, ceilings.length * 2);
+            ceilings = Arrays.copyOf(ceilings, length);
+            floors = Arrays.copyOf(floors, length);
+        }
+    }
+
+    /**
+     * Generates the given column if there is a generator and it hasn't been yet.
+     *
+     * @return the index of the column
+     */
+    private int generateColumn(int x, int z) {
+        int column = getWorldIndex(x, z);
+        if (generator != null && !complete) {
+            // Taken even if the column was generated, so that its caves are seen by this thread
+            synchronized (this) {
+                if ((generatedColumns[column >>> 6] & 1L << column) == 0) {
+                    generatedColumns[column >>> 6] |= 1L << column;
+                    generator.generate(this, x, z);
+                }
+            }
+        }
+        return column;
     }
 }
@@ -3,21 +3,37 @@
 
 package org.terasology.caves;
 
+import org.terasology.engine.world.block.BlockAreac;
 import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.ConfigurableFacetProvider;
 import org.terasology.engine.world.generation.Facet;
 import org.terasology.engine.world.generation.FacetProviderPlugin;
 import org.terasology.engine.world.generation.GeneratingRegion;
 import org.terasology.engine.world.generation.Produces;
 import org.terasology.engine.world.generation.Requires;
 import org.terasology.engine.world.generator.plugin.RegisterPlugin;
+import org.terasology.gestalt.entitysystem.component.Component;
+import org.terasology.nui.properties.Checkbox;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * Finds the caves of each column of the region, see {@link CaveLocationFacet}.
+ *
+ * <p>By default, the caves of a column are only found once the column is first asked for, as consumers like
+ * {@link CaveObjectProvider} only look at some of the columns. Set {@link CaveLocationConfiguration#eager} to find
+ * the caves of all columns up front instead, split between threads as set up in {@link CaveParallelism}. Columns
+ * found later on add the positions they went through and their caves to the metrics, but not their time, as reading
+ * the clock twice per column would take about as long as finding its caves.</p>
+ */
 @RegisterPlugin
 @Produces(CaveLocationFacet.class)
 @Requires(@Facet(CaveFacet.class))
-public class CaveLocationProvider implements FacetProviderPlugin {
+public class CaveLocationProvider implements ConfigurableFacetProvider, FacetProviderPlugin {
+
+    private final CaveMetrics metrics = CaveMetrics.get(CaveLocationProvider.class);
+
+    private CaveLocationConfiguration configuration = new CaveLocationConfiguration();
 
     /**
      * <em>Note: </em>If no {@code FacetProvider} or {@code WorldRasterizer} calls
@@ -26,47 +42,157 @@ public class CaveLocationProvider implements FacetProviderPlugin {
      */
     @Override
     public void process(GeneratingRegion region) {
+        process(region, configuration.eager);
+    }
+
+    /**
+     * Finds the caves of the region, either of all columns up front or of each column once it is asked for.
+     */
+    void process(GeneratingRegion region, boolean eager) {
         CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+        long start = CaveMetrics.start();
         CaveLocationFacet locationFacet =
                 new CaveLocationFacet(region.getRegion(), region.getBorderForFacet(CaveLocationFacet.class));
 
+        if (!caveFacet.isEmpty()) {
+            if (eager) {
+                findAllCaves(caveFacet, locationFacet);
+            } else {
+                int height = caveFacet.getWorldRegion().getSizeY();
+                locationFacet.setColumnGenerator((facet, x, z) -> {
+                    int before = facet.getFilledLocationCount();
+                    findCaves(caveFacet, x, x, z, z, facet::addWorld);
+                    metrics.recordDeferred(height, facet.getFilledLocationCount() - before, 0);
+                });
+            }
+        }
+        region.setRegionFacet(CaveLocationFacet.class, locationFacet);
+        long voxels = eager ? caveFacet.getWorldRegion().volume() : 0;
+        metrics.record(start, voxels, locationFacet.getFilledLocationCount(), 0);
+    }
+
+    @Override
+    public String getConfigurationName() {
+        return "Cave Locations";
+    }
+
+    @Override
+    public Component getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public void setConfiguration(Component configuration) {
+        this.configuration = (CaveLocationConfiguration) configuration;
+    }
+
+    private static void findAllCaves(CaveFacet caveFacet, CaveLocationFacet locationFacet) {
+        BlockAreac area = locationFacet.getWorldArea();
+        int sliceCount = CaveParallelism.getSliceCount(area.minY(), area.maxY());
+        if (sliceCount == 1) {
+            findCaves(caveFacet, area.minX(), area.maxX(), area.minY(), area.maxY(), locationFacet::addWorld);
+        } else {
+            // The facet can't be filled from several threads, so collect the caves of each slice of rows separately
+            // first
+            FoundCaves[] slices = new FoundCaves[sliceCount];
+            CaveParallelism.forEachSlice(area.minY(), area.maxY(), sliceCount, (slice, minZ, maxZ) -> {
+                slices[slice] = new FoundCaves();
+                findCaves(caveFacet, area.minX(), area.maxX(), minZ, maxZ, slices[slice]);
+            });
+            for (FoundCaves found : slices) {
+                found.addTo(locationFacet);
+            }
+        }
+    }
+
+    private static void findCaves(CaveFacet caveFacet, int minX, int maxX, int minZ, int maxZ, CaveConsumer consumer) {
         BlockRegion worldRegion = caveFacet.getWorldRegion();
-        for (int x = worldRegion.minX(); x <= worldRegion.maxX(); ++x) {
-            for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); ++z) {
-                boolean insideCave = false;
-                int y;
-                // The cave locations in this x/z vertical
-                List<CaveLocation> caveLocations = new LinkedList<>();
-                CaveLocation currentLocation = null;
-                // As we are looping from the top of the region to the bottom, the logic is as follows
-                // - if insideCave == false && cavePresent == true, it is the start of a cave
-                // --- insideCave = true, set currentLocation to a new location, ceiling = y+1
-                // - if insideCave == true && cavePresent == true, still inside cave, do nothing
-                // - if insideCave == false && cavePresent == false, in between caves, do nothing
-                // - if insideCave == true && cavePresent == false, found cave floor
-                // --- currentLocation floor = y, cavesLocations add current, current = null, insideCave = false
-                for (y = worldRegion.maxY(); y >= worldRegion.minY(); --y) {
-                    boolean cavePresent = caveFacet.getWorld(x, y, z);
-
-                    if (!insideCave && cavePresent) {
-                        insideCave = true;
-                        currentLocation = new CaveLocation();
-                        if (y < worldRegion.maxY()) {
-                            currentLocation.ceiling = y + 1;
-                            // In the case where y == worldRegion.maxY, then ceiling will remain float.NaN (unknown)
-                        }
-                    } else if (insideCave && !cavePresent) {
-                        currentLocation.floor = y;
-                        caveLocations.add(currentLocation);
-                        currentLocation = null;
-                        insideCave = false;
+        int top = worldRegion.getSizeY() - 1;
+        for (int z = minZ; z <= maxZ; ++z) {
+            for (int x = minX; x <= maxX; ++x) {
+                // Working from the top of the column to the bottom, jump from the top of each cave to the first
+                // solid block below it, which is the cave's floor. The heights are relative to the bottom of
+                // the region here. A column without caves only takes a look at each of its words.
+                int caveTop = findHighest(caveFacet, x, z, top, true);
+                while (caveTop >= 0) {
+                    // In the case where the cave reaches the top of the region, the ceiling is unknown
+                    float ceiling = caveTop < top ? worldRegion.minY() + caveTop + 1 : CaveLocation.UNKNOWN;
+                    int floor = findHighest(caveFacet, x, z, caveTop, false);
+                    if (floor < 0) {
+                        // The cave continues below the region
+                        break;
                     }
+                    consumer.accept(x, z, ceiling, worldRegion.minY() + floor);
+                    caveTop = findHighest(caveFacet, x, z, floor, true);
                 }
+            }
+        }
+    }
 
-                // If no locations were found then the facet will contain an empty array
-                locationFacet.setWorld(x, z, caveLocations.toArray(new CaveLocation[0]));
+    /**
+     * Finds the highest position in a column, at or below {@code from}, where the cave facet has the given value.
+     *
+     * @return the height of that position relative to the bottom of the facet, or -1 if there is none
+     */
+    private static int findHighest(CaveFacet caveFacet, int x, int z, int from, boolean cave) {
+        for (int word = from >>> 6; word >= 0; word--) {
+            long bits = caveFacet.getWorldColumnWord(x, z, word);
+            if (!cave) {
+                bits = ~bits;
+            }
+            if (word == from >>> 6 && (from & 63) != 63) {
+                bits &= (1L << (from + 1)) - 1;
+            }
+            if (bits != 0) {
+                return word * Long.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros(bits);
             }
         }
-        region.setRegionFacet(CaveLocationFacet.class, locationFacet);
+        return -1;
+    }
+
+    @FunctionalInterface
+    private interface CaveConsumer {
+        void accept(int x, int z, float ceiling, float floor);
+    }
+
+    /**
+     * The caves found in part of the region, in the order they were found.
+     */
+    private static final class FoundCaves implements CaveConsumer {
+        private int[] columns = new int[128];
+        private float[] ceilings = new float[64];
+        private float[] floors = new float[64];
+        private int count;
+
+        @Override
+        public void accept(int x, int z, float ceiling, float floor) {
+            if (count == ceilings.length) {
+                columns = Arrays.copyOf(columns, count * 4);
+                ceilings = Arrays.copyOf(ceilings, count * 2);
+                floors = Arrays.copyOf(floors, count * 2);
+            }
+            columns[2 * count] = x;
+            columns[2 * count + 1] = z;
+            ceilings[count] = ceiling;
+            floors[count] = floor;
+            count++;
+        }
+
+        void addTo(CaveLocationFacet facet) {
+            for (int i = 0; i < count; i++) {
+                facet.addWorld(columns[2 * i], columns[2 * i + 1], ceilings[i], floors[i]);
+            }
+        }
+    }
+
+    public static class CaveLocationConfiguration implements Component<CaveLocationConfiguration> {
+        @Checkbox(description = "Find the caves of all columns up front, rather than of each column once it is "
+                + "asked for; only worth it if most columns are looked at")
+        public boolean eager;
+
+        @Override
+        public void copyFrom(CaveLocationConfiguration other) {
+            this.eager = other.eager;
+        }
     }
 }
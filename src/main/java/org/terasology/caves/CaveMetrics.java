@@ -0,0 +1,233 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing and work done by one of the cave providers or rasterizers, to find out how much of the world generation
+ * time is spent on caves.
+ *
+ * <p>Each plugin records its calls in the instance returned by {@link #get(Class)}. The totals can be queried from
+ * there or with the {@code caveMetrics} console command, and are written to the log at the interval set with
+ * {@link #setLogInterval(long)} or the {@code caveMetricsLogInterval} console command.</p>
+ */
+public final class CaveMetrics {
+    /**
+     * Latencies are counted in buckets of powers of 2 microseconds, the last one holding everything above.
+     */
+    private static final int LATENCY_BUCKETS = 32;
+
+    private static final Logger logger = LoggerFactory.getLogger(CaveMetrics.class);
+
+    private static final Map<String, CaveMetrics> REGISTRY = new ConcurrentHashMap<>();
+    private static final AtomicLong LAST_LOG = new AtomicLong(System.nanoTime());
+
+    private static volatile long logIntervalNanos;
+
+    private final String name;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS);
+    private final LongAdder voxels = new LongAdder();
+    private final LongAdder caves = new LongAdder();
+    private final LongAdder surfaces = new LongAdder();
+
+    private CaveMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the metrics of the given provider or rasterizer
+     */
+    public static CaveMetrics get(Class<?> plugin) {
+        return REGISTRY.computeIfAbsent(plugin.getSimpleName(), CaveMetrics::new);
+    }
+
+    /**
+     * @return the metrics of all plugins which have been used so far
+     */
+    public static Collection<CaveMetrics> getAll() {
+        List<CaveMetrics> all = new ArrayList<>(REGISTRY.values());
+        all.sort(Comparator.comparing(CaveMetrics::getName));
+        return all;
+    }
+
+    /**
+     * @return a line per plugin with the metrics recorded so far
+     */
+    public static String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (CaveMetrics metrics : getAll()) {
+            if (summary.length() > 0) {
+                summary.append('\n');
+            }
+            summary.append(metrics);
+        }
+        return summary.length() > 0 ? summary.toString() : "No caves generated yet";
+    }
+
+    /**
+     * Clears the metrics of all plugins.
+     */
+    public static void resetAll() {
+        for (CaveMetrics metrics : REGISTRY.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * @return the number of seconds between writing the metrics to the log, 0 if they aren't logged
+     */
+    public static long getLogInterval() {
+        return TimeUnit.NANOSECONDS.toSeconds(logIntervalNanos);
+    }
+
+    /**
+     * Sets how often the metrics of all plugins are written to the log, counting from the last time they were.
+     *
+     * @param seconds the number of seconds between writing the metrics, 0 to stop writing them
+     */
+    public static void setLogInterval(long seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("The log interval can't be negative: " + seconds);
+        }
+        logIntervalNanos = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * The time to pass to {@link #record} at the end of the call. Take it once the facets the call depends on have
+     * been fetched, as they may be generated on demand.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a finished call.
+     *
+     * @param startNanos the value returned by {@link #start()} at the beginning of the call
+     * @param voxelCount the number of positions the call went through
+     * @param caveCount the number of caves (or cave positions, or objects) the call found or placed
+     * @param surfaceCount the number of surfaces the call added
+     */
+    public void record(long startNanos, long voxelCount, long caveCount, long surfaceCount) {
+        long now = System.nanoTime();
+        long duration = now - startNanos;
+        calls.increment();
+        totalNanos.add(duration);
+        maxNanos.accumulate(duration);
+        long micros = TimeUnit.NANOSECONDS.toMicros(duration);
+        latencyBuckets.incrementAndGet(Math.min(LATENCY_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros)));
+        voxels.add(voxelCount);
+        caves.add(caveCount);
+        surfaces.add(surfaceCount);
+
+        long interval = logIntervalNanos;
+        long last = LAST_LOG.get();
+        if (interval > 0 && now - last >= interval && LAST_LOG.compareAndSet(last, now)) {
+            logger.info("Cave generation metrics:\n{}", getSummary());
+        }
+    }
+
+    /**
+     * Adds work done on demand after the call which set it up was recorded, such as lazily generated parts of a facet.
+     * It counts towards the total work, but not as a call of its own, and its time isn't measured, as the parts are
+     * usually too small to be worth reading the clock for.
+     *
+     * @param voxelCount the number of positions the work went through
+     * @param caveCount the number of caves the work found
+     * @param surfaceCount the number of surfaces the work added
+     */
+    public void recordDeferred(long voxelCount, long caveCount, long surfaceCount) {
+        voxels.add(voxelCount);
+        caves.add(caveCount);
+        surfaces.add(surfaceCount);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getVoxels() {
+        return voxels.sum();
+    }
+
+    public long getCaves() {
+        return caves.sum();
+    }
+
+    public long getSurfaces() {
+        return surfaces.sum();
+    }
+
+    /**
+     * An upper bound of the given percentile of the call latency, accurate to a factor of 2.
+     *
+     * @param percentile between 0 and 1
+     * @return the latency in nanoseconds, 0 if nothing was recorded
+     */
+    public long getLatencyPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            total += latencyBuckets.get(i);
+        }
+        long remaining = (long) Math.ceil(total * percentile);
+        for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+            remaining -= latencyBuckets.get(i);
+            if (remaining <= 0 && total > 0) {
+                return TimeUnit.MICROSECONDS.toNanos(1L << i);
+            }
+        }
+        return getMaxNanos();
+    }
+
+    public void reset() {
+        calls.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latencyBuckets.set(i, 0);
+        }
+        voxels.reset();
+        caves.reset();
+        surfaces.reset();
+    }
+
+    @Override
+    public String toString() {
+        long callCount = getCalls();
+        return String.format("%s: %d calls, %.1f ms total, %.3f ms mean, p50 <= %.3f ms, p99 <= %.3f ms, max %.3f ms, "
+                        + "%d voxels, %d caves, %d surfaces",
+                name, callCount, getTotalNanos() / 1e6, callCount > 0 ? getTotalNanos() / 1e6 / callCount : 0,
+                getLatencyPercentile(0.5) / 1e6, getLatencyPercentile(0.99) / 1e6, getMaxNanos() / 1e6,
+                getVoxels(), getCaves(), getSurfaces());
+    }
+}
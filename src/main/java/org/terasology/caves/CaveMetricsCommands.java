@@ -0,0 +1,62 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.entitySystem.systems.BaseComponentSystem;
+import org.terasology.engine.entitySystem.systems.RegisterMode;
+import org.terasology.engine.entitySystem.systems.RegisterSystem;
+import org.terasology.engine.logic.console.commandSystem.annotations.Command;
+import org.terasology.engine.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.engine.logic.permission.PermissionManager;
+
+/**
+ * Console commands to look at the {@link CaveMetrics} of the world generation running on the server, and to set up
+ * {@link CaveParallelism} there.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+public class CaveMetricsCommands extends BaseComponentSystem {
+
+    @Command(shortDescription = "Shows how much time cave generation took so far",
+            helpText = "Lists the calls, latency and work done by each cave provider and rasterizer",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String caveMetrics() {
+        return CaveMetrics.getSummary();
+    }
+
+    @Command(shortDescription = "Clears the cave generation metrics",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String resetCaveMetrics() {
+        CaveMetrics.resetAll();
+        return "Cave metrics cleared";
+    }
+
+    @Command(shortDescription = "Shows or sets how often the cave generation metrics are logged",
+            helpText = "Writes the metrics of all cave providers and rasterizers to the log every given number of "
+                    + "seconds, 0 turning it off",
+            runOnServer = true, requiredPermission = PermissionManager.DEBUG_PERMISSION)
+    public String caveMetricsLogInterval(@CommandParam(value = "seconds", required = false) Long seconds) {
+        if (seconds != null) {
+            if (seconds < 0) {
+                return "The interval can't be negative";
+            }
+            CaveMetrics.setLogInterval(seconds);
+        }
+        long interval = CaveMetrics.getLogInterval();
+        return interval > 0 ? "Cave metrics are logged every " + interval + " seconds" : "Cave metrics aren't logged";
+    }
+
+    @Command(shortDescription = "Shows or sets how many threads cave generation may use per region",
+            helpText = "Splits each region between up to the given number of threads, 1 keeping each region on the "
+                    + "thread generating it",
+            runOnServer = true, requiredPermission = PermissionManager.SERVER_MANAGEMENT_PERMISSION)
+    public String caveParallelism(@CommandParam(value = "threads", required = false) Integer threads) {
+        if (threads != null) {
+            if (threads < 1) {
+                return "The number of threads must be at least 1";
+            }
+            CaveParallelism.setParallelism(threads);
+        }
+        return "Cave generation uses up to " + CaveParallelism.getParallelism() + " threads per region";
+    }
+}
@@ -0,0 +1,207 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.joml.Vector3f;
+import org.terasology.engine.utilities.procedural.AbstractNoise;
+import org.terasology.engine.utilities.procedural.Noise;
+import org.terasology.engine.utilities.procedural.SubSampledNoise;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the values of a noise function at the lattice points sampled by a {@link SubSampledNoise}, so that
+ * neighbouring regions, whose borders overlap, don't compute the same points again.
+ *
+ * <p>Wrap the source noise with this, and use the same zoom and sample rate for both. The lattice points are cached
+ * in cubic cells of {@link #CELL_SIZE}<sup>3</sup> points. Positions which aren't exactly on the lattice are passed
+ * on to the source.</p>
+ *
+ * <p>The cells are spread over sets of {@value #WAYS} by their position, and each set drops its least recently used
+ * cell when another one is needed, so that at most the given maximum is held. Each thread remembers the last cell it
+ * used, so most points skip the lookup altogether.</p>
+ *
+ * <p>This is safe to use from several threads at once. The sets are locked in stripes, so threads working on
+ * different parts of the world rarely wait for each other.</p>
+ */
+public class CaveNoiseCache extends AbstractNoise {
+    public static final int CELL_SIZE = 8;
+
+    private static final int CELL_BITS = 3;
+    private static final int CELL_MASK = CELL_SIZE - 1;
+    private static final int NOT_ON_LATTICE = Integer.MIN_VALUE;
+
+    /**
+     * How many cells each set can hold.
+     */
+    private static final int WAYS = 4;
+    private static final int LOCK_STRIPES = 64;
+
+    private final Noise source;
+    private final Vector3f zoom;
+    private final int sampleRate;
+
+    /**
+     * The position, contents and last use of each cell held, {@value #WAYS} consecutive ones per set. A cell without
+     * contents is free.
+     */
+    private final int[] cellXs;
+    private final int[] cellYs;
+    private final int[] cellZs;
+    private final float[][] cells;
+    private final long[] lastUses;
+    private final long[] setClocks;
+    private final int setMask;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ThreadLocal<LastCell> lastCell = ThreadLocal.withInitial(LastCell::new);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CaveNoiseCache(Noise source, Vector3f zoom, int sampleRate, int maxCells) {
+        this.source = source;
+        this.zoom = new Vector3f(zoom.x, zoom.y, zoom.z);
+        this.sampleRate = sampleRate;
+        int setCount = Integer.highestOneBit(Math.max(1, maxCells / WAYS));
+        setMask = setCount - 1;
+        cellXs = new int[setCount * WAYS];
+        cellYs = new int[setCount * WAYS];
+        cellZs = new int[setCount * WAYS];
+        cells = new float[setCount * WAYS][];
+        lastUses = new long[setCount * WAYS];
+        setClocks = new long[setCount];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public float noise(float x, float y) {
+        return source.noise(x, y);
+    }
+
+    @Override
+    public float noise(float x, float y, float z) {
+        int latticeX = getLatticeIndex(x, zoom.x);
+        int latticeY = getLatticeIndex(y, zoom.y);
+        int latticeZ = getLatticeIndex(z, zoom.z);
+        if (latticeX == NOT_ON_LATTICE || latticeY == NOT_ON_LATTICE || latticeZ == NOT_ON_LATTICE) {
+            return source.noise(x, y, z);
+        }
+
+        LastCell last = lastCell.get();
+        float[] cell = getCell(last, latticeX >> CELL_BITS, latticeY >> CELL_BITS, latticeZ >> CELL_BITS);
+        int index = (latticeX & CELL_MASK) + CELL_SIZE * ((latticeY & CELL_MASK) + CELL_SIZE * (latticeZ & CELL_MASK));
+        // Points are written without locking: another thread sees either the final value or NaN, and in the latter
+        // case just computes the same value again.
+        float value = cell[index];
+        if (Float.isNaN(value)) {
+            last.misses++;
+            value = source.noise(x, y, z);
+            cell[index] = value;
+        } else {
+            last.hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Each thread adds up its hits and misses and counts them here when it moves on to another cell, so that the
+     * threads don't contend on the counters for every point. The points of the cell a thread is on are left out.
+     *
+     * @return how many lattice points were found in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return how many lattice points had to be computed by the source noise
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of cells currently held
+     */
+    public int getCellCount() {
+        int count = 0;
+        for (int set = 0; set <= setMask; set++) {
+            synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+                for (int way = set * WAYS; way < (set + 1) * WAYS; way++) {
+                    if (cells[way] != null) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The index of the lattice point at the given (zoomed) coordinate, or {@link #NOT_ON_LATTICE} if the coordinate
+     * is not exactly the one {@link SubSampledNoise} would compute for that point.
+     */
+    private int getLatticeIndex(float coordinate, float axisZoom) {
+        int index = Math.round(coordinate / (axisZoom * sampleRate));
+        return axisZoom * (float) (index * sampleRate) == coordinate ? index : NOT_ON_LATTICE;
+    }
+
+    private float[] getCell(LastCell last, int cellX, int cellY, int cellZ) {
+        if (last.cell == null || last.cellX != cellX || last.cellY != cellY || last.cellZ != cellZ) {
+            hits.add(last.hits);
+            misses.add(last.misses);
+            last.hits = 0;
+            last.misses = 0;
+            last.cell = findCell(cellX, cellY, cellZ);
+            last.cellX = cellX;
+            last.cellY = cellY;
+            last.cellZ = cellZ;
+        }
+        return last.cell;
+    }
+
+    private float[] findCell(int cellX, int cellY, int cellZ) {
+        long hash = (cellX * 0x9E3779B97F4A7C15L) ^ (cellY * 0xC2B2AE3D27D4EB4FL) ^ (cellZ * 0x165667B19E3779F9L);
+        int set = (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & setMask;
+        int first = set * WAYS;
+        synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+            long now = ++setClocks[set];
+            // Free cells were never used, so they are picked over any cell in use
+            int oldest = first;
+            for (int way = first; way < first + WAYS; way++) {
+                if (cells[way] != null && cellXs[way] == cellX && cellYs[way] == cellY && cellZs[way] == cellZ) {
+                    lastUses[way] = now;
+                    return cells[way];
+                }
+                if (lastUses[way] < lastUses[oldest]) {
+                    oldest = way;
+                }
+            }
+            float[] cell = new float[CELL_SIZE * CELL_SIZE * CELL_SIZE];
+            Arrays.fill(cell, Float.NaN);
+            cellXs[oldest] = cellX;
+            cellYs[oldest] = cellY;
+            cellZs[oldest] = cellZ;
+            cells[oldest] = cell;
+            lastUses[oldest] = now;
+            return cell;
+        }
+    }
+
+    /**
+     * The cell a thread used last, and the hits and misses on it not yet counted. It may have been dropped from the
+     * cache since, which only means its points aren't shared with other threads any more.
+     */
+    private static final class LastCell {
+        private int cellX;
+        private int cellY;
+        private int cellZ;
+        private float[] cell;
+        private long hits;
+        private long misses;
+    }
+}
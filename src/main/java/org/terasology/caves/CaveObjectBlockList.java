@@ -0,0 +1,135 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * The blocks a {@link CaveObjectType} chooses from, each with how often it is chosen relative to the others.
+ *
+ * <p>They are written as a comma-separated list of block family URIs, each optionally followed by {@code *} and a
+ * whole weight, such as {@code "CoreAssets:BrownShroom*4, CoreAssets:RedShroom"}. Blocks without a weight have a
+ * weight of 1.</p>
+ */
+public final class CaveObjectBlockList {
+    private static final Logger logger = LoggerFactory.getLogger(CaveObjectBlockList.class);
+
+    private final String[] blockUris;
+    /**
+     * The running total of the weights of the blocks.
+     */
+    private final int[] totalWeights;
+
+    private CaveObjectBlockList(String[] blockUris, int[] totalWeights) {
+        this.blockUris = blockUris;
+        this.totalWeights = totalWeights;
+    }
+
+    /**
+     * Reads a list of blocks. Entries which can't be read, or have a weight below 1, are left out.
+     */
+    public static CaveObjectBlockList parse(String list) {
+        String[] entries = list == null ? new String[0] : list.split(",");
+        String[] blockUris = new String[entries.length];
+        int[] totalWeights = new int[entries.length];
+        int count = 0;
+        int total = 0;
+        for (String entry : entries) {
+            String blockUri = entry.trim();
+            int weight = 1;
+            int separator = blockUri.lastIndexOf('*');
+            if (separator >= 0) {
+                try {
+                    weight = Integer.parseInt(blockUri.substring(separator + 1).trim());
+                } catch (NumberFormatException e) {
+                    weight = 0;
+                }
+                blockUri = blockUri.substring(0, separator).trim();
+            }
+            if (blockUri.isEmpty() || weight < 1) {
+                if (!entry.trim().isEmpty()) {
+                    logger.warn("Leaving out cave object block '{}', which isn't a block URI with a weight of 1 "
+                            + "or more", entry.trim());
+                }
+                continue;
+            }
+            total += weight;
+            blockUris[count] = blockUri;
+            totalWeights[count] = total;
+            count++;
+        }
+        return new CaveObjectBlockList(Arrays.copyOf(blockUris, count), Arrays.copyOf(totalWeights, count));
+    }
+
+    public boolean isEmpty() {
+        return blockUris.length == 0;
+    }
+
+    /**
+     * @return the number of blocks
+     */
+    public int size() {
+        return blockUris.length;
+    }
+
+    /**
+     * @return the URI of the block family of the given block
+     */
+    public String getBlockUri(int block) {
+        return blockUris[block];
+    }
+
+    /**
+     * Picks a block by weight.
+     *
+     * @param random a value from 0 (inclusive) to {@link #getTotalWeight()} (exclusive)
+     * @return the number of the block
+     */
+    public int select(int random) {
+        int block = 0;
+        while (block < totalWeights.length - 1 && random >= totalWeights[block]) {
+            block++;
+        }
+        return block;
+    }
+
+    /**
+     * @return the sum of the weights of all blocks
+     */
+    public int getTotalWeight() {
+        return totalWeights.length == 0 ? 0 : totalWeights[totalWeights.length - 1];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CaveObjectBlockList)) {
+            return false;
+        }
+        CaveObjectBlockList other = (CaveObjectBlockList) o;
+        return Arrays.equals(blockUris, other.blockUris) && Arrays.equals(totalWeights, other.totalWeights);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(blockUris) + Arrays.hashCode(totalWeights);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < blockUris.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(blockUris[i]).append('*').append(totalWeights[i] - (i > 0 ? totalWeights[i - 1] : 0));
+        }
+        return builder.toString();
+    }
+}
@@ -3,16 +3,249 @@
 
 package org.terasology.caves;
 
+import org.joml.Vector3i;
+import org.joml.Vector3ic;
 import org.terasology.engine.world.block.BlockRegion;
 import org.terasology.engine.world.generation.Border3D;
-import org.terasology.engine.world.generation.facets.base.SparseObjectFacet3D;
+import org.terasology.engine.world.generation.facets.base.BaseFacet3D;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * An example Facet for placing objects inside caves.
+ *
+ * <p>The objects are stored as two arrays, holding the position and type of each object. Once they are all placed,
+ * {@link #sort()} puts them in order of position and drops those which were replaced, which the provider does before
+ * sharing the facet. To go through them without creating any objects, use:</p>
+ * <pre>{@code
+ * for (int i = 0; i < facet.getEntryCount(); i++) {
+ *     int x = facet.getEntryX(i);
+ *     int y = facet.getEntryY(i);
+ *     int z = facet.getEntryZ(i);
+ *     CaveObjectType type = facet.getEntryType(i);
+ * }
+ * }</pre>
+ * <p>The positions of the entries are relative to the region.</p>
+ *
+ * <p>The facet also carries the blocks to choose from for each type, as configured for the provider, so that the
+ * rasterizer places what was configured.</p>
  */
-public class CaveObjectFacet extends SparseObjectFacet3D<CaveObjectType> {
+public class CaveObjectFacet extends BaseFacet3D {
+    private static final CaveObjectType[] TYPES = CaveObjectType.values();
+
+    private final int offsetX;
+    private final int offsetY;
+    private final int offsetZ;
+    private final int sizeX;
+    private final int sizeY;
+
+    /**
+     * The position of each entry as an index into the relative region, ordered from x to z.
+     */
+    private int[] positions = new int[16];
+    private byte[] types = new byte[16];
+    private int count;
+
+    /**
+     * Whether the entries are known to be in order of their position, without duplicates. Until they are, an entry
+     * replaces the ones before it at the same position.
+     */
+    private boolean sorted = true;
+
+    private final CaveObjectBlockList[] blockLists = new CaveObjectBlockList[TYPES.length];
 
     public CaveObjectFacet(BlockRegion targetRegion, Border3D border) {
         super(targetRegion, border);
+        BlockRegion relativeRegion = getRelativeRegion();
+        offsetX = relativeRegion.minX();
+        offsetY = relativeRegion.minY();
+        offsetZ = relativeRegion.minZ();
+        sizeX = relativeRegion.getSizeX();
+        sizeY = relativeRegion.getSizeY();
+    }
+
+    /**
+     * @return the object at the given position relative to the region, or null if there is none
+     */
+    public CaveObjectType get(int x, int y, int z) {
+        int entry = findEntry(getPosition(x, y, z));
+        return entry >= 0 ? TYPES[types[entry]] : null;
+    }
+
+    public CaveObjectType get(Vector3ic pos) {
+        return get(pos.x(), pos.y(), pos.z());
+    }
+
+    /**
+     * Places an object at the given position relative to the region, replacing any object already there.
+     */
+    public void set(int x, int y, int z, CaveObjectType type) {
+        int position = getPosition(x, y, z);
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+            types = Arrays.copyOf(types, count * 2);
+        }
+        if (count > 0 && position <= positions[count - 1]) {
+            sorted = false;
+        }
+        positions[count] = position;
+        types[count] = (byte) type.ordinal();
+        count++;
+    }
+
+    public void set(Vector3ic pos, CaveObjectType type) {
+        set(pos.x(), pos.y(), pos.z(), type);
+    }
+
+    /**
+     * @return the object at the given world position, or null if there is none
+     */
+    public CaveObjectType getWorld(int x, int y, int z) {
+        BlockRegion worldRegion = getWorldRegion();
+        return get(x - worldRegion.minX() + offsetX, y - worldRegion.minY() + offsetY,
+                z - worldRegion.minZ() + offsetZ);
+    }
+
+    public CaveObjectType getWorld(Vector3ic pos) {
+        return getWorld(pos.x(), pos.y(), pos.z());
+    }
+
+    /**
+     * Places an object at the given world position, replacing any object already there.
+     */
+    public void setWorld(int x, int y, int z, CaveObjectType type) {
+        BlockRegion worldRegion = getWorldRegion();
+        set(x - worldRegion.minX() + offsetX, y - worldRegion.minY() + offsetY, z - worldRegion.minZ() + offsetZ, type);
+    }
+
+    public void setWorld(Vector3ic pos, CaveObjectType type) {
+        setWorld(pos.x(), pos.y(), pos.z(), type);
+    }
+
+    /**
+     * @return the blocks to choose from for the given type, or null for the rasterizer's defaults
+     */
+    public CaveObjectBlockList getBlockList(CaveObjectType type) {
+        return blockLists[type.ordinal()];
+    }
+
+    public void setBlockList(CaveObjectType type, CaveObjectBlockList blockList) {
+        blockLists[type.ordinal()] = blockList;
+    }
+
+    /**
+     * @return the number of entries, which is the number of objects once the facet is sorted
+     */
+    public int getEntryCount() {
+        return count;
+    }
+
+    /**
+     * @return the x coordinate of the given entry, relative to the region
+     */
+    public int getEntryX(int entry) {
+        return offsetX + positions[entry] % sizeX;
+    }
+
+    /**
+     * @return the y coordinate of the given entry, relative to the region
+     */
+    public int getEntryY(int entry) {
+        return offsetY + positions[entry] / sizeX % sizeY;
+    }
+
+    /**
+     * @return the z coordinate of the given entry, relative to the region
+     */
+    public int getEntryZ(int entry) {
+        return offsetZ + positions[entry] / sizeX / sizeY;
+    }
+
+    public CaveObjectType getEntryType(int entry) {
+        return TYPES[types[entry]];
+    }
+
+    /**
+     * The objects by their position relative to the region. Creates a new map on every call, so prefer going through
+     * the entries by number.
+     */
+    public Map<Vector3ic, CaveObjectType> getRelativeEntries() {
+        Map<Vector3ic, CaveObjectType> entries = new LinkedHashMap<>();
+        for (int i = 0; i < getEntryCount(); i++) {
+            entries.put(new Vector3i(getEntryX(i), getEntryY(i), getEntryZ(i)), getEntryType(i));
+        }
+        return entries;
+    }
+
+    /**
+     * The objects by their world position. Creates a new map on every call, so prefer going through the entries by
+     * number.
+     */
+    public Map<Vector3ic, CaveObjectType> getWorldEntries() {
+        BlockRegion worldRegion = getWorldRegion();
+        int worldOffsetX = worldRegion.minX() - offsetX;
+        int worldOffsetY = worldRegion.minY() - offsetY;
+        int worldOffsetZ = worldRegion.minZ() - offsetZ;
+        Map<Vector3ic, CaveObjectType> entries = new LinkedHashMap<>();
+        for (int i = 0; i < getEntryCount(); i++) {
+            entries.put(new Vector3i(getEntryX(i) + worldOffsetX, getEntryY(i) + worldOffsetY,
+                    getEntryZ(i) + worldOffsetZ), getEntryType(i));
+        }
+        return entries;
+    }
+
+    private int getPosition(int x, int y, int z) {
+        if (!getRelativeRegion().contains(x, y, z)) {
+            throw new IllegalArgumentException(String.format("Out of bounds: (%d, %d, %d) for region %s",
+                    x, y, z, getRelativeRegion().toString()));
+        }
+        return x - offsetX + sizeX * (y - offsetY + sizeY * (z - offsetZ));
+    }
+
+    private int findEntry(int position) {
+        if (sorted) {
+            return Arrays.binarySearch(positions, 0, count, position);
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            if (positions[i] == position) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Puts the entries in order of their position. Where a position was set more than once, only the last entry
+     * for it is kept. Call this once all objects are placed, before the facet is read from several threads.
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        // Sort by position, then by the order the entries were added in
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = (long) positions[i] << 32 | i;
+        }
+        Arrays.sort(keys);
+
+        int[] sortedPositions = new int[positions.length];
+        byte[] sortedTypes = new byte[types.length];
+        int sortedCount = 0;
+        for (int i = 0; i < count; i++) {
+            int position = (int) (keys[i] >>> 32);
+            if (i + 1 < count && (int) (keys[i + 1] >>> 32) == position) {
+                continue;
+            }
+            sortedPositions[sortedCount] = position;
+            sortedTypes[sortedCount] = types[(int) keys[i]];
+            sortedCount++;
+        }
+        positions = sortedPositions;
+        types = sortedTypes;
+        count = sortedCount;
+        sorted = true;
     }
 }
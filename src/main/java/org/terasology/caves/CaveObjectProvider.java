@@ -2,8 +2,6 @@
 // SPDX-License-Identifier: Apache-2.0
 package org.terasology.caves;
 
-import org.terasology.engine.utilities.procedural.Noise;
-import org.terasology.engine.utilities.procedural.WhiteNoise;
 import org.terasology.engine.world.block.BlockRegion;
 import org.terasology.engine.world.generation.ConfigurableFacetProvider;
 import org.terasology.engine.world.generation.Facet;
@@ -11,68 +9,238 @@ import org.terasology.engine.world.generation.FacetProviderPlugin;
 import org.terasology.engine.world.generation.GeneratingRegion;
 import org.terasology.engine.world.generation.Produces;
 import org.terasology.engine.world.generation.Requires;
+import org.terasology.engine.world.generation.facets.DensityFacet;
 import org.terasology.engine.world.generation.facets.ElevationFacet;
 import org.terasology.gestalt.entitysystem.component.Component;
 import org.terasology.math.TeraMath;
+import org.terasology.nui.properties.Checkbox;
 import org.terasology.nui.properties.Range;
+import org.terasology.nui.properties.TextField;
 
 
 /**
  * An example provider for placing objects inside caves using {@link CaveLocationFacet} to determine the floor and
  * ceiling of a cave.
+ *
+ * <p>Whether a column gets an object, and which {@link CaveObjectType}, is decided by a single random value per column,
+ * which is computed for all columns of the region up front from the seed and the column's position: columns where it
+ * is below the configured density get an object, and where it falls within that range picks the type according to
+ * the configured weights.</p>
+ *
+ * <p>Wall objects are only placed next to blocks within the cave and density facets. The facets aren't requested
+ * with a border here, as that can't depend on whether wall objects are enabled, so next to the sides of the region
+ * this relies on the borders other providers ask for, such as {@link CaveToSurfaceProvider}'s.</p>
+ *
+ * <p>For the same reason both facets are always required, even while the wall weight is 0 and they aren't read:
+ * the requirements are declared once for the class, before any configuration is set. They cost nothing extra, as
+ * {@link CaveLocationProvider} already requires the cave facet, and the density facet is generated for the
+ * rasterizers anyway.</p>
  */
 //@RegisterPlugin /* uncomment to enable */
 @Produces(CaveObjectFacet.class)
-@Requires({@Facet(CaveLocationFacet.class), @Facet(value = ElevationFacet.class)})
+@Requires({@Facet(CaveLocationFacet.class), @Facet(value = ElevationFacet.class),
+        @Facet(CaveFacet.class), @Facet(DensityFacet.class)})
 public class CaveObjectProvider implements ConfigurableFacetProvider, FacetProviderPlugin {
 
-    private Noise densityNoiseGen;
+    private final CaveMetrics metrics = CaveMetrics.get(CaveObjectProvider.class);
+
+    private long seed;
+    private long worldSeed;
+    private boolean seeded;
 
     private CaveObjectConfiguration configuration = new CaveObjectConfiguration();
 
+    /**
+     * The block lists last read from the configuration, by {@link CaveObjectType} ordinal, and what they were read
+     * from.
+     */
+    private final CaveObjectBlockList[] blockLists = new CaveObjectBlockList[CaveObjectType.values().length];
+    private final String[] blockListSources = new String[CaveObjectType.values().length];
+
     @Override
     public void setSeed(long seed) {
-        densityNoiseGen = new WhiteNoise(seed + 1);
+        this.seed = seed + 1;
+        worldSeed = seed;
+        seeded = true;
+        updateCaveReuse();
     }
 
     @Override
     public void process(GeneratingRegion region) {
         CaveLocationFacet locationFacet = region.getRegionFacet(CaveLocationFacet.class);
+        ElevationFacet surfaceHeightFacet = region.getRegionFacet(ElevationFacet.class);
+        CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+        DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
+        long start = CaveMetrics.start();
         CaveObjectFacet facet =
                 new CaveObjectFacet(region.getRegion(), region.getBorderForFacet(CaveObjectFacet.class));
 
         BlockRegion worldRegion = facet.getWorldRegion();
         int minY = worldRegion.minY();
         int maxY = worldRegion.maxY();
+        for (CaveObjectType type : CaveObjectType.values()) {
+            facet.setBlockList(type, getBlockList(type));
+        }
+        float[] typeWeights = getTypeWeights(facet);
+        float totalWeight = typeWeights[typeWeights.length - 1];
+        if (totalWeight <= 0 || configuration.density <= 0) {
+            region.setRegionFacet(CaveObjectFacet.class, facet);
+            metrics.record(start, 0, 0, 0);
+            return;
+        }
 
-        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
-            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
-                CaveLocation[] caveLocations = locationFacet.getWorld(x, z);
-                for (CaveLocation location : caveLocations) {
-
-                    float caveFloorHeight = location.floor;
-                    int caveFloorInt = TeraMath.floorToInt(caveFloorHeight);
-
-                    float caveCeilingHeight = location.ceiling;
-                    int caveCeilingInt = TeraMath.floorToInt(caveCeilingHeight);
-
-                    // If this is a cave and if the floor and ceiling is in the region
-                    if (hasCave(caveFloorHeight) && caveFloorInt >= minY && caveFloorInt <= maxY
-                            && hasCave(caveCeilingHeight) && caveCeilingInt >= minY && caveCeilingInt <= maxY) {
-                        // Does it meet depth requirements
-                        ElevationFacet surfaceHeightFacet = region.getRegionFacet(ElevationFacet.class);
-                        float surface = surfaceHeightFacet.getWorld(x, z);
-                        int intSurface = TeraMath.floorToInt(surface);
-                        boolean isDeepEnough = caveFloorInt < (float) intSurface - configuration.minDepth;
-                        if (isDeepEnough && Math.abs(densityNoiseGen.noise(x, z)) < configuration.density) {
-                            facet.setWorld(x, caveFloorInt + 1, z, CaveObjectType.DEFAULT);
-                            facet.setWorld(x, caveCeilingInt - 1, z, CaveObjectType.DEFAULT);
+        try (CaveScratch scratch = CaveScratch.open()) {
+            float[] columnRandoms = getColumnRandoms(worldRegion, scratch);
+            int column = 0;
+            for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+                for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                    float random = columnRandoms[column++];
+                    if (random >= configuration.density) {
+                        continue;
+                    }
+                    CaveObjectType type = selectType(typeWeights, random, configuration.density);
+                    float minDepth = configuration.getMinDepth(type);
+                    float maxDepth = configuration.getMaxDepth(type);
+                    int end = locationFacet.getWorldLocationEnd(x, z);
+                    for (int location = locationFacet.getWorldLocationStart(x, z); location < end; location++) {
+
+                        float caveFloorHeight = locationFacet.getFloor(location);
+                        int caveFloorInt = TeraMath.floorToInt(caveFloorHeight);
+
+                        float caveCeilingHeight = locationFacet.getCeiling(location);
+                        int caveCeilingInt = TeraMath.floorToInt(caveCeilingHeight);
+
+                        // If this is a cave and if the floor and ceiling is in the region
+                        if (hasCave(caveFloorHeight) && caveFloorInt >= minY && caveFloorInt <= maxY
+                                && hasCave(caveCeilingHeight) && caveCeilingInt >= minY && caveCeilingInt <= maxY) {
+                            // Does it meet depth requirements
+                            float surface = surfaceHeightFacet.getWorld(x, z);
+                            int intSurface = TeraMath.floorToInt(surface);
+                            boolean isDeepEnough = caveFloorInt < (float) intSurface - minDepth
+                                    && caveFloorInt >= (float) intSurface - maxDepth;
+                            if (isDeepEnough) {
+                                placeObject(facet, caveFacet, densityFacet, type, x, z, caveFloorInt, caveCeilingInt);
+                            }
                         }
                     }
                 }
             }
         }
+        // Put the objects in order once, before the facet is shared with the rasterizers
+        facet.sort();
         region.setRegionFacet(CaveObjectFacet.class, facet);
+        metrics.record(start, worldRegion.getSizeX() * worldRegion.getSizeZ(), facet.getEntryCount(), 0);
+    }
+
+    private static void placeObject(CaveObjectFacet facet, CaveFacet caveFacet, DensityFacet densityFacet,
+                                    CaveObjectType type, int x, int z, int floor, int ceiling) {
+        switch (type) {
+            case FLOOR:
+                facet.setWorld(x, floor + 1, z, type);
+                break;
+            case CEILING:
+                facet.setWorld(x, ceiling - 1, z, type);
+                break;
+            case WALL:
+                // Just above the floor, like the other types
+                int y = floor + 1;
+                if (y < ceiling && facet.getWorldRegion().contains(x, y, z)
+                        && isNextToWall(caveFacet, densityFacet, x, y, z)) {
+                    facet.setWorld(x, y, z, type);
+                }
+                break;
+            default:
+                facet.setWorld(x, floor + 1, z, type);
+                facet.setWorld(x, ceiling - 1, z, type);
+        }
+    }
+
+    private static boolean isNextToWall(CaveFacet caveFacet, DensityFacet densityFacet, int x, int y, int z) {
+        return isSolid(caveFacet, densityFacet, x - 1, y, z) || isSolid(caveFacet, densityFacet, x + 1, y, z)
+                || isSolid(caveFacet, densityFacet, x, y, z - 1) || isSolid(caveFacet, densityFacet, x, y, z + 1);
+    }
+
+    /**
+     * Whether the block will be solid once the caves are carved out of the terrain. Positions outside of the facets
+     * are taken as not solid.
+     */
+    private static boolean isSolid(CaveFacet caveFacet, DensityFacet densityFacet, int x, int y, int z) {
+        return caveFacet.getWorldRegion().contains(x, y, z) && densityFacet.getWorldRegion().contains(x, y, z)
+                && densityFacet.getWorld(x, y, z) > 0 && !caveFacet.getWorld(x, y, z);
+    }
+
+    /**
+     * @return the running total of the configured weights, by {@link CaveObjectType} ordinal, leaving out the types
+     *         without any blocks
+     */
+    private float[] getTypeWeights(CaveObjectFacet facet) {
+        float[] weights = new float[CaveObjectType.values().length];
+        float total = 0;
+        for (CaveObjectType type : CaveObjectType.values()) {
+            if (!facet.getBlockList(type).isEmpty()) {
+                total += Math.max(0, configuration.getWeight(type));
+            }
+            weights[type.ordinal()] = total;
+        }
+        return weights;
+    }
+
+    /**
+     * @return the configured blocks of the given type, which are only read again once the configuration changes
+     */
+    private synchronized CaveObjectBlockList getBlockList(CaveObjectType type) {
+        String source = configuration.getBlocks(type);
+        if (blockLists[type.ordinal()] == null || !source.equals(blockListSources[type.ordinal()])) {
+            blockLists[type.ordinal()] = CaveObjectBlockList.parse(source);
+            blockListSources[type.ordinal()] = source;
+        }
+        return blockLists[type.ordinal()];
+    }
+
+    /**
+     * Computes a random value from 0 to 1 for each column of the region, ordered from x to z. Each depends only on
+     * the seed and the column's position, so the neighbouring regions get the same values for the columns they share.
+     */
+    private float[] getColumnRandoms(BlockRegion worldRegion, CaveScratch scratch) {
+        float[] randoms = scratch.getFloats(worldRegion.getSizeX() * worldRegion.getSizeZ());
+        int column = 0;
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            long zHash = seed ^ z * 0xC2B2AE3D27D4EB4FL;
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                long hash = zHash ^ x * 0x9E3779B97F4A7C15L;
+                hash = (hash ^ hash >>> 30) * 0xBF58476D1CE4E5B9L;
+                hash = (hash ^ hash >>> 27) * 0x94D049BB133111EBL;
+                hash ^= hash >>> 31;
+                // The top 24 bits, which a float holds exactly
+                randoms[column++] = (hash >>> 40) * 0x1.0p-24f;
+            }
+        }
+        return randoms;
+    }
+
+    /**
+     * Picks the type of the objects of a column which gets objects.
+     *
+     * @param typeWeights the running total of the weights by type, see {@link #getTypeWeights}, which must be
+     *                    positive in the end
+     * @param random the column's random value, which is below {@code density}, though rounding may still bring it
+     *               to the end of the total weight
+     * @return the type within whose share of the total weight the random value falls
+     */
+    static CaveObjectType selectType(float[] typeWeights, float random, float density) {
+        float target = random / density * typeWeights[typeWeights.length - 1];
+        for (int i = 0; i < typeWeights.length; i++) {
+            if (target < typeWeights[i]) {
+                return CaveObjectType.values()[i];
+            }
+        }
+        // Rounding can make a random value just below the density reach the total weight, so fall back on the last
+        // type with a weight rather than the last type
+        int last = typeWeights.length - 1;
+        while (last > 0 && typeWeights[last] <= typeWeights[last - 1]) {
+            last--;
+        }
+        return CaveObjectType.values()[last];
     }
 
     private boolean hasCave(float caveFloor) {
@@ -92,6 +260,17 @@ public class CaveObjectProvider implements ConfigurableFacetProvider, FacetProvi
     @Override
     public void setConfiguration(Component configuration) {
         this.configuration = (CaveObjectConfiguration) configuration;
+        updateCaveReuse();
+    }
+
+    /**
+     * Tells {@link CaveFacetProvider} whether to remember the caves of this world, so that previewing it again after
+     * changing the objects only runs the providers from here on.
+     */
+    private void updateCaveReuse() {
+        if (seeded) {
+            CaveFacetProvider.setRememberRegions(worldSeed, configuration.reuseCaves);
+        }
     }
 
     public static class CaveObjectConfiguration implements Component<CaveObjectConfiguration> {
@@ -100,13 +279,150 @@ public class CaveObjectProvider implements ConfigurableFacetProvider, FacetProvi
         public float density = 0.06f;
 
         @Range(min = 0, max = 250f, increment = 1f, precision = 0,
-                description = "The minimum distance below the surface before objects start to appear")
+                description = "The minimum distance below the surface before torches start to appear")
         public float minDepth = 5f;
 
+        @Range(min = 0, max = 10000f, increment = 1f, precision = 0,
+                description = "The maximum distance below the surface at which torches appear")
+        public float maxDepth = 10000f;
+
+        @Range(min = 0, max = 10f, increment = 0.1f, precision = 1,
+                description = "How often torches are placed on both the floor and the ceiling")
+        public float defaultWeight = 1f;
+
+        @TextField(description = "The blocks placed on both the floor and the ceiling: block URIs, each optionally "
+                + "followed by * and how often it is chosen")
+        public String defaultBlocks = "CoreAssets:Torch";
+
+        @Range(min = 0, max = 10f, increment = 0.1f, precision = 1,
+                description = "How often mushrooms are placed on the floor")
+        public float floorWeight = 0f;
+
+        @Range(min = 0, max = 250f, increment = 1f, precision = 0,
+                description = "The minimum distance below the surface before mushrooms start to appear")
+        public float floorMinDepth = 5f;
+
+        @Range(min = 0, max = 10000f, increment = 1f, precision = 0,
+                description = "The maximum distance below the surface at which mushrooms appear")
+        public float floorMaxDepth = 10000f;
+
+        @TextField(description = "The blocks placed on the floor")
+        public String floorBlocks = "CoreAssets:BrownShroom*4, CoreAssets:RedShroom*2, CoreAssets:BigBrownShroom";
+
+        @Range(min = 0, max = 10f, increment = 0.1f, precision = 1,
+                description = "How often loose rock is placed on the ceiling")
+        public float ceilingWeight = 0f;
+
+        @Range(min = 0, max = 250f, increment = 1f, precision = 0,
+                description = "The minimum distance below the surface before loose rock starts to appear")
+        public float ceilingMinDepth = 5f;
+
+        @Range(min = 0, max = 10000f, increment = 1f, precision = 0,
+                description = "The maximum distance below the surface at which loose rock appears")
+        public float ceilingMaxDepth = 10000f;
+
+        @TextField(description = "The blocks placed on the ceiling")
+        public String ceilingBlocks = "CoreAssets:Cobblestone*3, CoreAssets:Gravel";
+
+        @Range(min = 0, max = 10f, increment = 0.1f, precision = 1,
+                description = "How often torches are placed next to a wall")
+        public float wallWeight = 0f;
+
+        @Range(min = 0, max = 250f, increment = 1f, precision = 0,
+                description = "The minimum distance below the surface before torches on walls start to appear")
+        public float wallMinDepth = 5f;
+
+        @Range(min = 0, max = 10000f, increment = 1f, precision = 0,
+                description = "The maximum distance below the surface at which torches on walls appear")
+        public float wallMaxDepth = 10000f;
+
+        @TextField(description = "The blocks placed next to a wall")
+        public String wallBlocks = "CoreAssets:Torch";
+
+        @Checkbox(description = "Remember the caves of recent regions, so that previewing the world again after "
+                + "changing these settings doesn't generate the caves again; best left off while playing")
+        public boolean reuseCaves;
+
+        float getWeight(CaveObjectType type) {
+            switch (type) {
+                case FLOOR:
+                    return floorWeight;
+                case CEILING:
+                    return ceilingWeight;
+                case WALL:
+                    return wallWeight;
+                default:
+                    return defaultWeight;
+            }
+        }
+
+        float getMinDepth(CaveObjectType type) {
+            switch (type) {
+                case FLOOR:
+                    return floorMinDepth;
+                case CEILING:
+                    return ceilingMinDepth;
+                case WALL:
+                    return wallMinDepth;
+                default:
+                    return minDepth;
+            }
+        }
+
+        float getMaxDepth(CaveObjectType type) {
+            switch (type) {
+                case FLOOR:
+                    return floorMaxDepth;
+                case CEILING:
+                    return ceilingMaxDepth;
+                case WALL:
+                    return wallMaxDepth;
+                default:
+                    return maxDepth;
+            }
+        }
+
+        /**
+         * @return the blocks of the given type, as a {@link CaveObjectBlockList} is written
+         */
+        String getBlocks(CaveObjectType type) {
+            String blocks;
+            switch (type) {
+                case FLOOR:
+                    blocks = floorBlocks;
+                    break;
+                case CEILING:
+                    blocks = ceilingBlocks;
+                    break;
+                case WALL:
+                    blocks = wallBlocks;
+                    break;
+                default:
+                    blocks = defaultBlocks;
+            }
+            return blocks != null ? blocks : "";
+        }
+
         @Override
         public void copyFrom(CaveObjectConfiguration other) {
             this.density = other.density;
             this.minDepth = other.minDepth;
+            this.maxDepth = other.maxDepth;
+            this.defaultWeight = other.defaultWeight;
+            this.defaultBlocks = other.defaultBlocks;
+            this.floorWeight = other.floorWeight;
+            this.floorMinDepth = other.floorMinDepth;
+            this.floorMaxDepth = other.floorMaxDepth;
+            this.floorBlocks = other.floorBlocks;
+            this.ceilingWeight = other.ceilingWeight;
+            this.ceilingMinDepth = other.ceilingMinDepth;
+            this.ceilingMaxDepth = other.ceilingMaxDepth;
+            this.ceilingBlocks = other.ceilingBlocks;
+            this.wallWeight = other.wallWeight;
+            this.wallMinDepth = other.wallMinDepth;
+            this.wallMaxDepth = other.wallMaxDepth;
+            this.wallBlocks = other.wallBlocks;
+            this.reuseCaves = other.reuseCaves;
         }
     }
 
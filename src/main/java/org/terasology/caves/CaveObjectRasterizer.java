@@ -3,19 +3,22 @@
 
 package org.terasology.caves;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
-import org.joml.Vector3ic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.terasology.engine.registry.CoreRegistry;
 import org.terasology.engine.world.block.Block;
 import org.terasology.engine.world.block.BlockManager;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.block.family.BlockFamily;
 import org.terasology.engine.world.chunks.Chunk;
+import org.terasology.engine.world.chunks.Chunks;
 import org.terasology.engine.world.generation.Region;
 import org.terasology.engine.world.generation.RequiresRasterizer;
 import org.terasology.engine.world.generation.WorldRasterizerPlugin;
 
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * An example rasterizer for placing objects inside caves using {@link CaveLocationFacet}.
@@ -23,37 +26,111 @@ import java.util.Map;
 //@RegisterPlugin /* uncomment to enable */
 @RequiresRasterizer(CaveRasterizer.class)
 public class CaveObjectRasterizer implements WorldRasterizerPlugin {
+    private static final Logger logger = LoggerFactory.getLogger(CaveObjectRasterizer.class);
 
-    private final Map<CaveObjectType, List<Block>> typeListEnumMap = Maps.newEnumMap(CaveObjectType.class);
+    private final CaveMetrics metrics = CaveMetrics.get(CaveObjectRasterizer.class);
 
-    private BlockManager blockManager;
+    private static final String FALLBACK_BLOCK_URI = "CoreAssets:Torch";
+
+    /**
+     * The blocks to choose from for each object type when the facet doesn't say, by ordinal.
+     */
+    private final CaveObjectBlockList[] defaultBlockLists = new CaveObjectBlockList[CaveObjectType.values().length];
+
+    /**
+     * The block of each URI looked up so far, as the configured lists may name blocks the defaults don't. Each URI is
+     * only looked up once, so a missing block is only warned about once.
+     */
+    private final Map<String, Block> blocks = new ConcurrentHashMap<>();
+
+    private Block air;
+    private Function<String, Block> blockLookup;
 
     @Override
     public void initialize() {
-        blockManager = CoreRegistry.get(BlockManager.class);
+        BlockManager blockManager = CoreRegistry.get(BlockManager.class);
+        initialize(blockManager.getBlock(BlockManager.AIR_ID), uri -> {
+            BlockFamily family = blockManager.getBlockFamily(uri);
+            if (family == null) {
+                logger.warn("Cave object block '{}' doesn't exist, placing {} instead", uri, FALLBACK_BLOCK_URI);
+                family = blockManager.getBlockFamily(FALLBACK_BLOCK_URI);
+            }
+            return family.getArchetypeBlock();
+        });
+    }
 
-        typeListEnumMap.put(CaveObjectType.DEFAULT, ImmutableList.<Block>of(
-                blockManager.getBlockFamily("CoreAssets:Torch").getArchetypeBlock()));
+    /**
+     * Sets up the blocks with the given lookup, so that the rasterizer can be run without a block manager.
+     *
+     * @param airBlock the block which objects may replace
+     * @param blockLookup gives the block to place for each block URI of the object types
+     */
+    void initialize(Block airBlock, Function<String, Block> blockLookup) {
+        air = airBlock;
+        this.blockLookup = blockLookup;
+        blocks.clear();
+        CaveObjectProvider.CaveObjectConfiguration defaults = new CaveObjectProvider.CaveObjectConfiguration();
+        for (CaveObjectType type : CaveObjectType.values()) {
+            CaveObjectBlockList blockList = CaveObjectBlockList.parse(defaults.getBlocks(type));
+            defaultBlockLists[type.ordinal()] = blockList;
+            for (int i = 0; i < blockList.size(); i++) {
+                getBlock(blockList.getBlockUri(i));
+            }
+        }
     }
 
     @Override
     public void generateChunk(Chunk chunk, Region chunkRegion) {
-
         CaveObjectFacet facet = chunkRegion.getFacet(CaveObjectFacet.class);
-        Block air = blockManager.getBlock(BlockManager.AIR_ID);
+        long start = CaveMetrics.start();
+        int entryCount = facet.getEntryCount();
+        int objectCount = 0;
+        BlockRegion chunkWorldRegion = chunkRegion.getRegion();
 
-        Map<Vector3ic, CaveObjectType> entries = facet.getRelativeEntries();
-        for (Vector3ic pos : entries.keySet()) {
+        for (int i = 0; i < entryCount; i++) {
+            int x = facet.getEntryX(i);
+            int y = facet.getEntryY(i);
+            int z = facet.getEntryZ(i);
+            // Objects in the border of the facet belong to the neighbouring chunks
+            if (x < 0 || y < 0 || z < 0 || x >= Chunks.SIZE_X || y >= Chunks.SIZE_Y || z >= Chunks.SIZE_Z) {
+                continue;
+            }
 
             // check if some other rasterizer has already placed something here
-            if (chunk.getBlock(pos).equals(air)) {
-
-                CaveObjectType type = entries.get(pos);
-                List<Block> list = typeListEnumMap.get(type);
-                int blockIdx = 0;
-                Block block = list.get(blockIdx);
-                chunk.setBlock(pos, block);
+            if (chunk.getBlock(x, y, z).equals(air)) {
+                CaveObjectType type = facet.getEntryType(i);
+                CaveObjectBlockList blockList = facet.getBlockList(type);
+                if (blockList == null) {
+                    blockList = defaultBlockLists[type.ordinal()];
+                }
+                if (blockList.isEmpty()) {
+                    continue;
+                }
+                int variant = selectVariant(blockList, chunkWorldRegion.minX() + x,
+                        chunkWorldRegion.minY() + y, chunkWorldRegion.minZ() + z);
+                chunk.setBlock(x, y, z, getBlock(blockList.getBlockUri(variant)));
+                objectCount++;
             }
         }
+        metrics.record(start, entryCount, objectCount, 0);
+    }
+
+    /**
+     * Picks one of the blocks of a type, using a hash of the world position so that it doesn't depend on the order
+     * in which the chunks are generated.
+     */
+    private static int selectVariant(CaveObjectBlockList blockList, int x, int y, int z) {
+        if (blockList.size() == 1) {
+            return 0;
+        }
+        int hash = x * 73856093 ^ y * 19349663 ^ z * 83492791;
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return blockList.select(Math.floorMod(hash, blockList.getTotalWeight()));
+    }
+
+    private Block getBlock(String blockUri) {
+        return blocks.computeIfAbsent(blockUri, blockLookup);
     }
 }
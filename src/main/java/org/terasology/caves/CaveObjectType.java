@@ -4,8 +4,25 @@
 package org.terasology.caves;
 
 /**
- * An example object type for use with {@link CaveObjectFacet}.
+ * The kinds of objects {@link CaveObjectProvider} places in caves. How often each is placed, at which depths and
+ * the blocks {@link CaveObjectRasterizer} chooses from for it are set in the
+ * {@link CaveObjectProvider.CaveObjectConfiguration}.
  */
 public enum CaveObjectType {
-    DEFAULT
+    /**
+     * An object on both the floor and the ceiling, torches by default.
+     */
+    DEFAULT,
+    /**
+     * An object on the floor, mushrooms by default.
+     */
+    FLOOR,
+    /**
+     * An object hanging from the ceiling, loose rock by default.
+     */
+    CEILING,
+    /**
+     * An object next to a wall, just above the floor, a torch by default.
+     */
+    WALL
 }
@@ -0,0 +1,402 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.joml.Vector3i;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+import org.terasology.engine.world.generation.facets.base.BaseFacet3D;
+
+import java.util.Arrays;
+
+/**
+ * A coarse summary of the {@link CaveFacet}, to find out whether a part of the region has any caves without looking
+ * at each position.
+ *
+ * <p>The world is split into cubic cells of {@value #FINE_CELL_SIZE} and of {@value #COARSE_CELL_SIZE} blocks,
+ * aligned to the world origin, so cell {@code (cx, cy, cz)} covers the positions {@code cx * size} to
+ * {@code cx * size + size - 1} and so on. For each cell, the facet stores whether it has any caves (occupied) and
+ * whether it is all caves (full). Both only count the part of the cell within the region.</p>
+ *
+ * <p>The queries go from the coarse cells to the fine ones, and only look at the cave facet where a fine cell is
+ * occupied but not full.</p>
+ */
+public class CaveOccupancyFacet extends BaseFacet3D {
+    public static final int FINE_CELL_SIZE = 4;
+    public static final int COARSE_CELL_SIZE = 16;
+
+    /**
+     * The largest distance {@link #findNearestWorldCave} searches up to, so that squared distances fit in an int.
+     */
+    public static final int MAX_SEARCH_DISTANCE = 46340;
+
+    private final CaveFacet caveFacet;
+    private final Cells fine;
+    private final Cells coarse;
+
+    /**
+     * @param caveFacet the caves to summarise, which must cover the facet's region and not change any more
+     */
+    public CaveOccupancyFacet(BlockRegion targetRegion, Border3D border, CaveFacet caveFacet) {
+        super(targetRegion, border);
+        BlockRegion worldRegion = getWorldRegion();
+        BlockRegion caveRegion = caveFacet.getWorldRegion();
+        if (worldRegion.minX() < caveRegion.minX() || worldRegion.minY() < caveRegion.minY()
+                || worldRegion.minZ() < caveRegion.minZ() || worldRegion.maxX() > caveRegion.maxX()
+                || worldRegion.maxY() > caveRegion.maxY() || worldRegion.maxZ() > caveRegion.maxZ()) {
+            throw new IllegalArgumentException(String.format("Cave facet region %s doesn't cover region %s",
+                    caveRegion.toString(), worldRegion.toString()));
+        }
+        this.caveFacet = caveFacet;
+        fine = new Cells(worldRegion, FINE_CELL_SIZE);
+        coarse = new Cells(worldRegion, COARSE_CELL_SIZE);
+    }
+
+    /**
+     * @return the caves this facet summarises
+     */
+    public CaveFacet getCaveFacet() {
+        return caveFacet;
+    }
+
+    /**
+     * @param cellSize {@link #FINE_CELL_SIZE} or {@link #COARSE_CELL_SIZE}
+     * @return whether the given cell has any caves
+     */
+    public boolean isCellOccupied(int cellSize, int cellX, int cellY, int cellZ) {
+        return getCells(cellSize).isOccupied(cellX, cellY, cellZ);
+    }
+
+    /**
+     * @param cellSize {@link #FINE_CELL_SIZE} or {@link #COARSE_CELL_SIZE}
+     * @return whether all of the given cell within the region is caves
+     */
+    public boolean isCellFull(int cellSize, int cellX, int cellY, int cellZ) {
+        return getCells(cellSize).isFull(cellX, cellY, cellZ);
+    }
+
+    /**
+     * @param cellSize {@link #FINE_CELL_SIZE} or {@link #COARSE_CELL_SIZE}
+     */
+    public void setCell(int cellSize, int cellX, int cellY, int cellZ, boolean occupied, boolean full) {
+        getCells(cellSize).set(cellX, cellY, cellZ, occupied, full);
+    }
+
+    /**
+     * @return whether there are no caves in the given world region, which has to be within the facet's region
+     */
+    public boolean isWorldBoxEmpty(BlockRegion box) {
+        return isWorldBoxEmpty(box.minX(), box.minY(), box.minZ(), box.maxX(), box.maxY(), box.maxZ());
+    }
+
+    /**
+     * @return whether there are no caves between the given world positions, which have to be within the facet's
+     *         region
+     */
+    public boolean isWorldBoxEmpty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        BlockRegion worldRegion = getWorldRegion();
+        if (minX < worldRegion.minX() || minY < worldRegion.minY() || minZ < worldRegion.minZ()
+                || maxX > worldRegion.maxX() || maxY > worldRegion.maxY() || maxZ > worldRegion.maxZ()) {
+            throw new IllegalArgumentException(String.format(
+                    "Out of bounds: (%d, %d, %d) to (%d, %d, %d) for region %s",
+                    minX, minY, minZ, maxX, maxY, maxZ, worldRegion.toString()));
+        }
+        int[] box = {minX, minY, minZ, maxX, maxY, maxZ};
+        int[] coarseBox = coarse.getCellsWithin(box, box);
+        for (int cz = coarseBox[2]; cz <= coarseBox[5]; cz++) {
+            for (int cy = coarseBox[1]; cy <= coarseBox[4]; cy++) {
+                for (int cx = coarseBox[0]; cx <= coarseBox[3]; cx++) {
+                    if (!coarse.isOccupied(cx, cy, cz)) {
+                        continue;
+                    }
+                    if (coarse.isFull(cx, cy, cz) || coarse.isWithin(cx, cy, cz, box)) {
+                        return false;
+                    }
+                    int[] fineBox = fine.getCellsWithin(coarse.getBounds(cx, cy, cz), box);
+                    if (!isFineBoxEmpty(fineBox, box)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the cave closest to the given world position within the facet's region, by straight line distance. Of
+     * several caves at the same distance, any one may be returned.
+     *
+     * @param maxDistance how far to search, up to {@link #MAX_SEARCH_DISTANCE}
+     * @param dest set to the position of the cave, if there is one
+     * @return dest, or null if there is no cave within the given distance
+     */
+    public Vector3i findNearestWorldCave(int x, int y, int z, int maxDistance, Vector3i dest) {
+        if (maxDistance < 0 || maxDistance > MAX_SEARCH_DISTANCE) {
+            throw new IllegalArgumentException("Search distance out of range: " + maxDistance);
+        }
+        int[] point = {x, y, z};
+        Nearest nearest = new Nearest(maxDistance);
+        long[] coarseOrder = coarse.sortByDistance(coarse.getAllCells(), point, nearest.distanceSquared);
+        for (long entry : coarseOrder) {
+            if ((int) (entry >>> 32) >= nearest.distanceSquared) {
+                break;
+            }
+            int[] cell = coarse.getCell((int) entry);
+            int[] bounds = coarse.getBounds(cell[0], cell[1], cell[2]);
+            if (coarse.isFull(cell[0], cell[1], cell[2])) {
+                nearest.offerClosestIn(bounds, point);
+                continue;
+            }
+            int[] fineCells = fine.getCellsWithin(bounds, bounds);
+            long[] fineOrder = fine.sortByDistance(fineCells, point, nearest.distanceSquared);
+            for (long fineEntry : fineOrder) {
+                if ((int) (fineEntry >>> 32) >= nearest.distanceSquared) {
+                    break;
+                }
+                int[] fineCell = fine.getCell((int) fineEntry);
+                int[] fineBounds = fine.getBounds(fineCell[0], fineCell[1], fineCell[2]);
+                if (fine.isFull(fineCell[0], fineCell[1], fineCell[2])) {
+                    nearest.offerClosestIn(fineBounds, point);
+                } else {
+                    offerCaves(fineBounds, point, nearest);
+                }
+            }
+        }
+        return nearest.found ? dest.set(nearest.x, nearest.y, nearest.z) : null;
+    }
+
+    private boolean isFineBoxEmpty(int[] fineBox, int[] box) {
+        for (int cz = fineBox[2]; cz <= fineBox[5]; cz++) {
+            for (int cy = fineBox[1]; cy <= fineBox[4]; cy++) {
+                for (int cx = fineBox[0]; cx <= fineBox[3]; cx++) {
+                    if (!fine.isOccupied(cx, cy, cz)) {
+                        continue;
+                    }
+                    if (fine.isFull(cx, cy, cz) || fine.isWithin(cx, cy, cz, box)) {
+                        return false;
+                    }
+                    int[] bounds = fine.getBounds(cx, cy, cz);
+                    int bottom = Math.max(bounds[1], box[1]);
+                    long mask = (1L << (Math.min(bounds[4], box[4]) - bottom + 1)) - 1;
+                    for (int z = Math.max(bounds[2], box[2]); z <= Math.min(bounds[5], box[5]); z++) {
+                        for (int x = Math.max(bounds[0], box[0]); x <= Math.min(bounds[3], box[3]); x++) {
+                            if ((caveFacet.getWorldColumnBits(x, z, bottom) & mask) != 0) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void offerCaves(int[] bounds, int[] point, Nearest nearest) {
+        long mask = (1L << (bounds[4] - bounds[1] + 1)) - 1;
+        for (int z = bounds[2]; z <= bounds[5]; z++) {
+            for (int x = bounds[0]; x <= bounds[3]; x++) {
+                long bits = caveFacet.getWorldColumnBits(x, z, bounds[1]) & mask;
+                while (bits != 0) {
+                    int y = bounds[1] + Long.numberOfTrailingZeros(bits);
+                    nearest.offer(x, y, z, point);
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    private Cells getCells(int cellSize) {
+        switch (cellSize) {
+            case FINE_CELL_SIZE:
+                return fine;
+            case COARSE_CELL_SIZE:
+                return coarse;
+            default:
+                throw new IllegalArgumentException("No cells of size " + cellSize);
+        }
+    }
+
+    private static long distanceSquared(int[] point, int[] bounds) {
+        long distanceSquared = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            long d = Math.max(0, Math.max(bounds[axis] - point[axis], point[axis] - bounds[axis + 3]));
+            distanceSquared += d * d;
+        }
+        return distanceSquared;
+    }
+
+    /**
+     * The closest cave found so far.
+     */
+    private static final class Nearest {
+        int x;
+        int y;
+        int z;
+        boolean found;
+        /**
+         * The squared distance of the closest cave found, or just beyond the search distance.
+         */
+        int distanceSquared;
+
+        Nearest(int maxDistance) {
+            distanceSquared = maxDistance * maxDistance + 1;
+        }
+
+        void offer(int caveX, int caveY, int caveZ, int[] point) {
+            long dx = caveX - point[0];
+            long dy = caveY - point[1];
+            long dz = caveZ - point[2];
+            long d = dx * dx + dy * dy + dz * dz;
+            if (d < distanceSquared) {
+                x = caveX;
+                y = caveY;
+                z = caveZ;
+                distanceSquared = (int) d;
+                found = true;
+            }
+        }
+
+        /**
+         * Offers the position closest to the point within the given bounds, which are all caves.
+         */
+        void offerClosestIn(int[] bounds, int[] point) {
+            offer(Math.max(bounds[0], Math.min(bounds[3], point[0])),
+                    Math.max(bounds[1], Math.min(bounds[4], point[1])),
+                    Math.max(bounds[2], Math.min(bounds[5], point[2])), point);
+        }
+    }
+
+    /**
+     * The occupied and full flags of the cells of one size, as bitsets.
+     */
+    private static final class Cells {
+        private final BlockRegion worldRegion;
+        private final int shift;
+        private final int minX;
+        private final int minY;
+        private final int minZ;
+        private final int sizeX;
+        private final int sizeY;
+        private final int sizeZ;
+        private final long[] occupied;
+        private final long[] full;
+
+        Cells(BlockRegion worldRegion, int cellSize) {
+            this.worldRegion = worldRegion;
+            shift = Integer.numberOfTrailingZeros(cellSize);
+            minX = worldRegion.minX() >> shift;
+            minY = worldRegion.minY() >> shift;
+            minZ = worldRegion.minZ() >> shift;
+            sizeX = (worldRegion.maxX() >> shift) - minX + 1;
+            sizeY = (worldRegion.maxY() >> shift) - minY + 1;
+            sizeZ = (worldRegion.maxZ() >> shift) - minZ + 1;
+            occupied = new long[(sizeX * sizeY * sizeZ + Long.SIZE - 1) / Long.SIZE];
+            full = new long[occupied.length];
+        }
+
+        boolean isOccupied(int cellX, int cellY, int cellZ) {
+            int index = getIndex(cellX, cellY, cellZ);
+            return (occupied[index >>> 6] & 1L << index) != 0;
+        }
+
+        boolean isFull(int cellX, int cellY, int cellZ) {
+            int index = getIndex(cellX, cellY, cellZ);
+            return (full[index >>> 6] & 1L << index) != 0;
+        }
+
+        void set(int cellX, int cellY, int cellZ, boolean isOccupied, boolean isFull) {
+            int index = getIndex(cellX, cellY, cellZ);
+            if (isOccupied) {
+                occupied[index >>> 6] |= 1L << index;
+            } else {
+                occupied[index >>> 6] &= ~(1L << index);
+            }
+            if (isFull) {
+                full[index >>> 6] |= 1L << index;
+            } else {
+                full[index >>> 6] &= ~(1L << index);
+            }
+        }
+
+        /**
+         * @return the world positions of the corners of the given cell, cut down to the region
+         */
+        int[] getBounds(int cellX, int cellY, int cellZ) {
+            int size = 1 << shift;
+            return new int[]{
+                Math.max(cellX << shift, worldRegion.minX()),
+                Math.max(cellY << shift, worldRegion.minY()),
+                Math.max(cellZ << shift, worldRegion.minZ()),
+                Math.min((cellX << shift) + size - 1, worldRegion.maxX()),
+                Math.min((cellY << shift) + size - 1, worldRegion.maxY()),
+                Math.min((cellZ << shift) + size - 1, worldRegion.maxZ())
+            };
+        }
+
+        /**
+         * @return whether the part of the given cell within the region is also within the box
+         */
+        boolean isWithin(int cellX, int cellY, int cellZ, int[] box) {
+            int[] bounds = getBounds(cellX, cellY, cellZ);
+            return bounds[0] >= box[0] && bounds[1] >= box[1] && bounds[2] >= box[2]
+                    && bounds[3] <= box[3] && bounds[4] <= box[4] && bounds[5] <= box[5];
+        }
+
+        /**
+         * @return the corners of the cells overlapping both boxes of world positions
+         */
+        int[] getCellsWithin(int[] a, int[] b) {
+            return new int[]{
+                Math.max(a[0], b[0]) >> shift, Math.max(a[1], b[1]) >> shift, Math.max(a[2], b[2]) >> shift,
+                Math.min(a[3], b[3]) >> shift, Math.min(a[4], b[4]) >> shift, Math.min(a[5], b[5]) >> shift
+            };
+        }
+
+        int[] getAllCells() {
+            return new int[]{minX, minY, minZ, minX + sizeX - 1, minY + sizeY - 1, minZ + sizeZ - 1};
+        }
+
+        int[] getCell(int index) {
+            return new int[]{minX + index % sizeX, minY + index / sizeX % sizeY, minZ + index / sizeX / sizeY};
+        }
+
+        /**
+         * Orders the occupied cells of the given range which are closer to the point than the given squared
+         * distance.
+         *
+         * @return the cells, with their squared distance in the upper and their index in the lower half of each entry
+         */
+        long[] sortByDistance(int[] cells, int[] point, int maxDistanceSquared) {
+            int cellCount = (cells[3] - cells[0] + 1) * (cells[4] - cells[1] + 1) * (cells[5] - cells[2] + 1);
+            long[] entries = new long[cellCount];
+            int count = 0;
+            for (int cz = cells[2]; cz <= cells[5]; cz++) {
+                for (int cy = cells[1]; cy <= cells[4]; cy++) {
+                    for (int cx = cells[0]; cx <= cells[3]; cx++) {
+                        if (!isOccupied(cx, cy, cz)) {
+                            continue;
+                        }
+                        long distanceSquared = distanceSquared(point, getBounds(cx, cy, cz));
+                        if (distanceSquared < maxDistanceSquared) {
+                            entries[count++] = distanceSquared << 32 | getIndex(cx, cy, cz);
+                        }
+                    }
+                }
+            }
+            Arrays.sort(entries, 0, count);
+            return Arrays.copyOf(entries, count);
+        }
+
+        private int getIndex(int cellX, int cellY, int cellZ) {
+            int x = cellX - minX;
+            int y = cellY - minY;
+            int z = cellZ - minZ;
+            if (x < 0 || x >= sizeX || y < 0 || y >= sizeY || z < 0 || z >= sizeZ) {
+                throw new IllegalArgumentException(String.format("Out of bounds: cell (%d, %d, %d) for region %s",
+                        cellX, cellY, cellZ, worldRegion.toString()));
+            }
+            return x + sizeX * (y + sizeY * z);
+        }
+    }
+}
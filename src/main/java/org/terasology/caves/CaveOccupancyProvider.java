@@ -0,0 +1,146 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Facet;
+import org.terasology.engine.world.generation.FacetProviderPlugin;
+import org.terasology.engine.world.generation.GeneratingRegion;
+import org.terasology.engine.world.generation.Produces;
+import org.terasology.engine.world.generation.Requires;
+import org.terasology.engine.world.generator.plugin.RegisterPlugin;
+
+/**
+ * Summarises the caves of the region into cells, see {@link CaveOccupancyFacet}.
+ *
+ * <p>This runs on the finished {@link CaveFacet}, after caves have been removed by the other providers, rather than
+ * in {@link CaveFacetProvider}. The fine cells are found from the column words, 16 cells of a column at a time, and
+ * the coarse cells from the fine ones.</p>
+ */
+@RegisterPlugin
+@Produces(CaveOccupancyFacet.class)
+@Requires(@Facet(CaveFacet.class))
+public class CaveOccupancyProvider implements FacetProviderPlugin {
+    private static final int FINE_SHIFT = Integer.numberOfTrailingZeros(CaveOccupancyFacet.FINE_CELL_SIZE);
+    private static final int COARSE_SHIFT = Integer.numberOfTrailingZeros(CaveOccupancyFacet.COARSE_CELL_SIZE);
+    private static final int FINE_CELLS_PER_WORD = Long.SIZE / CaveOccupancyFacet.FINE_CELL_SIZE;
+    private static final long FINE_CELL_MASK = (1L << CaveOccupancyFacet.FINE_CELL_SIZE) - 1;
+
+    private final CaveMetrics metrics = CaveMetrics.get(CaveOccupancyProvider.class);
+
+    @Override
+    public void setSeed(long seed) {
+    }
+
+    @Override
+    public void process(GeneratingRegion region) {
+        CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+        long start = CaveMetrics.start();
+        CaveOccupancyFacet facet = new CaveOccupancyFacet(region.getRegion(),
+                region.getBorderForFacet(CaveOccupancyFacet.class), caveFacet);
+
+        int occupiedCells = 0;
+        // Without any caves, every cell is already unoccupied
+        if (!caveFacet.isEmpty()) {
+            occupiedCells = findFineCells(caveFacet, facet);
+            findCoarseCells(facet);
+        }
+        region.setRegionFacet(CaveOccupancyFacet.class, facet);
+        metrics.record(start, facet.getWorldRegion().volume(), occupiedCells, 0);
+    }
+
+    /**
+     * Sets the fine cells from the columns of the cave facet.
+     *
+     * @return the number of occupied fine cells
+     */
+    private static int findFineCells(CaveFacet caveFacet, CaveOccupancyFacet facet) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        int minCellY = worldRegion.minY() >> FINE_SHIFT;
+        int maxCellY = worldRegion.maxY() >> FINE_SHIFT;
+        int occupiedCells = 0;
+        for (int cellZ = worldRegion.minZ() >> FINE_SHIFT; cellZ <= worldRegion.maxZ() >> FINE_SHIFT; cellZ++) {
+            int minZ = Math.max(cellZ << FINE_SHIFT, worldRegion.minZ());
+            int maxZ = Math.min(((cellZ + 1) << FINE_SHIFT) - 1, worldRegion.maxZ());
+            for (int cellX = worldRegion.minX() >> FINE_SHIFT; cellX <= worldRegion.maxX() >> FINE_SHIFT; cellX++) {
+                int minX = Math.max(cellX << FINE_SHIFT, worldRegion.minX());
+                int maxX = Math.min(((cellX + 1) << FINE_SHIFT) - 1, worldRegion.maxX());
+                for (int wordCellY = minCellY; wordCellY <= maxCellY; wordCellY += FINE_CELLS_PER_WORD) {
+                    // Combine the columns of the cells, so each group of bits tells whether a cell is occupied or full
+                    int bottom = wordCellY << FINE_SHIFT;
+                    long inRegion = getRegionBits(worldRegion, bottom);
+                    long occupied = 0;
+                    long full = -1L;
+                    for (int z = minZ; z <= maxZ; z++) {
+                        for (int x = minX; x <= maxX; x++) {
+                            long bits = caveFacet.getWorldColumnBits(x, z, bottom) & inRegion;
+                            occupied |= bits;
+                            full &= bits | ~inRegion;
+                        }
+                    }
+                    for (int i = 0; i < FINE_CELLS_PER_WORD && wordCellY + i <= maxCellY; i++) {
+                        int shift = i * CaveOccupancyFacet.FINE_CELL_SIZE;
+                        boolean isOccupied = (occupied >>> shift & FINE_CELL_MASK) != 0;
+                        boolean isFull = (full >>> shift & FINE_CELL_MASK) == FINE_CELL_MASK;
+                        facet.setCell(CaveOccupancyFacet.FINE_CELL_SIZE, cellX, wordCellY + i, cellZ,
+                                isOccupied, isFull);
+                        if (isOccupied) {
+                            occupiedCells++;
+                        }
+                    }
+                }
+            }
+        }
+        return occupiedCells;
+    }
+
+    /**
+     * Sets each coarse cell from the fine cells within it.
+     */
+    private static void findCoarseCells(CaveOccupancyFacet facet) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        int ratioShift = COARSE_SHIFT - FINE_SHIFT;
+        for (int cellZ = worldRegion.minZ() >> COARSE_SHIFT; cellZ <= worldRegion.maxZ() >> COARSE_SHIFT; cellZ++) {
+            for (int cellY = worldRegion.minY() >> COARSE_SHIFT; cellY <= worldRegion.maxY() >> COARSE_SHIFT; cellY++) {
+                for (int cellX = worldRegion.minX() >> COARSE_SHIFT; cellX <= worldRegion.maxX() >> COARSE_SHIFT;
+                     cellX++) {
+                    boolean occupied = false;
+                    boolean full = true;
+                    int minFineZ = Math.max(cellZ << ratioShift, worldRegion.minZ() >> FINE_SHIFT);
+                    int maxFineZ = Math.min(((cellZ + 1) << ratioShift) - 1, worldRegion.maxZ() >> FINE_SHIFT);
+                    int minFineY = Math.max(cellY << ratioShift, worldRegion.minY() >> FINE_SHIFT);
+                    int maxFineY = Math.min(((cellY + 1) << ratioShift) - 1, worldRegion.maxY() >> FINE_SHIFT);
+                    int minFineX = Math.max(cellX << ratioShift, worldRegion.minX() >> FINE_SHIFT);
+                    int maxFineX = Math.min(((cellX + 1) << ratioShift) - 1, worldRegion.maxX() >> FINE_SHIFT);
+                    for (int z = minFineZ; z <= maxFineZ; z++) {
+                        for (int y = minFineY; y <= maxFineY; y++) {
+                            for (int x = minFineX; x <= maxFineX; x++) {
+                                occupied |= facet.isCellOccupied(CaveOccupancyFacet.FINE_CELL_SIZE, x, y, z);
+                                full &= facet.isCellFull(CaveOccupancyFacet.FINE_CELL_SIZE, x, y, z);
+                            }
+                        }
+                    }
+                    facet.setCell(CaveOccupancyFacet.COARSE_CELL_SIZE, cellX, cellY, cellZ, occupied, full);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a bit for each of the 64 positions of a column from the given world y coordinate, set for those within
+     *         the region
+     */
+    private static long getRegionBits(BlockRegion worldRegion, int bottom) {
+        long bits = -1L;
+        int below = worldRegion.minY() - bottom;
+        if (below > 0) {
+            bits = below >= Long.SIZE ? 0 : bits << below;
+        }
+        int above = bottom + Long.SIZE - 1 - worldRegion.maxY();
+        if (above > 0) {
+            bits = above >= Long.SIZE ? 0 : bits & -1L >>> above;
+        }
+        return bits;
+    }
+}
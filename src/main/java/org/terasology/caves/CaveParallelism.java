@@ -0,0 +1,148 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Optionally spreads the work on a single region over several threads, for servers which have idle cores while
+ * generating a lot of chunks at once.
+ *
+ * <p>This is disabled by default, so each region is processed entirely by the thread that called the provider. To
+ * enable it, use the {@code caveParallelism} console command or call {@link #setParallelism(int)} with the maximum
+ * number of threads to use. All providers share one pool of that size. This is a setting of the server rather than
+ * of the world, so it isn't part of any provider's configuration, and it is kept when worlds are created or their
+ * configuration is changed.</p>
+ *
+ * <p>If the module isn't allowed to start threads, which depends on the permissions the engine grants it, this falls
+ * back to processing each region on one thread.</p>
+ */
+public final class CaveParallelism {
+    /**
+     * Slices are never made smaller than this, as the overhead of handing them to another thread would outweigh the
+     * gain.
+     */
+    private static final int MIN_SLICE_SIZE = 4;
+
+    private static final Logger logger = LoggerFactory.getLogger(CaveParallelism.class);
+
+    private static int parallelism = 1;
+    private static ForkJoinPool pool;
+
+    private CaveParallelism() {
+    }
+
+    /**
+     * Processes one slice of a range, from {@code from} to {@code to} inclusive.
+     */
+    @FunctionalInterface
+    public interface SliceTask {
+        void process(int slice, int from, int to);
+    }
+
+    /**
+     * @return the maximum number of threads used for a single region, 1 if this is disabled
+     */
+    public static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Changes the maximum number of threads used for a single region. 1 disables splitting regions.
+     */
+    public static synchronized void setParallelism(int newParallelism) {
+        if (newParallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, not " + newParallelism);
+        }
+        if (newParallelism != parallelism) {
+            logger.info("Using up to {} threads per region for caves", newParallelism);
+            parallelism = newParallelism;
+            if (pool != null) {
+                // Regions still being processed may hold on to the old pool: the slices it already has are still
+                // processed, and those handed to it afterwards are processed by the calling thread instead
+                pool.shutdown();
+                pool = null;
+            }
+        }
+    }
+
+    /**
+     * Splits the range from {@code from} to {@code to} (inclusive) into consecutive slices and processes them, in
+     * parallel if that is enabled. Returns once every slice has been processed.
+     *
+     * <p>The task may be called concurrently for different slices, so it must only write to data belonging to its own
+     * slice. To collect results per slice and merge them in order afterwards, get the number of slices from
+     * {@link #getSliceCount} first and pass it in.</p>
+     */
+    public static void forEachSlice(int from, int to, int sliceCount, SliceTask task) {
+        ForkJoinPool slicePool = sliceCount > 1 ? getPool() : null;
+        if (slicePool == null || ForkJoinTask.getPool() == slicePool) {
+            // Don't wait on the pool from inside of it
+            for (int slice = 0; slice < sliceCount; slice++) {
+                processSlice(from, to, sliceCount, slice, task);
+            }
+            return;
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(sliceCount - 1);
+        for (int slice = 1; slice < sliceCount; slice++) {
+            int taskSlice = slice;
+            try {
+                tasks.add(slicePool.submit(() -> processSlice(from, to, sliceCount, taskSlice, task)));
+            } catch (RejectedExecutionException e) {
+                // The pool couldn't start a thread for it
+                processSlice(from, to, sliceCount, taskSlice, task);
+            }
+        }
+        processSlice(from, to, sliceCount, 0, task);
+        for (ForkJoinTask<?> sliceTask : tasks) {
+            sliceTask.join();
+        }
+    }
+
+    /**
+     * Splits the range from {@code from} to {@code to} (inclusive) into as many slices as are useful and processes
+     * them, see {@link #forEachSlice(int, int, int, SliceTask)}.
+     */
+    public static void forEachSlice(int from, int to, SliceTask task) {
+        forEachSlice(from, to, getSliceCount(from, to), task);
+    }
+
+    /**
+     * @return the number of slices worth splitting the given range into with the current parallelism
+     */
+    public static int getSliceCount(int from, int to) {
+        int size = to - from + 1;
+        return Math.max(1, Math.min(getParallelism(), size / MIN_SLICE_SIZE));
+    }
+
+    private static void processSlice(int from, int to, int sliceCount, int slice, SliceTask task) {
+        int size = to - from + 1;
+        int sliceFrom = from + (int) ((long) size * slice / sliceCount);
+        int sliceTo = from + (int) ((long) size * (slice + 1) / sliceCount) - 1;
+        task.process(slice, sliceFrom, sliceTo);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (parallelism <= 1) {
+            return null;
+        }
+        if (pool == null) {
+            try {
+                pool = new ForkJoinPool(parallelism);
+            } catch (SecurityException e) {
+                logger.warn("Not allowed to start threads for caves, processing each region on one thread", e);
+                parallelism = 1;
+            }
+        }
+        return pool;
+    }
+}
@@ -3,10 +3,10 @@
 
 package org.terasology.caves;
 
-import org.joml.Vector3ic;
 import org.terasology.engine.registry.CoreRegistry;
 import org.terasology.engine.world.block.Block;
 import org.terasology.engine.world.block.BlockManager;
+import org.terasology.engine.world.block.BlockRegion;
 import org.terasology.engine.world.chunks.Chunk;
 import org.terasology.engine.world.chunks.Chunks;
 import org.terasology.engine.world.generation.Region;
@@ -20,6 +20,10 @@ import org.terasology.engine.world.generator.plugin.RegisterPlugin;
 public class CaveRasterizer implements WorldRasterizerPlugin {
     String blockUri;
 
+    private final CaveMetrics metrics = CaveMetrics.get(CaveRasterizer.class);
+
+    private Block caveBlock;
+
     public CaveRasterizer() {
     }
 
@@ -29,22 +33,55 @@ public class CaveRasterizer implements WorldRasterizerPlugin {
 
     @Override
     public void initialize() {
+        BlockManager blockManager = CoreRegistry.get(BlockManager.class);
+        initialize(blockManager.getBlock(blockUri != null ? blockUri : BlockManager.AIR_ID));
+    }
+
+    /**
+     * Sets the block to fill the caves with directly, so that the rasterizer can be run without a block manager.
+     */
+    void initialize(Block block) {
+        caveBlock = block;
     }
 
     @Override
     public void generateChunk(Chunk chunk, Region chunkRegion) {
         CaveFacet caveFacet = chunkRegion.getFacet(CaveFacet.class);
-
-        BlockManager blockManager = CoreRegistry.get(BlockManager.class);
-        Block caveBlock = blockManager.getBlock(BlockManager.AIR_ID);
-        if (blockUri != null) {
-            caveBlock = blockManager.getBlock(blockUri);
+        long start = CaveMetrics.start();
+        if (caveFacet.isEmpty()) {
+            metrics.record(start, 0, 0, 0);
+            return;
         }
 
-        for (Vector3ic position : Chunks.CHUNK_REGION) {
-            if (caveFacet.get(position)) {
-                chunk.setBlock(position, caveBlock);
+        // The chunk's coordinates are relative to the facet, so convert them to select the right columns and words
+        BlockRegion worldRegion = caveFacet.getWorldRegion();
+        BlockRegion relativeRegion = caveFacet.getRelativeRegion();
+        int offsetX = worldRegion.minX() - relativeRegion.minX();
+        int offsetZ = worldRegion.minZ() - relativeRegion.minZ();
+        int bottom = -relativeRegion.minY();
+        int top = bottom + Chunks.SIZE_Y - 1;
+        int caveCount = 0;
+
+        for (int z = 0; z < Chunks.SIZE_Z; z++) {
+            for (int x = 0; x < Chunks.SIZE_X; x++) {
+                for (int word = bottom >>> 6; word <= top >>> 6; word++) {
+                    long bits = caveFacet.getWorldColumnWord(x + offsetX, z + offsetZ, word);
+                    int wordBottom = word * Long.SIZE;
+                    if (bottom > wordBottom) {
+                        bits &= -1L << (bottom - wordBottom);
+                    }
+                    if (top < wordBottom + Long.SIZE - 1) {
+                        bits &= (1L << (top - wordBottom + 1)) - 1;
+                    }
+                    while (bits != 0) {
+                        int y = wordBottom + Long.numberOfTrailingZeros(bits) - bottom;
+                        chunk.setBlock(x, y, z, caveBlock);
+                        bits &= bits - 1;
+                        caveCount++;
+                    }
+                }
             }
         }
+        metrics.record(start, Chunks.SIZE_X * Chunks.SIZE_Y * Chunks.SIZE_Z, caveCount, 0);
     }
 }
@@ -0,0 +1,198 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Temporary arrays for the cave providers, reused between calls on the same thread so that generating a region
+ * doesn't leave garbage behind.
+ *
+ * <p>Borrow the arrays inside of a try-with-resources block; they are cleared and handed back when it ends, so they
+ * mustn't be kept or shared afterwards:</p>
+ * <pre>{@code
+ * try (CaveScratch scratch = CaveScratch.open()) {
+ *     long[] words = scratch.getLongs(count);
+ * }
+ * }</pre>
+ *
+ * <p>Blocks may be nested, for example when a provider asks for a facet which is then generated on the same thread.
+ * The arrays are at least as long as requested, with their length rounded up to a power of 2, and filled with
+ * zeros.</p>
+ *
+ * <p>As each thread keeps its own arrays for as long as it lives, only what a region needs is kept: arrays longer
+ * than {@value #MAX_POOLED_LENGTH} elements aren't kept, and neither are arrays beyond {@value #MAX_FREE_BYTES}
+ * bytes per thread. {@link #trim()} drops all of the current thread's free arrays.</p>
+ */
+public final class CaveScratch implements AutoCloseable {
+    /**
+     * Enough for the columns of a chunk-sized region with its borders, or the runs of cave blocks within it.
+     */
+    public static final int MAX_POOLED_LENGTH = 1 << 16;
+
+    /**
+     * How many bytes of free arrays to keep per thread, of all types together.
+     */
+    public static final long MAX_FREE_BYTES = 2 << 20;
+
+    /**
+     * How many free arrays to keep per type and length, which is enough for the providers nested within one another.
+     */
+    private static final int MAX_FREE_ARRAYS = 8;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_LENGTH) + 1;
+
+    private static final ThreadLocal<CaveScratch> CURRENT = ThreadLocal.withInitial(CaveScratch::new);
+
+    private final Pool<long[]> longs =
+            new Pool<>(long[]::new, array -> Arrays.fill(array, 0L), array -> array.length, Long.BYTES);
+    private final Pool<int[]> ints =
+            new Pool<>(int[]::new, array -> Arrays.fill(array, 0), array -> array.length, Integer.BYTES);
+    private final Pool<float[]> floats =
+            new Pool<>(float[]::new, array -> Arrays.fill(array, 0f), array -> array.length, Float.BYTES);
+
+    /**
+     * The number of borrowed arrays of each type when each of the open blocks started, three per block.
+     */
+    private int[] marks = new int[3 * 4];
+    private int depth;
+    private long freeBytes;
+
+    private CaveScratch() {
+    }
+
+    /**
+     * Starts a block of borrowing arrays on the current thread, which ends when the returned scratch is closed.
+     */
+    public static CaveScratch open() {
+        CaveScratch scratch = CURRENT.get();
+        if (3 * scratch.depth == scratch.marks.length) {
+            scratch.marks = Arrays.copyOf(scratch.marks, scratch.marks.length * 2);
+        }
+        scratch.marks[3 * scratch.depth] = scratch.longs.borrowed.size();
+        scratch.marks[3 * scratch.depth + 1] = scratch.ints.borrowed.size();
+        scratch.marks[3 * scratch.depth + 2] = scratch.floats.borrowed.size();
+        scratch.depth++;
+        return scratch;
+    }
+
+    /**
+     * Drops the free arrays kept for the current thread, for example before it goes idle for a long time. Arrays which
+     * are currently borrowed are kept once handed back, as usual.
+     */
+    public static void trim() {
+        CaveScratch scratch = CURRENT.get();
+        scratch.longs.trim();
+        scratch.ints.trim();
+        scratch.floats.trim();
+        scratch.freeBytes = 0;
+    }
+
+    /**
+     * @return the number of bytes of free arrays kept for the current thread
+     */
+    public static long getFreeBytes() {
+        return CURRENT.get().freeBytes;
+    }
+
+    public long[] getLongs(int length) {
+        return longs.borrow(length);
+    }
+
+    public int[] getInts(int length) {
+        return ints.borrow(length);
+    }
+
+    public float[] getFloats(int length) {
+        return floats.borrow(length);
+    }
+
+    /**
+     * Hands back all arrays borrowed since the matching {@link #open()}.
+     */
+    @Override
+    public void close() {
+        if (depth == 0) {
+            throw new IllegalStateException("No scratch block is open");
+        }
+        depth--;
+        longs.release(marks[3 * depth]);
+        ints.release(marks[3 * depth + 1]);
+        floats.release(marks[3 * depth + 2]);
+    }
+
+    @FunctionalInterface
+    private interface Factory<T> {
+        T create(int length);
+    }
+
+    @FunctionalInterface
+    private interface Clearer<T> {
+        void clear(T array);
+    }
+
+    @FunctionalInterface
+    private interface Length<T> {
+        int of(T array);
+    }
+
+    private final class Pool<T> {
+        private final Factory<T> factory;
+        private final Clearer<T> clearer;
+        private final Length<T> length;
+        private final int bytesPerElement;
+        private final List<ArrayDeque<T>> free = new ArrayList<>(SIZE_CLASSES);
+        private final List<T> borrowed = new ArrayList<>();
+
+        Pool(Factory<T> factory, Clearer<T> clearer, Length<T> length, int bytesPerElement) {
+            this.factory = factory;
+            this.clearer = clearer;
+            this.length = length;
+            this.bytesPerElement = bytesPerElement;
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                free.add(new ArrayDeque<>());
+            }
+        }
+
+        T borrow(int minLength) {
+            if (minLength > MAX_POOLED_LENGTH) {
+                return factory.create(minLength);
+            }
+            int sizeClass = minLength <= 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(minLength - 1);
+            T array = free.get(sizeClass).poll();
+            if (array == null) {
+                array = factory.create(1 << sizeClass);
+            } else {
+                freeBytes -= (long) bytesPerElement << sizeClass;
+            }
+            borrowed.add(array);
+            return array;
+        }
+
+        void release(int mark) {
+            for (int i = borrowed.size() - 1; i >= mark; i--) {
+                T array = borrowed.remove(i);
+                int arrayLength = length.of(array);
+                if (arrayLength > MAX_POOLED_LENGTH) {
+                    continue;
+                }
+                ArrayDeque<T> sizeClassFree = free.get(Integer.numberOfTrailingZeros(arrayLength));
+                long bytes = (long) bytesPerElement * arrayLength;
+                if (sizeClassFree.size() < MAX_FREE_ARRAYS && freeBytes + bytes <= MAX_FREE_BYTES) {
+                    clearer.clear(array);
+                    sizeClassFree.push(array);
+                    freeBytes += bytes;
+                }
+            }
+        }
+
+        void trim() {
+            for (ArrayDeque<T> sizeClassFree : free) {
+                sizeClassFree.clear();
+            }
+        }
+    }
+}
@@ -3,9 +3,7 @@
 
 package org.terasology.caves;
 
-import com.google.common.collect.Sets;
-import org.joml.Vector3i;
-import org.joml.Vector3ic;
+import org.terasology.engine.world.block.BlockRegion;
 import org.terasology.engine.world.generation.Facet;
 import org.terasology.engine.world.generation.FacetBorder;
 import org.terasology.engine.world.generation.FacetProviderPlugin;
@@ -17,12 +15,19 @@ import org.terasology.engine.world.generation.facets.SeaLevelFacet;
 import org.terasology.engine.world.generation.facets.SurfacesFacet;
 import org.terasology.engine.world.generator.plugin.RegisterPlugin;
 
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * Removes the surfaces where they're broken by caves, moving them to the exposed
  * cave floor instead. Also remove the caves above the surface and breaking the
  * sea-floor.
+ *
+ * <p>The caves and the non-solid blocks of each column are read into bitsets once, and the caves sealed with word
+ * operations on those. The sealed caves of each column are then listed as runs, each with its floor and the lowest
+ * height from which it can be reached through solid ground, so spreading a surface to a neighbouring column only
+ * looks at that column's runs, and the other facets are only looked at where a cave meets a surface. Each round
+ * spreads from the floors of all runs reached in the round before, so which surfaces are generated doesn't depend on
+ * the order they are gone through in.</p>
  */
 @RegisterPlugin
 @Updates({
@@ -45,6 +50,11 @@ import java.util.Set;
 public class CaveToSurfaceProvider implements FacetProviderPlugin {
     public static final int SURFACE_SPREAD = 3;
 
+    private static final int[] ADJACENT_X = {-1, 1, 0, 0};
+    private static final int[] ADJACENT_Z = {0, 0, -1, 1};
+
+    private final CaveMetrics metrics = CaveMetrics.get(CaveToSurfaceProvider.class);
+
     @Override
     public void setSeed(long seed) {
     }
@@ -55,96 +65,487 @@ public class CaveToSurfaceProvider implements FacetProviderPlugin {
         DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
         SurfacesFacet surfacesFacet = region.getRegionFacet(SurfacesFacet.class);
         SeaLevelFacet seaLevel = region.getRegionFacet(SeaLevelFacet.class);
+        long start = CaveMetrics.start();
+
+        BlockRegion densityRegion = densityFacet.getWorldRegion();
+        BlockRegion surfacesRegion = surfacesFacet.getWorldRegion();
+        BlockRegion caveBounds = getCaveBounds(caveFacet.getWorldRegion(), densityRegion, surfacesRegion);
+        if (caveBounds == null || caveFacet.isEmpty()) {
+            metrics.record(start, 0, 0, 0);
+            return;
+        }
+
+        int addedSurfaces = 0;
+        try (CaveScratch scratch = CaveScratch.open()) {
+            Columns columns = new Columns(caveBounds, densityRegion, scratch);
+            columns.readCaves(caveFacet);
+            columns.readNonSolid(densityFacet);
+
+            // Ensure that the ocean can't immediately fall into a cave.
+            columns.sealCaves(seaLevel.getSeaLevel() + 1);
 
-        Set<Vector3ic> cavePositions = Sets.newHashSetWithExpectedSize((int) (0.33f * caveFacet.getWorldRegion().volume()));
+            columns.findRuns(scratch);
 
-        for (Vector3ic pos : caveFacet.getWorldRegion()) {
-            if (caveFacet.getWorld(pos) && densityFacet.getWorldRegion().contains(pos) && surfacesFacet.getWorldRegion().contains(pos)) {
-                cavePositions.add(new Vector3i(pos));
+            // Mark any cave floors exposed to the sky as surface.
+            int frontierWords = (columns.getRunCount() + Long.SIZE - 1) / Long.SIZE;
+            long[] newSurfaces = scratch.getLongs(frontierWords);
+            addedSurfaces += markExposedFloors(columns, surfacesFacet, newSurfaces);
+
+            // Mark cave floors near to those exposed to the sky as surface.
+            long[] newerSurfaces = scratch.getLongs(frontierWords);
+            for (int i = 0; i < SURFACE_SPREAD; i++) {
+                Arrays.fill(newerSurfaces, 0, frontierWords, 0);
+                addedSurfaces += spreadSurfaces(columns, surfacesFacet, newSurfaces, newerSurfaces);
+                long[] temp = newSurfaces;
+                newSurfaces = newerSurfaces;
+                newerSurfaces = temp;
             }
+
+            columns.writeCaves(caveFacet);
         }
+        metrics.record(start, densityRegion.volume(), caveFacet.getCaveCount(), addedSurfaces);
+    }
 
-        Vector3i belowPos = new Vector3i();
-        // Ensure that the ocean can't immediately fall into a cave.
-        for (Vector3ic pos : densityFacet.getWorldRegion()) {
-            if (densityFacet.getWorld(pos) <= 0) {
-                if (cavePositions.contains(pos)) {
-                    cavePositions.remove(pos);
-                    caveFacet.setWorld(pos, false);
+    /**
+     * Moves the surfaces inside of caves to the floor of the cave.
+     *
+     * @param newSurfaces set to the runs whose floor became a surface, one bit per run
+     * @return the number of floors which became surfaces
+     */
+    private static int markExposedFloors(Columns columns, SurfacesFacet surfacesFacet, long[] newSurfaces) {
+        BlockRegion caveBounds = columns.caveBounds;
+        int surfacesMinY = surfacesFacet.getWorldRegion().minY();
+        int count = 0;
+        for (int z = caveBounds.minZ(); z <= caveBounds.maxZ(); z++) {
+            for (int x = caveBounds.minX(); x <= caveBounds.maxX(); x++) {
+                int column = columns.getColumn(x, z);
+                for (int run = columns.getRunStart(column); run < columns.getRunStart(column + 1); run++) {
+                    // Every surface in this part of the cave moves to the same floor.
+                    int floorY = columns.bottom + columns.getRunFloor(run);
+                    boolean cleared = clearSurfaces(surfacesFacet, x, floorY + 1,
+                            columns.bottom + columns.getRunTop(run), z);
+                    if (cleared && floorY >= surfacesMinY) {
+                        surfacesFacet.setWorld(x, floorY, z, true);
+                        newSurfaces[run >>> 6] |= 1L << run;
+                        count++;
+                    }
                 }
-                if (pos.y() <= seaLevel.getSeaLevel() + 1) {
-                    for (int x = -1; x <= 1; x++) {
-                        for (int z = -1; z <= 1; z++) {
-                            belowPos.set(pos.x() + x, pos.y() - 1, pos.z() + z);
-                            if (cavePositions.contains(belowPos)) {
-                                cavePositions.remove(belowPos);
-                                caveFacet.setWorld(belowPos, false);
-                            }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Marks the floors next to the given surfaces as surface, where they aren't yet. Each new surface is counted
+     * once, however many of the given surfaces it is next to, so the result doesn't depend on the order the surfaces
+     * are gone through in.
+     *
+     * @param surfaces the runs whose floor to spread from, one bit per run
+     * @param newSurfaces set to the runs whose floor became a surface
+     * @return the number of floors which became surfaces
+     */
+    private static int spreadSurfaces(Columns columns, SurfacesFacet surfacesFacet, long[] surfaces,
+                                      long[] newSurfaces) {
+        BlockRegion caveBounds = columns.caveBounds;
+        int count = 0;
+        for (int z = caveBounds.minZ(); z <= caveBounds.maxZ(); z++) {
+            for (int x = caveBounds.minX(); x <= caveBounds.maxX(); x++) {
+                int column = columns.getColumn(x, z);
+                for (int run = columns.getRunStart(column); run < columns.getRunStart(column + 1); run++) {
+                    if ((surfaces[run >>> 6] & 1L << run) == 0) {
+                        continue;
+                    }
+                    int floor = columns.getRunFloor(run);
+                    for (int adjacent = 0; adjacent < ADJACENT_X.length; adjacent++) {
+                        int adjacentX = x + ADJACENT_X[adjacent];
+                        int adjacentZ = z + ADJACENT_Z[adjacent];
+                        int spreadRun = findSpreadRun(columns, surfacesFacet, adjacentX, floor, adjacentZ);
+                        if (spreadRun >= 0) {
+                            surfacesFacet.setWorld(adjacentX, columns.bottom + columns.getRunFloor(spreadRun),
+                                    adjacentZ, true);
+                            newSurfaces[spreadRun >>> 6] |= 1L << spreadRun;
+                            count++;
                         }
                     }
                 }
             }
         }
+        return count;
+    }
+
+    /**
+     * Finds the cave a position next to a surface leads to, going up through the solid ground, if its floor can
+     * become a surface and isn't one yet.
+     *
+     * @param floor the height of the position in its column
+     * @return the run of the cave, or -1 if there is none
+     */
+    private static int findSpreadRun(Columns columns, SurfacesFacet surfacesFacet, int x, int floor, int z) {
+        // Only the columns in the cave bounds can have caves
+        if (!columns.isInCaveBounds(x, z)) {
+            return -1;
+        }
+        int column = columns.getColumn(x, z);
+        int run = columns.findRunReachedFrom(column, floor);
+        if (run < 0) {
+            return -1;
+        }
+        int spreadFloor = columns.getRunFloor(run);
+        int floorY = columns.bottom + spreadFloor;
+        if (floorY < surfacesFacet.getWorldRegion().minY() || !columns.isSolid(column, spreadFloor)
+                || surfacesFacet.getWorld(x, floorY, z)) {
+            return -1;
+        }
+        return run;
+    }
+
+    /**
+     * The part of the cave facet which is also covered by the density and surfaces facets, or null if there is none.
+     * Caves outside of it are left alone.
+     */
+    private static BlockRegion getCaveBounds(BlockRegion caveRegion, BlockRegion densityRegion,
+                                             BlockRegion surfacesRegion) {
+        int minX = Math.max(caveRegion.minX(), Math.max(densityRegion.minX(), surfacesRegion.minX()));
+        int minY = Math.max(caveRegion.minY(), Math.max(densityRegion.minY(), surfacesRegion.minY()));
+        int minZ = Math.max(caveRegion.minZ(), Math.max(densityRegion.minZ(), surfacesRegion.minZ()));
+        int maxX = Math.min(caveRegion.maxX(), Math.min(densityRegion.maxX(), surfacesRegion.maxX()));
+        int maxY = Math.min(caveRegion.maxY(), Math.min(densityRegion.maxY(), surfacesRegion.maxY()));
+        int maxZ = Math.min(caveRegion.maxZ(), Math.min(densityRegion.maxZ(), surfacesRegion.maxZ()));
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return null;
+        }
+        return new BlockRegion(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /**
+     * Removes the surfaces in part of a column.
+     *
+     * @return whether there were any
+     */
+    private static boolean clearSurfaces(SurfacesFacet surfacesFacet, int x, int minY, int maxY, int z) {
+        boolean cleared = false;
+        for (int y = maxY; y >= minY; y--) {
+            if (surfacesFacet.getWorld(x, y, z)) {
+                surfacesFacet.setWorld(x, y, z, false);
+                cleared = true;
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * The caves and non-solid blocks of the columns in the cave bounds and of the columns around them, one bit per
+     * block. Each column starts one block below the cave bounds and ends one block above them, and heights are
+     * counted in bits from its bottom.
+     */
+    private static final class Columns {
+        /**
+         * The y coordinate of the lowest bit of each column.
+         */
+        final int bottom;
+        /**
+         * The height of the highest bit of each column which may be a cave.
+         */
+        final int top;
+        final int wordsPerColumn;
+
+        final BlockRegion caveBounds;
+
+        private final BlockRegion densityRegion;
+        private final int minX;
+        private final int minZ;
+        private final int sizeX;
+        private final int height;
+        private final int columnCount;
+
+        private final long[] caves;
+        private final long[] nonSolid;
+        /**
+         * The bits of a column which are inside the cave bounds.
+         */
+        private final long[] caveMask;
+        /**
+         * The bits of a column which are inside the density region.
+         */
+        private final long[] densityMask;
+        private final long[] seaMask;
+        private final long[] open;
+
+        /**
+         * The first run of each column, followed by the number of runs.
+         */
+        private int[] runStarts;
+        private int[] runBottoms;
+        private int[] runTops;
+        /**
+         * The lowest height from which going up through solid positions leads to each run.
+         */
+        private int[] runReaches;
+
+        Columns(BlockRegion caveBounds, BlockRegion densityRegion, CaveScratch scratch) {
+            this.caveBounds = caveBounds;
+            this.densityRegion = densityRegion;
+            minX = caveBounds.minX() - 1;
+            minZ = caveBounds.minZ() - 1;
+            sizeX = caveBounds.getSizeX() + 2;
+            bottom = caveBounds.minY() - 1;
+            top = caveBounds.getSizeY();
+            height = caveBounds.getSizeY() + 2;
+            wordsPerColumn = (height + Long.SIZE - 1) / Long.SIZE;
+            columnCount = sizeX * (caveBounds.getSizeZ() + 2);
+            caves = scratch.getLongs(columnCount * wordsPerColumn);
+            nonSolid = scratch.getLongs(columnCount * wordsPerColumn);
+            caveMask = getMask(scratch.getLongs(wordsPerColumn), 1, top);
+            densityMask = getMask(scratch.getLongs(wordsPerColumn), densityRegion.minY() - bottom,
+                    densityRegion.maxY() - bottom);
+            seaMask = scratch.getLongs(wordsPerColumn);
+            open = scratch.getLongs(wordsPerColumn);
+        }
+
+        int getColumn(int x, int z) {
+            return x - minX + sizeX * (z - minZ);
+        }
+
+        boolean isInCaveBounds(int x, int z) {
+            return x >= caveBounds.minX() && x <= caveBounds.maxX() && z >= caveBounds.minZ() && z <= caveBounds.maxZ();
+        }
+
+        /**
+         * @return whether the given position is inside the density region and solid
+         */
+        boolean isSolid(int column, int bit) {
+            int word = bit >>> 6;
+            return (densityMask[word] & ~nonSolid[column * wordsPerColumn + word] & (1L << bit)) != 0;
+        }
+
+        int getRunCount() {
+            return runStarts[columnCount];
+        }
+
+        /**
+         * @return the number of the first run of the given column, or of the run after the last column's for
+         *         {@code columnCount}
+         */
+        int getRunStart(int column) {
+            return runStarts[column];
+        }
 
-        // Mark any cave floors exposed to the sky as surface.
-        Set<Vector3i> newSurfaces = Sets.newHashSet();
-        for (Vector3ic pos : cavePositions) {
-            if (surfacesFacet.getWorld(pos)) {
-                surfacesFacet.setWorld(pos, false);
-                Vector3i newSurface = new Vector3i(pos);
-                while (cavePositions.contains(newSurface)) {
-                    newSurface.add(0, -1, 0);
+        /**
+         * @return the height of the highest cave position of the given run
+         */
+        int getRunTop(int run) {
+            return runTops[run];
+        }
+
+        /**
+         * @return the height of the position just below the given run, which is never a cave
+         */
+        int getRunFloor(int run) {
+            return runBottoms[run] - 1;
+        }
+
+        /**
+         * Finds the run reached by going up from the given height through solid positions. Positions which aren't
+         * solid or are outside the density region stop the way up.
+         *
+         * @return the run, or -1 if there is none
+         */
+        int findRunReachedFrom(int column, int from) {
+            for (int run = runStarts[column]; run < runStarts[column + 1] && runReaches[run] <= from; run++) {
+                if (from <= runTops[run]) {
+                    return run;
                 }
-                if (newSurface.y >= surfacesFacet.getWorldRegion().minY()) {
-                    newSurfaces.add(newSurface);
-                    surfacesFacet.setWorld(newSurface, true);
+            }
+            return -1;
+        }
+
+        void readCaves(CaveFacet caveFacet) {
+            for (int z = caveBounds.minZ(); z <= caveBounds.maxZ(); z++) {
+                for (int x = caveBounds.minX(); x <= caveBounds.maxX(); x++) {
+                    int index = getColumn(x, z) * wordsPerColumn;
+                    for (int word = 0; word < wordsPerColumn; word++) {
+                        caves[index + word] = caveFacet.getWorldColumnBits(x, z, bottom + word * Long.SIZE)
+                                & caveMask[word];
+                    }
                 }
             }
         }
 
-        Vector3i a1 = new Vector3i();
-        Vector3i a2 = new Vector3i();
-        Vector3i a3 = new Vector3i();
-        Vector3i a4 = new Vector3i();
-
-
-        Set<Vector3i> newerSurfaces = Sets.newHashSetWithExpectedSize(newSurfaces.size());
-        // Mark cave floors near to those exposed to the sky as surface.
-        for (int i = 0; i < SURFACE_SPREAD; i++) {
-            newerSurfaces.clear();
-            for (Vector3i surface : newSurfaces) {
-                for (Vector3i adjacent : new Vector3i[]{
-                        a1.set(surface).sub(1, 0, 0),
-                        a2.set(surface).add(1, 0, 0),
-                        a3.set(surface).sub(0, 0, 1),
-                        a4.set(surface).add(0, 0, 1)
-                }) {
-                    while (!cavePositions.contains(adjacent)
-                            && densityFacet.getWorldRegion().contains(adjacent)
-                            && densityFacet.getWorld(adjacent) > 0) {
-                        adjacent.add(0, 1, 0);
+        /**
+         * Writes the caves inside the cave bounds back to the facet.
+         */
+        void writeCaves(CaveFacet caveFacet) {
+            int offset = caveFacet.getWorldRegion().minY() - bottom;
+            for (int z = caveBounds.minZ(); z <= caveBounds.maxZ(); z++) {
+                for (int x = caveBounds.minX(); x <= caveBounds.maxX(); x++) {
+                    int index = getColumn(x, z) * wordsPerColumn;
+                    for (int word = 0; word < caveFacet.getWordsPerColumn(); word++) {
+                        int from = offset + word * Long.SIZE;
+                        long mask = getBits(caveMask, 0, from);
+                        if (mask != 0) {
+                            long bits = caveFacet.getWorldColumnWord(x, z, word);
+                            long newBits = (bits & ~mask) | (getBits(caves, index, from) & mask);
+                            if (newBits != bits) {
+                                caveFacet.setWorldColumnWord(x, z, word, newBits);
+                            }
+                        }
                     }
-                    // Only continue if the selected position is actually in a cave, rather than on the surface or above the selected region.
-                    if (cavePositions.contains(adjacent)) {
-                        while (cavePositions.contains(adjacent)) {
-                            adjacent.sub(0, 1, 0);
+                }
+            }
+        }
+
+        /**
+         * Finds the positions which aren't solid, in all of the columns which are in the density region.
+         */
+        void readNonSolid(DensityFacet densityFacet) {
+            int minY = Math.max(bottom, densityRegion.minY());
+            int maxY = Math.min(bottom + height - 1, densityRegion.maxY());
+            int maxX = Math.min(caveBounds.maxX() + 1, densityRegion.maxX());
+            int maxZ = Math.min(caveBounds.maxZ() + 1, densityRegion.maxZ());
+            for (int z = Math.max(minZ, densityRegion.minZ()); z <= maxZ; z++) {
+                for (int x = Math.max(minX, densityRegion.minX()); x <= maxX; x++) {
+                    int index = getColumn(x, z) * wordsPerColumn;
+                    for (int y = minY; y <= maxY; y++) {
+                        if (densityFacet.getWorld(x, y, z) <= 0) {
+                            int bit = y - bottom;
+                            nonSolid[index + (bit >>> 6)] |= 1L << bit;
                         }
-                        if (
-                                surfacesFacet.getWorldRegion().contains(adjacent) &&
-                                        densityFacet.getWorldRegion().contains(adjacent) &&
-                                        densityFacet.getWorld(adjacent) > 0 &&
-                                        !surfacesFacet.getWorld(adjacent)
-                        ) {
-                            surface.set(adjacent); // reuse vector from last set
-                            newerSurfaces.add(surface);
-                            surfacesFacet.setWorld(adjacent, true);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes the caves at non-solid positions, and those just below non-solid positions which are at or below
+         * the given height, in the same column or one of the columns around it.
+         */
+        void sealCaves(int maxSeaY) {
+            getMask(seaMask, 0, maxSeaY - bottom);
+            for (int z = caveBounds.minZ(); z <= caveBounds.maxZ(); z++) {
+                for (int x = caveBounds.minX(); x <= caveBounds.maxX(); x++) {
+                    Arrays.fill(open, 0, wordsPerColumn, 0);
+                    for (int dz = -1; dz <= 1; dz++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int index = getColumn(x + dx, z + dz) * wordsPerColumn;
+                            for (int word = 0; word < wordsPerColumn; word++) {
+                                open[word] |= nonSolid[index + word] & seaMask[word];
+                            }
                         }
                     }
+                    int index = getColumn(x, z) * wordsPerColumn;
+                    for (int word = 0; word < wordsPerColumn; word++) {
+                        // The position below each of those is removed, so shift them down by one
+                        long below = open[word] >>> 1;
+                        if (word + 1 < wordsPerColumn) {
+                            below |= open[word + 1] << (Long.SIZE - 1);
+                        }
+                        caves[index + word] &= ~(nonSolid[index + word] | below);
+                    }
                 }
             }
-            Set<Vector3i> temp = newSurfaces;
-            newSurfaces = newerSurfaces;
-            newerSurfaces = temp;
+        }
+
+        /**
+         * Splits the caves of each column into runs of consecutive cave positions, numbered column by column and from
+         * bottom to top within a column. Call this once the caves are sealed.
+         */
+        void findRuns(CaveScratch scratch) {
+            runStarts = scratch.getInts(columnCount + 1);
+            int runCount = 0;
+            for (int column = 0; column < columnCount; column++) {
+                runStarts[column] = runCount;
+                int index = column * wordsPerColumn;
+                long below = 0;
+                for (int word = 0; word < wordsPerColumn; word++) {
+                    // Count the cave positions without a cave just below them
+                    long bits = caves[index + word];
+                    runCount += Long.bitCount(bits & ~(bits << 1 | below));
+                    below = bits >>> (Long.SIZE - 1);
+                }
+            }
+            runStarts[columnCount] = runCount;
+
+            runBottoms = scratch.getInts(runCount);
+            runTops = scratch.getInts(runCount);
+            runReaches = scratch.getInts(runCount);
+            for (int column = 0; column < columnCount; column++) {
+                int run = runStarts[column];
+                int runBottom = findLowest(column, 0, true);
+                while (runBottom >= 0) {
+                    // The position above the cave bounds is never a cave, so every run ends within the column
+                    int above = findLowest(column, runBottom, false);
+                    runBottoms[run] = runBottom;
+                    runTops[run] = above - 1;
+                    runReaches[run] = findHighestOpening(column, runBottom - 1) + 1;
+                    run++;
+                    runBottom = findLowest(column, above, true);
+                }
+            }
+        }
+
+        /**
+         * Finds the lowest position in a column, at or above {@code from}, which is or isn't a cave.
+         *
+         * @return its height, or -1 if there is none
+         */
+        private int findLowest(int column, int from, boolean cave) {
+            int index = column * wordsPerColumn;
+            for (int word = from >>> 6; word < wordsPerColumn; word++) {
+                long bits = cave ? caves[index + word] : ~caves[index + word];
+                if (word == from >>> 6) {
+                    bits &= -1L << from;
+                }
+                if (bits != 0) {
+                    return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Finds the highest position in a column, at or below {@code from}, which is a cave, isn't solid or is
+         * outside the density region.
+         *
+         * @return its height, or -1 if there is none
+         */
+        private int findHighestOpening(int column, int from) {
+            int index = column * wordsPerColumn;
+            for (int word = from >>> 6; word >= 0; word--) {
+                long bits = caves[index + word] | nonSolid[index + word] | ~densityMask[word];
+                if (word == from >>> 6 && (from & 63) != 63) {
+                    bits &= (1L << (from + 1)) - 1;
+                }
+                if (bits != 0) {
+                    return word * Long.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros(bits);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Sets the bits from {@code from} to {@code to} of an empty column.
+         *
+         * @return the column
+         */
+        private long[] getMask(long[] mask, int from, int to) {
+            for (int bit = Math.max(0, from); bit <= Math.min(height - 1, to); bit++) {
+                mask[bit >>> 6] |= 1L << bit;
+            }
+            return mask;
+        }
+
+        /**
+         * @return the 64 bits of a column starting at {@code from}, which may be partly or entirely outside of it
+         */
+        private long getBits(long[] words, int index, int from) {
+            int word = Math.floorDiv(from, Long.SIZE);
+            int shift = Math.floorMod(from, Long.SIZE);
+            long bits = word >= 0 && word < wordsPerColumn ? words[index + word] : 0;
+            if (shift == 0) {
+                return bits;
+            }
+            long above = word + 1 >= 0 && word + 1 < wordsPerColumn ? words[index + word + 1] : 0;
+            return bits >>> shift | above << (Long.SIZE - shift);
         }
     }
 }
@@ -0,0 +1,264 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+import org.terasology.engine.world.generation.facets.ElevationFacet;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveConnectivityProviderTest {
+    private static final int[][] NEIGHBOURS = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+
+    @Test
+    public void testComponentsMatchFloodFill() {
+        int componentCount = 0;
+        for (int i = 0; i < 6; i++) {
+            BlockRegion region = TestRegion.createChunkRegion(i * 37 - 200, -40 - (i % 3) * 20, i * 53 - 300);
+            TestRegion testRegion = TestRegion.withTerrain(region, -200, i);
+            new CaveConnectivityProvider().process(testRegion);
+            componentCount += assertMatchesFloodFill(testRegion.getRegionFacet(CaveFacet.class),
+                    testRegion.getRegionFacet(CaveConnectivityFacet.class));
+        }
+        assertTrue(componentCount > 0, "No caves found");
+    }
+
+    @Test
+    public void testJoinedComponentsMatchNeighbouringBlocks() {
+        int[][] offsets = {{32, 0, 0}, {0, -64, 0}, {0, 0, 32}, {-32, 0, 0}, {0, -64, 0}};
+        // The last pair of regions crosses x = 0, where the columns of a y face change sign
+        int[] minXs = {-200, -163, -126, -89, -16};
+        int joinCount = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            BlockRegion first = TestRegion.createChunkRegion(minXs[i], -60, i * 53 - 300);
+            BlockRegion second = TestRegion.createChunkRegion(first.minX() + offsets[i][0],
+                    first.minY() + offsets[i][1], first.minZ() + offsets[i][2]);
+            TestRegion firstRegion = TestRegion.withTerrain(first, -200, i);
+            TestRegion secondRegion = TestRegion.withTerrain(second, -200, i + 100);
+            if (first.minX() < 0 && first.maxX() >= 0) {
+                // A cave on either side of x = 0 on one side of the face, which only meets the other side at x = 0
+                int z = first.minZ() + 5;
+                firstRegion.getRegionFacet(CaveFacet.class).setWorld(-1, first.minY(), z, true);
+                firstRegion.getRegionFacet(CaveFacet.class).setWorld(0, first.minY(), z, true);
+                secondRegion.getRegionFacet(CaveFacet.class).setWorld(-1, second.maxY(), z, false);
+                secondRegion.getRegionFacet(CaveFacet.class).setWorld(0, second.maxY(), z, true);
+            }
+            new CaveConnectivityProvider().process(firstRegion);
+            new CaveConnectivityProvider().process(secondRegion);
+            CaveConnectivityFacet firstFacet = firstRegion.getRegionFacet(CaveConnectivityFacet.class);
+            CaveConnectivityFacet secondFacet = secondRegion.getRegionFacet(CaveConnectivityFacet.class);
+            int firstCount = firstFacet.getComponentCount();
+
+            int[] joined = new int[firstCount + secondFacet.getComponentCount()];
+            Arrays.setAll(joined, component -> component);
+            int[] pairs = CaveConnectivityFacet.findJoinedComponents(firstFacet, secondFacet);
+            for (int pair = 0; pair < pairs.length; pair += 2) {
+                union(joined, pairs[pair], firstCount + pairs[pair + 1]);
+            }
+            joinCount += pairs.length / 2;
+
+            // Join the components of every pair of cave blocks meeting across the face instead
+            int[] expected = new int[joined.length];
+            Arrays.setAll(expected, component -> component);
+            CaveFacet firstCaves = firstRegion.getRegionFacet(CaveFacet.class);
+            CaveFacet secondCaves = secondRegion.getRegionFacet(CaveFacet.class);
+            for (int z = first.minZ(); z <= first.maxZ(); z++) {
+                for (int y = first.minY(); y <= first.maxY(); y++) {
+                    for (int x = first.minX(); x <= first.maxX(); x++) {
+                        if (!firstCaves.getWorld(x, y, z)) {
+                            continue;
+                        }
+                        for (int[] neighbour : NEIGHBOURS) {
+                            int otherX = x + neighbour[0];
+                            int otherY = y + neighbour[1];
+                            int otherZ = z + neighbour[2];
+                            if (second.contains(otherX, otherY, otherZ)
+                                    && secondCaves.getWorld(otherX, otherY, otherZ)) {
+                                union(expected, firstFacet.getWorldComponent(x, y, z),
+                                        firstCount + secondFacet.getWorldComponent(otherX, otherY, otherZ));
+                            }
+                        }
+                    }
+                }
+            }
+
+            for (int a = 0; a < joined.length; a++) {
+                for (int b = a + 1; b < joined.length; b++) {
+                    assertEquals(find(expected, a) == find(expected, b), find(joined, a) == find(joined, b),
+                            "Components " + a + " and " + b);
+                }
+            }
+        }
+        assertTrue(joinCount > 0, "No components joined");
+    }
+
+    @Test
+    public void testOverlappingComponentsMatchSharedBlocks() {
+        // The facets of neighbouring regions overlap once they have a border, as when other providers ask for one
+        Border3D border = new Border3D(2, 2, 2);
+        int[][] offsets = {{32, 0, 0}, {0, -64, 0}, {0, 0, 32}};
+        int joinCount = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            BlockRegion first = TestRegion.createChunkRegion(i * 37 - 200, -60, i * 53 - 300);
+            BlockRegion second = TestRegion.createChunkRegion(first.minX() + offsets[i][0],
+                    first.minY() + offsets[i][1], first.minZ() + offsets[i][2]);
+            // Both are cut out of the same terrain, so that they agree on the caves where they overlap
+            BlockRegion both = new BlockRegion(Math.min(first.minX(), second.minX()),
+                    Math.min(first.minY(), second.minY()), Math.min(first.minZ(), second.minZ()),
+                    Math.max(first.maxX(), second.maxX()), Math.max(first.maxY(), second.maxY()),
+                    Math.max(first.maxZ(), second.maxZ()));
+            TestRegion terrain = TestRegion.withTerrain(both, -200, i);
+            CaveConnectivityFacet firstFacet = findComponents(terrain, first, border);
+            CaveConnectivityFacet secondFacet = findComponents(terrain, second, border);
+            int firstCount = firstFacet.getComponentCount();
+
+            int[] joined = new int[firstCount + secondFacet.getComponentCount()];
+            Arrays.setAll(joined, component -> component);
+            int[] pairs = CaveConnectivityFacet.findJoinedComponents(firstFacet, secondFacet);
+            for (int pair = 0; pair < pairs.length; pair += 2) {
+                union(joined, pairs[pair], firstCount + pairs[pair + 1]);
+            }
+            joinCount += pairs.length / 2;
+
+            // Join the components of both facets at every cave block they share instead
+            int[] expected = new int[joined.length];
+            Arrays.setAll(expected, component -> component);
+            CaveFacet caves = terrain.getRegionFacet(CaveFacet.class);
+            BlockRegion firstWorld = firstFacet.getWorldRegion();
+            BlockRegion secondWorld = secondFacet.getWorldRegion();
+            for (int z = firstWorld.minZ(); z <= firstWorld.maxZ(); z++) {
+                for (int y = firstWorld.minY(); y <= firstWorld.maxY(); y++) {
+                    for (int x = firstWorld.minX(); x <= firstWorld.maxX(); x++) {
+                        if (secondWorld.contains(x, y, z) && caves.getWorld(x, y, z)) {
+                            union(expected, firstFacet.getWorldComponent(x, y, z),
+                                    firstCount + secondFacet.getWorldComponent(x, y, z));
+                        }
+                    }
+                }
+            }
+
+            for (int a = 0; a < joined.length; a++) {
+                for (int b = a + 1; b < joined.length; b++) {
+                    assertEquals(find(expected, a) == find(expected, b), find(joined, a) == find(joined, b),
+                            "Components " + a + " and " + b);
+                }
+            }
+        }
+        assertTrue(joinCount > 0, "No components joined");
+    }
+
+    @Test
+    public void testRegionsWithoutSharedFaceAreNotJoined() {
+        TestRegion first = TestRegion.withTerrain(TestRegion.createChunkRegion(0, -60, 0), -200, 1);
+        TestRegion second = TestRegion.withTerrain(TestRegion.createChunkRegion(32, -60, 32), -200, 2);
+        new CaveConnectivityProvider().process(first);
+        new CaveConnectivityProvider().process(second);
+        assertEquals(0, CaveConnectivityFacet.findJoinedComponents(first.getRegionFacet(CaveConnectivityFacet.class),
+                second.getRegionFacet(CaveConnectivityFacet.class)).length);
+    }
+
+    /**
+     * Finds the connected caves of a part of a larger region, with the given border around it.
+     */
+    private static CaveConnectivityFacet findComponents(TestRegion terrain, BlockRegion region, Border3D border) {
+        CaveFacet terrainCaves = terrain.getRegionFacet(CaveFacet.class);
+        ElevationFacet terrainElevation = terrain.getRegionFacet(ElevationFacet.class);
+        CaveFacet caveFacet = new CaveFacet(region, border);
+        ElevationFacet elevationFacet = new ElevationFacet(region, border);
+        BlockRegion worldRegion = caveFacet.getWorldRegion();
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                elevationFacet.setWorld(x, z, terrainElevation.getWorld(x, z));
+                for (int y = worldRegion.minY(); y <= worldRegion.maxY(); y++) {
+                    caveFacet.setWorld(x, y, z, terrainCaves.getWorld(x, y, z));
+                }
+            }
+        }
+
+        TestRegion testRegion = new TestRegion(region);
+        testRegion.setBorder(CaveFacet.class, border);
+        testRegion.setBorder(ElevationFacet.class, border);
+        testRegion.setBorder(CaveConnectivityFacet.class, border);
+        testRegion.setRegionFacet(CaveFacet.class, caveFacet);
+        testRegion.setRegionFacet(ElevationFacet.class, elevationFacet);
+        new CaveConnectivityProvider().process(testRegion);
+        return testRegion.getRegionFacet(CaveConnectivityFacet.class);
+    }
+
+    /**
+     * Checks that the blocks reached from each cave block by a breadth-first search make up exactly one component,
+     * with the same volume.
+     *
+     * @return the number of components found
+     */
+    private static int assertMatchesFloodFill(CaveFacet caveFacet, CaveConnectivityFacet facet) {
+        BlockRegion region = facet.getWorldRegion();
+        int sizeX = region.getSizeX();
+        int sizeY = region.getSizeY();
+        int[] labels = new int[sizeX * sizeY * region.getSizeZ()];
+        Arrays.fill(labels, -1);
+        int componentCount = 0;
+        for (int z = region.minZ(); z <= region.maxZ(); z++) {
+            for (int y = region.minY(); y <= region.maxY(); y++) {
+                for (int x = region.minX(); x <= region.maxX(); x++) {
+                    boolean cave = caveFacet.getWorld(x, y, z);
+                    int component = facet.getWorldComponent(x, y, z);
+                    assertEquals(cave, component >= 0, "Cave at " + x + ", " + y + ", " + z);
+                    int index = x - region.minX() + sizeX * (y - region.minY() + sizeY * (z - region.minZ()));
+                    if (!cave || labels[index] >= 0) {
+                        continue;
+                    }
+
+                    int volume = 0;
+                    Deque<int[]> queue = new ArrayDeque<>();
+                    queue.add(new int[]{x, y, z});
+                    labels[index] = componentCount;
+                    while (!queue.isEmpty()) {
+                        int[] pos = queue.poll();
+                        assertEquals(component, facet.getWorldComponent(pos[0], pos[1], pos[2]));
+                        volume++;
+                        for (int[] neighbour : NEIGHBOURS) {
+                            int otherX = pos[0] + neighbour[0];
+                            int otherY = pos[1] + neighbour[1];
+                            int otherZ = pos[2] + neighbour[2];
+                            if (!region.contains(otherX, otherY, otherZ)
+                                    || !caveFacet.getWorld(otherX, otherY, otherZ)) {
+                                continue;
+                            }
+                            int otherIndex = otherX - region.minX()
+                                    + sizeX * (otherY - region.minY() + sizeY * (otherZ - region.minZ()));
+                            if (labels[otherIndex] < 0) {
+                                labels[otherIndex] = componentCount;
+                                queue.add(new int[]{otherX, otherY, otherZ});
+                            }
+                        }
+                    }
+                    assertEquals(volume, facet.getComponentVolume(component));
+                    componentCount++;
+                }
+            }
+        }
+        assertEquals(componentCount, facet.getComponentCount());
+        return componentCount;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        parents[find(parents, a)] = find(parents, b);
+    }
+
+    private static int find(int[] parents, int component) {
+        int root = component;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        return root;
+    }
+}
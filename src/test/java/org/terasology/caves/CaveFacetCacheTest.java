@@ -0,0 +1,146 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveFacetCacheTest {
+    private static final Border3D BORDER = new Border3D(4, 2, 1);
+    private static final float[] SHAPE = {0.5f, 12f, 3f};
+    private static final int MAX_Y = 40;
+
+    @Test
+    public void testLoadsStoredCaves() {
+        CaveFacetCache cache = new CaveFacetCache(4);
+        BlockRegion region = TestRegion.createChunkRegion(32, -64, 0);
+        CaveFacet stored = createFacet(region, 1);
+        cache.store(7, SHAPE.clone(), MAX_Y, stored, getSurfaceHeights(stored));
+
+        CaveFacet loaded = new CaveFacet(region, BORDER);
+        assertTrue(cache.load(7, SHAPE.clone(), MAX_Y, loaded, getSurfaceHeights(loaded)));
+        assertArrayEquals(stored.copyWords(), loaded.copyWords());
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+
+        // Each load gets its own copy
+        loaded.setWorld(region.minX(), region.minY(), region.minZ(), !loaded.getWorld(region.minX(), region.minY(),
+                region.minZ()));
+        CaveFacet loadedAgain = new CaveFacet(region, BORDER);
+        assertTrue(cache.load(7, SHAPE.clone(), MAX_Y, loadedAgain, getSurfaceHeights(loadedAgain)));
+        assertArrayEquals(stored.copyWords(), loadedAgain.copyWords());
+    }
+
+    @Test
+    public void testMissesOnOtherKeys() {
+        CaveFacetCache cache = new CaveFacetCache(4);
+        BlockRegion region = TestRegion.createChunkRegion(-32, 0, 64);
+        CaveFacet stored = createFacet(region, 2);
+        float[] surfaceHeights = getSurfaceHeights(stored);
+        cache.store(7, SHAPE.clone(), MAX_Y, stored, surfaceHeights);
+
+        // Another seed or shape
+        assertFalse(cache.load(8, SHAPE.clone(), MAX_Y, new CaveFacet(region, BORDER), surfaceHeights));
+        float[] shape = SHAPE.clone();
+        shape[1] += 1;
+        assertFalse(cache.load(7, shape, MAX_Y, new CaveFacet(region, BORDER), surfaceHeights));
+        // Generated up to another height, as the ground above the surface changed
+        assertFalse(cache.load(7, SHAPE.clone(), MAX_Y + 1, new CaveFacet(region, BORDER), surfaceHeights));
+
+        // A region of the same size somewhere else, and the same region with another border
+        BlockRegion moved = TestRegion.createChunkRegion(-32, 0, 96);
+        assertFalse(cache.load(7, SHAPE.clone(), MAX_Y, new CaveFacet(moved, BORDER), surfaceHeights));
+        assertFalse(cache.load(7, SHAPE.clone(), MAX_Y, new CaveFacet(region, new Border3D(4, 2, 2)), surfaceHeights));
+        assertFalse(cache.load(7, SHAPE.clone(), MAX_Y, new CaveFacet(region, new Border3D(5, 2, 1)), surfaceHeights));
+
+        // The surface changed in a single column
+        float[] changedHeights = surfaceHeights.clone();
+        changedHeights[changedHeights.length / 2] += 0.5f;
+        assertFalse(cache.load(7, SHAPE.clone(), MAX_Y, new CaveFacet(region, BORDER), changedHeights));
+        assertEquals(7, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        // Values after the last column, as in a larger borrowed array, don't matter
+        float[] longerHeights = Arrays.copyOf(surfaceHeights, surfaceHeights.length * 2);
+        Arrays.fill(longerHeights, surfaceHeights.length, longerHeights.length, 100f);
+        assertTrue(cache.load(7, SHAPE.clone(), MAX_Y, new CaveFacet(region, BORDER), longerHeights));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testDropsLeastRecentlyUsed() {
+        CaveFacetCache cache = new CaveFacetCache(2);
+        BlockRegion[] regions = new BlockRegion[3];
+        CaveFacet[] facets = new CaveFacet[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            regions[i] = TestRegion.createChunkRegion(i * 32, 0, 0);
+            facets[i] = createFacet(regions[i], i);
+        }
+        cache.store(1, SHAPE.clone(), MAX_Y, facets[0], getSurfaceHeights(facets[0]));
+        cache.store(1, SHAPE.clone(), MAX_Y, facets[1], getSurfaceHeights(facets[1]));
+        // Using the first region makes the second the least recently used
+        assertTrue(load(cache, regions[0], facets[0]));
+        cache.store(1, SHAPE.clone(), MAX_Y, facets[2], getSurfaceHeights(facets[2]));
+
+        assertEquals(2, cache.getRegionCount());
+        assertTrue(load(cache, regions[0], facets[0]));
+        assertFalse(load(cache, regions[1], facets[1]));
+        assertTrue(load(cache, regions[2], facets[2]));
+
+        cache.clear();
+        assertEquals(0, cache.getRegionCount());
+        assertFalse(load(cache, regions[0], facets[0]));
+    }
+
+    /**
+     * Loads the caves of a region stored with seed 1, checking them against the facet they were stored from.
+     */
+    private static boolean load(CaveFacetCache cache, BlockRegion region, CaveFacet stored) {
+        CaveFacet facet = new CaveFacet(region, BORDER);
+        boolean loaded = cache.load(1, SHAPE.clone(), MAX_Y, facet, getSurfaceHeights(stored));
+        if (loaded) {
+            assertArrayEquals(stored.copyWords(), facet.copyWords());
+        }
+        return loaded;
+    }
+
+    /**
+     * @return a facet with some randomly placed caves
+     */
+    private static CaveFacet createFacet(BlockRegion region, long seed) {
+        CaveFacet facet = new CaveFacet(region, BORDER);
+        BlockRegion worldRegion = facet.getWorldRegion();
+        Random random = new Random(seed);
+        for (int i = 0; i < 500; i++) {
+            facet.setWorld(worldRegion.minX() + random.nextInt(worldRegion.getSizeX()),
+                    worldRegion.minY() + random.nextInt(worldRegion.getSizeY()),
+                    worldRegion.minZ() + random.nextInt(worldRegion.getSizeZ()), true);
+        }
+        return facet;
+    }
+
+    /**
+     * @return surface heights for each column of the facet, which depend on where the column is
+     */
+    private static float[] getSurfaceHeights(CaveFacet facet) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        float[] heights = new float[worldRegion.getSizeX() * worldRegion.getSizeZ()];
+        int column = 0;
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                heights[column++] = x * 0.25f - z * 0.5f;
+            }
+        }
+        return heights;
+    }
+}
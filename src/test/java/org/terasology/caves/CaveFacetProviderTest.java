@@ -0,0 +1,230 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.joml.Vector3f;
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.utilities.procedural.BrownianNoise;
+import org.terasology.engine.utilities.procedural.SimplexNoise;
+import org.terasology.engine.utilities.procedural.SubSampledNoise;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.facets.DensityFacet;
+import org.terasology.engine.world.generation.facets.ElevationFacet;
+import org.terasology.engine.world.generation.facets.SurfacesFacet;
+import org.terasology.math.TeraMath;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveFacetProviderTest {
+    private static final long SEED = 42;
+    /**
+     * How close to the threshold a block may be for its noise to be rounded differently when sampled in slabs or
+     * through the cache.
+     */
+    private static final float THRESHOLD_TOLERANCE = 1e-5f;
+
+    @Test
+    public void testParallelMatchesSerial() {
+        int parallelism = CaveParallelism.getParallelism();
+        CaveFacetProvider provider = new CaveFacetProvider();
+        provider.setSeed(42);
+        int caveCount = 0;
+        try {
+            for (int i = 0; i < 4; i++) {
+                BlockRegion region = TestRegion.createChunkRegion(i * 37 - 200, -60 + (i % 2) * 30, i * 53 - 300);
+                CaveParallelism.setParallelism(1);
+                CaveFacet serial = generate(provider, region, i);
+                for (int threads = 2; threads <= 4; threads += 2) {
+                    CaveParallelism.setParallelism(threads);
+                    assertArrayEquals(serial.copyWords(), generate(provider, region, i).copyWords(),
+                            threads + " threads in " + region);
+                }
+                caveCount += serial.getCaveCount();
+            }
+        } finally {
+            CaveParallelism.setParallelism(parallelism);
+        }
+        assertTrue(caveCount > 0, "No caves generated");
+    }
+
+    @Test
+    public void testKeepsParallelism() {
+        int parallelism = CaveParallelism.getParallelism();
+        try {
+            // Set by the console command or a server, which creating or configuring a world mustn't undo
+            CaveParallelism.setParallelism(3);
+            CaveFacetProvider provider = new CaveFacetProvider();
+            provider.setSeed(SEED);
+            assertEquals(3, CaveParallelism.getParallelism());
+            provider.setConfiguration(new CaveFacetProvider.CaveFacetConfiguration());
+            assertEquals(3, CaveParallelism.getParallelism());
+            provider.setSeed(SEED + 1);
+            assertEquals(3, CaveParallelism.getParallelism());
+        } finally {
+            CaveParallelism.setParallelism(parallelism);
+        }
+    }
+
+    @Test
+    public void testMatchesReference() {
+        // Regions in the sky, around the surface and deep underground, with the surface between -50 and 50
+        int[] minYs = {200, -40, -1000};
+        CaveFacetProvider.CaveFacetConfiguration configuration = new CaveFacetProvider.CaveFacetConfiguration();
+        for (int minY : minYs) {
+            int caves = 0;
+            for (int i = 0; i < 3; i++) {
+                BlockRegion region = TestRegion.createChunkRegion(i * 67 - 30, minY, i * 43 - 90);
+                TestRegion generated = TestRegion.withTerrain(region, 0, i);
+                ReferenceCaves reference = assertMatchesReference(generated, configuration);
+                caves += reference.caves;
+
+                // The caves left out are all removed from the reference caves once they are sealed
+                TestRegion referenced = TestRegion.withTerrain(region, 0, i);
+                referenced.setRegionFacet(CaveFacet.class, reference.facet);
+                new CaveToSurfaceProvider().process(generated);
+                new CaveToSurfaceProvider().process(referenced);
+                assertArrayEquals(reference.facet.copyWords(),
+                        generated.getRegionFacet(CaveFacet.class).copyWords(), "Sealed caves in " + region);
+                assertSurfacesEqual(referenced.getRegionFacet(SurfacesFacet.class),
+                        generated.getRegionFacet(SurfacesFacet.class));
+            }
+            if (minY < 0) {
+                assertTrue(caves > 0, "No caves generated from " + minY);
+            }
+        }
+    }
+
+    @Test
+    public void testOverhangsKeepCaves() {
+        // Without the reduction near the surface, so that the caves above it are common
+        CaveFacetProvider.CaveFacetConfiguration configuration = new CaveFacetProvider.CaveFacetConfiguration();
+        configuration.surfaceReduction = 0;
+        int overhangCaves = 0;
+        for (int i = 0; i < 4; i++) {
+            // Far above the surface, with solid ground in half of it
+            BlockRegion region = TestRegion.createChunkRegion(i * 59 - 100, 400, i * 31 + 20);
+            TestRegion testRegion = TestRegion.withTerrain(region, -200, i);
+            DensityFacet densityFacet = testRegion.getRegionFacet(DensityFacet.class);
+            BlockRegion densityRegion = densityFacet.getWorldRegion();
+            for (int z = densityRegion.minZ(); z <= densityRegion.maxZ(); z++) {
+                for (int y = 420; y <= 460; y++) {
+                    for (int x = densityRegion.minX(); x <= region.minX() + 15; x++) {
+                        densityFacet.setWorld(x, y, z, 1);
+                    }
+                }
+            }
+            overhangCaves += assertMatchesReference(testRegion, configuration).solidCaves;
+        }
+        assertTrue(overhangCaves > 0, "No caves in the overhangs");
+    }
+
+    /**
+     * Generates the caves of the region and checks them block by block against the formula they were first
+     * generated with, going through every block of the region as it used to. The depth is taken in whole blocks, so
+     * the blocks at the edge of a cave may differ from the formula taking the exact depth, but nothing else. The
+     * noise is sampled for the whole region at once, without the cache, so this also checks that sampling it in
+     * slabs and through the cache doesn't change it. The only caves left out must be far enough above the surface
+     * for the radius to be negative, and not in solid ground, as those are removed by
+     * {@link CaveToSurfaceProvider}.
+     */
+    private static ReferenceCaves assertMatchesReference(TestRegion region,
+                                                         CaveFacetProvider.CaveFacetConfiguration configuration) {
+        CaveFacetProvider provider = new CaveFacetProvider();
+        provider.setConfiguration(configuration);
+        provider.setSeed(SEED);
+        provider.process(region);
+        CaveFacet facet = region.getRegionFacet(CaveFacet.class);
+        ElevationFacet elevationFacet = region.getRegionFacet(ElevationFacet.class);
+        DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
+
+        BlockRegion worldRegion = facet.getWorldRegion();
+        float[] noiseX = buildNoise(SEED + 2, configuration).noise(worldRegion);
+        float[] noiseY = buildNoise(SEED + 3, configuration).noise(worldRegion);
+        ReferenceCaves result = new ReferenceCaves();
+        result.facet = new CaveFacet(region.getRegion(), region.getBorderForFacet(CaveFacet.class));
+        int index = 0;
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int y = worldRegion.minY(); y <= worldRegion.maxY(); y++) {
+                for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++, index++) {
+                    float elevation = elevationFacet.getWorld(x, z);
+                    float depth = TeraMath.floorToInt(elevation) - y;
+                    float distance = getThresholdDistance(configuration, noiseX[index], noiseY[index], depth);
+                    boolean expected = distance < 0;
+                    boolean actual = facet.getWorld(x, y, z);
+                    boolean solid = densityFacet.getWorld(x, y, z) > 0;
+                    String position = String.format("(%d, %d, %d)", x, y, z);
+                    if (expected && !actual && !solid) {
+                        assertTrue(depth < -configuration.getMaxHeightAboveSurface(),
+                                "Cave left out below the height the radius reaches 0 at " + position);
+                    } else if (expected != actual) {
+                        assertTrue(Math.abs(distance) < THRESHOLD_TOLERANCE, "Cave differs at " + position);
+                    }
+                    // Where the rounding of the noise decides, go with the caves generated
+                    result.facet.setWorld(x, y, z, Math.abs(distance) < THRESHOLD_TOLERANCE ? actual : expected);
+                    result.caves += actual ? 1 : 0;
+                    result.solidCaves += actual && solid && depth < 0 ? 1 : 0;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void assertSurfacesEqual(SurfacesFacet expected, SurfacesFacet actual) {
+        BlockRegion worldRegion = expected.getWorldRegion();
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int y = worldRegion.minY(); y <= worldRegion.maxY(); y++) {
+                for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                    assertEquals(expected.getWorld(x, y, z), actual.getWorld(x, y, z),
+                            String.format("Surface at (%d, %d, %d)", x, y, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * The formula the caves were first generated with, for a depth below the surface which need not be whole.
+     *
+     * @return how far the noise is inside (negative) or outside (positive) of the caves
+     */
+    private static float getThresholdDistance(CaveFacetProvider.CaveFacetConfiguration configuration, float noiseX,
+                                              float noiseY, float depth) {
+        //0: no reduction, 0.7: pretty much no caves. Also somewhat increases the tendency of caves to loop rather
+        // than continuing indefinitely.
+        float frequencyReduction = Math.max(0,
+                configuration.surfaceReduction - Math.max(depth, 0) / configuration.reductionFadeDepth);
+        float xx = noiseX;
+        float yy = noiseY + frequencyReduction;
+        float freqDepth = configuration.surfaceRadius + depth / configuration.radiusGrowthDepth;
+        return xx * xx + yy * yy - freqDepth * freqDepth;
+    }
+
+    private static SubSampledNoise buildNoise(long noiseSeed, CaveFacetProvider.CaveFacetConfiguration configuration) {
+        Vector3f zoom = new Vector3f(configuration.noiseScale, configuration.noiseScale, configuration.noiseScale);
+        BrownianNoise baseNoise = new BrownianNoise(new SimplexNoise(noiseSeed), configuration.octaves);
+        return new SubSampledNoise(baseNoise, zoom, configuration.sampleRate);
+    }
+
+    private static CaveFacet generate(CaveFacetProvider provider, BlockRegion region, int seed) {
+        TestRegion testRegion = TestRegion.withTerrain(region, -200, seed);
+        provider.process(testRegion);
+        return testRegion.getRegionFacet(CaveFacet.class);
+    }
+
+    /**
+     * What {@link #assertMatchesReference} found.
+     */
+    private static final class ReferenceCaves {
+        /**
+         * The caves as the formula places them, including those left out.
+         */
+        CaveFacet facet;
+        int caves;
+        /**
+         * The caves in solid ground above the surface.
+         */
+        int solidCaves;
+    }
+}
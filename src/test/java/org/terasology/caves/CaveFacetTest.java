@@ -0,0 +1,149 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveFacetTest {
+    /**
+     * 150 blocks high, so the columns take three words, the top one only partly used.
+     */
+    private static final BlockRegion REGION = new BlockRegion(-8, -70, 4, 7, 79, 19);
+
+    @Test
+    public void testValuesAtWordEdges() {
+        CaveFacet facet = new CaveFacet(REGION, new Border3D(0, 0, 0));
+        assertEquals(3, facet.getWordsPerColumn());
+        int[] offsets = {0, 63, 64, 127, 128, 149};
+        for (int offset : offsets) {
+            facet.setWorld(-3, REGION.minY() + offset, 10, true);
+        }
+
+        for (int y = REGION.minY(); y <= REGION.maxY(); y++) {
+            boolean expected = false;
+            for (int offset : offsets) {
+                expected |= y == REGION.minY() + offset;
+            }
+            assertEquals(expected, facet.getWorld(-3, y, 10), "y = " + y);
+            assertFalse(facet.getWorld(-2, y, 10));
+        }
+        assertEquals(1L | 1L << 63, facet.getWorldColumnWord(-3, 10, 0));
+        assertEquals(1L | 1L << 63, facet.getWorldColumnWord(-3, 10, 1));
+        assertEquals(1L | 1L << 21, facet.getWorldColumnWord(-3, 10, 2));
+        assertEquals(offsets.length, countCaves(facet));
+
+        facet.setWorld(-3, REGION.minY() + 64, 10, false);
+        assertFalse(facet.getWorld(-3, REGION.minY() + 64, 10));
+        assertTrue(facet.getWorld(-3, REGION.minY() + 63, 10));
+        assertEquals(offsets.length - 1, countCaves(facet));
+    }
+
+    @Test
+    public void testTopWordIgnoresBitsAboveRegion() {
+        CaveFacet facet = new CaveFacet(REGION, new Border3D(0, 0, 0));
+        facet.setWorldColumnWord(0, 4, 2, -1L);
+        assertEquals(150 - 128, countCaves(facet));
+        assertEquals((1L << 22) - 1, facet.getWorldColumnWord(0, 4, 2));
+        assertTrue(facet.getWorld(0, REGION.maxY(), 4));
+        assertFalse(facet.getWorld(0, REGION.minY() + 127, 4));
+
+        for (int z = REGION.minZ(); z <= REGION.maxZ(); z++) {
+            for (int x = REGION.minX(); x <= REGION.maxX(); x++) {
+                for (int word = 0; word < 3; word++) {
+                    facet.setWorldColumnWord(x, z, word, -1L);
+                }
+            }
+        }
+        assertTrue(facet.isFull());
+    }
+
+    @Test
+    public void testColumnBitsFromAnyHeight() {
+        CaveFacet facet = new CaveFacet(REGION, new Border3D(0, 0, 0));
+        Random random = new Random(42);
+        for (int y = REGION.minY(); y <= REGION.maxY(); y++) {
+            facet.setWorld(5, y, 17, random.nextBoolean());
+        }
+
+        for (int fromY = REGION.minY() - 70; fromY <= REGION.maxY() + 5; fromY++) {
+            long bits = facet.getWorldColumnBits(5, 17, fromY);
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                int y = fromY + bit;
+                boolean expected = REGION.minY() <= y && y <= REGION.maxY() && facet.getWorld(5, y, 17);
+                assertEquals(expected, (bits >>> bit & 1) != 0, "from " + fromY + ", bit " + bit);
+            }
+        }
+    }
+
+    @Test
+    public void testRelativeAndWorldPositions() {
+        CaveFacet facet = new CaveFacet(REGION, new Border3D(2, 3, 1));
+        BlockRegion worldRegion = facet.getWorldRegion();
+        assertEquals(REGION.minY() - 3, worldRegion.minY());
+        assertEquals(REGION.maxY() + 2, worldRegion.maxY());
+
+        facet.setWorld(worldRegion.minX(), worldRegion.minY(), worldRegion.minZ(), true);
+        facet.set(0, 0, 0, true);
+        facet.setWorld(worldRegion.maxX(), worldRegion.maxY(), worldRegion.maxZ(), true);
+        assertTrue(facet.get(-1, -3, -1));
+        assertTrue(facet.getWorld(REGION.minX(), REGION.minY(), REGION.minZ()));
+        assertTrue(facet.get(REGION.getSizeX(), REGION.getSizeY() + 1, REGION.getSizeZ()));
+        assertEquals(3, countCaves(facet));
+    }
+
+    @Test
+    public void testCaveCountFollowsWrites() throws Exception {
+        CaveFacet facet = new CaveFacet(REGION, new Border3D(0, 0, 0));
+        assertTrue(facet.isEmpty());
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            int x = REGION.minX() + random.nextInt(REGION.getSizeX());
+            int z = REGION.minZ() + random.nextInt(REGION.getSizeZ());
+            if (i % 3 == 0) {
+                facet.setWorldColumnWord(x, z, random.nextInt(3), random.nextLong());
+            } else {
+                facet.setWorld(x, REGION.minY() + random.nextInt(REGION.getSizeY()), z, random.nextBoolean());
+            }
+            // Each query after a write sees it
+            assertEquals(countCaves(facet), facet.getCaveCount());
+        }
+
+        // A count cached by one thread is seen by another, and so is a write making it stale
+        assertEquals(countCaves(facet), countOnOtherThread(facet));
+        assertEquals(countCaves(facet), facet.getCaveCount());
+        facet.setWorldColumnWord(REGION.minX(), REGION.minZ(), 0, -1L);
+        assertEquals(countCaves(facet), countOnOtherThread(facet));
+    }
+
+    private static int countOnOtherThread(CaveFacet facet) throws InterruptedException {
+        int[] count = new int[1];
+        Thread thread = new Thread(() -> count[0] = facet.getCaveCount());
+        thread.start();
+        thread.join();
+        return count[0];
+    }
+
+    private static int countCaves(CaveFacet facet) {
+        int count = 0;
+        BlockRegion worldRegion = facet.getWorldRegion();
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int y = worldRegion.minY(); y <= worldRegion.maxY(); y++) {
+                for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                    if (facet.getWorld(x, y, z)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,226 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveLocationProviderTest {
+
+    @Test
+    public void testLazyColumnsMatchBlocks() {
+        for (int i = 0; i < 4; i++) {
+            TestRegion region = createRegion(i);
+            new CaveLocationProvider().process(region, false);
+            CaveLocationFacet facet = region.getRegionFacet(CaveLocationFacet.class);
+            assertEquals(0, facet.getFilledLocationCount());
+            assertMatchesBlocks(region.getRegionFacet(CaveFacet.class), facet);
+        }
+    }
+
+    @Test
+    public void testEagerColumnsMatchBlocks() {
+        int parallelism = CaveParallelism.getParallelism();
+        try {
+            for (int threads = 1; threads <= 4; threads += 3) {
+                CaveParallelism.setParallelism(threads);
+                for (int i = 0; i < 4; i++) {
+                    TestRegion region = createRegion(i);
+                    new CaveLocationProvider().process(region, true);
+                    CaveLocationFacet facet = region.getRegionFacet(CaveLocationFacet.class);
+                    assertEquals(facet.getLocationCount(), facet.getFilledLocationCount());
+                    assertMatchesBlocks(region.getRegionFacet(CaveFacet.class), facet);
+                }
+            }
+        } finally {
+            CaveParallelism.setParallelism(parallelism);
+        }
+    }
+
+    @Test
+    public void testConfigurationChoosesEager() {
+        for (boolean eager : new boolean[]{false, true}) {
+            CaveLocationProvider provider = new CaveLocationProvider();
+            CaveLocationProvider.CaveLocationConfiguration configuration =
+                    new CaveLocationProvider.CaveLocationConfiguration();
+            configuration.eager = eager;
+            provider.setConfiguration(configuration);
+            TestRegion region = createRegion(3);
+            provider.process(region);
+            CaveLocationFacet facet = region.getRegionFacet(CaveLocationFacet.class);
+            assertEquals(eager ? facet.getLocationCount() : 0, facet.getFilledLocationCount());
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        int parallelism = CaveParallelism.getParallelism();
+        try {
+            for (int i = 0; i < 4; i++) {
+                CaveParallelism.setParallelism(1);
+                CaveLocationFacet serial = findCaves(i);
+                for (int threads = 2; threads <= 4; threads += 2) {
+                    CaveParallelism.setParallelism(threads);
+                    CaveLocationFacet parallel = findCaves(i);
+                    assertEquals(serial.getLocationCount(), parallel.getLocationCount());
+                    // The caves are added in the same order, so they get the same numbers
+                    for (int z = serial.getWorldArea().minY(); z <= serial.getWorldArea().maxY(); z++) {
+                        for (int x = serial.getWorldArea().minX(); x <= serial.getWorldArea().maxX(); x++) {
+                            assertEquals(serial.getWorldLocationStart(x, z), parallel.getWorldLocationStart(x, z));
+                            assertEquals(serial.getWorldLocationEnd(x, z), parallel.getWorldLocationEnd(x, z));
+                        }
+                    }
+                    for (int location = 0; location < serial.getLocationCount(); location++) {
+                        assertEquals(serial.getCeiling(location), parallel.getCeiling(location));
+                        assertEquals(serial.getFloor(location), parallel.getFloor(location));
+                    }
+                }
+            }
+        } finally {
+            CaveParallelism.setParallelism(parallelism);
+        }
+    }
+
+    @Test
+    public void testLazyColumnsReadFromSeveralThreads() throws Exception {
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < 16; i++) {
+                TestRegion region = createRegion(i);
+                new CaveLocationProvider().process(region, false);
+                CaveLocationFacet facet = region.getRegionFacet(CaveLocationFacet.class);
+                // Start the readers together, so that they ask for the same columns at about the same time
+                CyclicBarrier start = new CyclicBarrier(threads);
+                List<Future<?>> readers = new ArrayList<>();
+                for (int reader = 0; reader < threads; reader++) {
+                    readers.add(executor.submit(() -> {
+                        start.await();
+                        assertMatchesBlocks(region.getRegionFacet(CaveFacet.class), facet);
+                        return null;
+                    }));
+                }
+                for (Future<?> reader : readers) {
+                    reader.get();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLazyOnlyFindsColumnsAskedFor() {
+        TestRegion region = createRegion(1);
+        new CaveLocationProvider().process(region, false);
+        CaveLocationFacet facet = region.getRegionFacet(CaveLocationFacet.class);
+        BlockRegion worldRegion = region.getRegion();
+        int count = 0;
+        for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+            int z = worldRegion.minZ();
+            count += facet.getWorldLocationEnd(x, z) - facet.getWorldLocationStart(x, z);
+        }
+        assertEquals(count, facet.getFilledLocationCount());
+        assertTrue(facet.getLocationCount() >= count);
+    }
+
+    @Test
+    public void testSetReplacesColumn() {
+        TestRegion region = createRegion(2);
+        new CaveLocationProvider().process(region, true);
+        CaveLocationFacet facet = region.getRegionFacet(CaveLocationFacet.class);
+        BlockRegion worldRegion = region.getRegion();
+        int x = worldRegion.minX();
+        int z = worldRegion.minZ();
+        CaveLocation[] next = facet.getWorld(x + 1, z);
+        int count = facet.getLocationCount();
+
+        // More caves than the column had, then fewer
+        for (int length : new int[]{facet.getWorld(x, z).length + 3, 1}) {
+            CaveLocation[] locations = new CaveLocation[length];
+            for (int i = 0; i < length; i++) {
+                locations[i] = new CaveLocation();
+                locations[i].ceiling = 100 - 10 * i;
+                locations[i].floor = 95 - 10 * i;
+            }
+            count += length - facet.getWorld(x, z).length;
+            facet.setWorld(x, z, locations);
+            CaveLocation[] actual = facet.get(0, 0);
+            assertEquals(length, actual.length);
+            for (int i = 0; i < length; i++) {
+                assertEquals(locations[i].ceiling, actual[i].ceiling);
+                assertEquals(locations[i].floor, actual[i].floor);
+            }
+            assertEquals(count, facet.getLocationCount());
+        }
+        facet.set(0, 0, null);
+        assertEquals(0, facet.getWorld(x, z).length);
+
+        // The column next to it is left alone
+        CaveLocation[] actualNext = facet.getWorld(x + 1, z);
+        assertEquals(next.length, actualNext.length);
+        for (int i = 0; i < next.length; i++) {
+            assertEquals(next[i].ceiling, actualNext[i].ceiling);
+            assertEquals(next[i].floor, actualNext[i].floor);
+        }
+    }
+
+    private static TestRegion createRegion(int seed) {
+        BlockRegion region = TestRegion.createChunkRegion(seed * 37 - 200, -40 - (seed % 2) * 20, seed * 53 - 300);
+        return TestRegion.withTerrain(region, -200, seed);
+    }
+
+    /**
+     * @return the caves of all columns of a region, found up front
+     */
+    private static CaveLocationFacet findCaves(int seed) {
+        TestRegion region = createRegion(seed);
+        new CaveLocationProvider().process(region, true);
+        return region.getRegionFacet(CaveLocationFacet.class);
+    }
+
+    /**
+     * Checks the caves of each column against those found by going down the column block by block.
+     */
+    private static void assertMatchesBlocks(CaveFacet caveFacet, CaveLocationFacet facet) {
+        BlockRegion caveRegion = caveFacet.getWorldRegion();
+        int found = 0;
+        for (int z = facet.getWorldArea().minY(); z <= facet.getWorldArea().maxY(); z++) {
+            for (int x = facet.getWorldArea().minX(); x <= facet.getWorldArea().maxX(); x++) {
+                List<float[]> expected = new ArrayList<>();
+                Float ceiling = null;
+                for (int y = caveRegion.maxY(); y >= caveRegion.minY(); y--) {
+                    boolean cave = caveFacet.getWorld(x, y, z);
+                    if (cave && ceiling == null) {
+                        ceiling = y == caveRegion.maxY() ? CaveLocation.UNKNOWN : y + 1;
+                    } else if (!cave && ceiling != null) {
+                        expected.add(new float[]{ceiling, y});
+                        ceiling = null;
+                    }
+                }
+
+                int start = facet.getWorldLocationStart(x, z);
+                int end = facet.getWorldLocationEnd(x, z);
+                assertEquals(expected.size(), end - start, "Caves in column " + x + ", " + z);
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i)[0], facet.getCeiling(start + i), "Ceiling in " + x + ", " + z);
+                    assertEquals(expected.get(i)[1], facet.getFloor(start + i), "Floor in " + x + ", " + z);
+                }
+                found += expected.size();
+            }
+        }
+        assertTrue(found > 0, "No caves found");
+        assertEquals(found, facet.getLocationCount());
+    }
+}
@@ -0,0 +1,68 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.joml.Vector3f;
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.utilities.procedural.AbstractNoise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CaveNoiseCacheTest {
+
+    @Test
+    public void testCellsFarApartAreKeptApart() {
+        CaveNoiseCache cache = new CaveNoiseCache(new CountingNoise(), new Vector3f(1, 1, 1), 1, 64);
+        // 2^21 cells apart, on each axis in turn
+        float far = 1 << 24;
+        assertEquals(1f, cache.noise(1, 2, 3));
+        assertEquals(2f, cache.noise(far + 1, 2, 3));
+        assertEquals(3f, cache.noise(1, far + 2, 3));
+        assertEquals(4f, cache.noise(1, 2, far + 3));
+        assertEquals(5f, cache.noise(1, 2 - far, 3));
+        assertEquals(1f, cache.noise(1, 2, 3));
+        assertEquals(2f, cache.noise(far + 1, 2, 3));
+    }
+
+    @Test
+    public void testCountsHitsAndMisses() {
+        CaveNoiseCache cache = new CaveNoiseCache(new CountingNoise(), new Vector3f(0.5f, 0.5f, 0.5f), 2, 64);
+        for (int pass = 0; pass < 2; pass++) {
+            float value = 1;
+            for (int z = 0; z < CaveNoiseCache.CELL_SIZE; z++) {
+                for (int y = 0; y < CaveNoiseCache.CELL_SIZE; y++) {
+                    for (int x = 0; x < CaveNoiseCache.CELL_SIZE; x++) {
+                        assertEquals(value++, cache.noise(x, y, z));
+                    }
+                }
+            }
+        }
+        // Off the lattice, so passed on without counting
+        cache.noise(0.5f, 0, 0);
+        // The counts of a cell are added once the thread moves on to another one
+        cache.noise(-1, 0, 0);
+        int points = CaveNoiseCache.CELL_SIZE * CaveNoiseCache.CELL_SIZE * CaveNoiseCache.CELL_SIZE;
+        assertEquals(points, cache.getMisses());
+        assertEquals(points, cache.getHits());
+        assertEquals(2, cache.getCellCount());
+    }
+
+    /**
+     * Noise which gives the number of times it has been asked for a value, so that each value tells which call it
+     * came from.
+     */
+    private static final class CountingNoise extends AbstractNoise {
+        private int calls;
+
+        @Override
+        public float noise(float x, float y) {
+            return ++calls;
+        }
+
+        @Override
+        public float noise(float x, float y, float z) {
+            return ++calls;
+        }
+    }
+}
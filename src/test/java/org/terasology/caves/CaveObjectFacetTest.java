@@ -0,0 +1,121 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.joml.Vector3i;
+import org.joml.Vector3ic;
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveObjectFacetTest {
+    private static final BlockRegion REGION = new BlockRegion(-40, -20, 100, -9, 43, 131);
+    private static final Border3D BORDER = new Border3D(2, 1, 3);
+
+    @Test
+    public void testEntriesKeepPositionAndType() {
+        CaveObjectFacet facet = new CaveObjectFacet(REGION, BORDER);
+        BlockRegion relativeRegion = facet.getRelativeRegion();
+        // The corners of the region, with its border, and one position in between
+        int[][] positions = {
+                {relativeRegion.minX(), relativeRegion.minY(), relativeRegion.minZ()},
+                {relativeRegion.maxX(), relativeRegion.maxY(), relativeRegion.maxZ()},
+                {relativeRegion.minX(), relativeRegion.maxY(), relativeRegion.minZ()},
+                {relativeRegion.maxX(), relativeRegion.minY(), relativeRegion.maxZ()},
+                {3, 5, 7},
+        };
+        CaveObjectType[] types = CaveObjectType.values();
+        for (int i = 0; i < positions.length; i++) {
+            facet.set(positions[i][0], positions[i][1], positions[i][2], types[i % types.length]);
+        }
+        facet.sort();
+
+        assertEquals(positions.length, facet.getEntryCount());
+        Map<Vector3ic, CaveObjectType> entries = facet.getRelativeEntries();
+        for (int i = 0; i < positions.length; i++) {
+            Vector3i position = new Vector3i(positions[i][0], positions[i][1], positions[i][2]);
+            assertEquals(types[i % types.length], entries.get(position), "Entry at " + position);
+            assertEquals(types[i % types.length], facet.get(position));
+        }
+        for (int i = 0; i < facet.getEntryCount(); i++) {
+            assertTrue(relativeRegion.contains(facet.getEntryX(i), facet.getEntryY(i), facet.getEntryZ(i)));
+        }
+    }
+
+    @Test
+    public void testWorldPositionsMatchRelative() {
+        CaveObjectFacet facet = new CaveObjectFacet(REGION, BORDER);
+        BlockRegion worldRegion = facet.getWorldRegion();
+        facet.setWorld(worldRegion.minX(), worldRegion.maxY(), worldRegion.minZ() + 4, CaveObjectType.WALL);
+        facet.setWorld(REGION.minX(), REGION.minY(), REGION.minZ(), CaveObjectType.FLOOR);
+        facet.sort();
+
+        assertEquals(CaveObjectType.FLOOR, facet.get(0, 0, 0));
+        assertEquals(CaveObjectType.WALL,
+                facet.getWorld(worldRegion.minX(), worldRegion.maxY(), worldRegion.minZ() + 4));
+        assertNull(facet.getWorld(worldRegion.minX(), worldRegion.maxY(), worldRegion.minZ() + 5));
+        Map<Vector3ic, CaveObjectType> entries = facet.getWorldEntries();
+        assertEquals(2, entries.size());
+        assertEquals(CaveObjectType.WALL,
+                entries.get(new Vector3i(worldRegion.minX(), worldRegion.maxY(), worldRegion.minZ() + 4)));
+        assertEquals(CaveObjectType.FLOOR, entries.get(new Vector3i(REGION.minX(), REGION.minY(), REGION.minZ())));
+    }
+
+    @Test
+    public void testLastEntryWins() {
+        CaveObjectFacet facet = new CaveObjectFacet(REGION, BORDER);
+        BlockRegion relativeRegion = facet.getRelativeRegion();
+        Map<Vector3ic, CaveObjectType> expected = new HashMap<>();
+        Random random = new Random(5);
+        // Few enough positions that most are set several times, in no particular order
+        for (int i = 0; i < 2000; i++) {
+            Vector3i position = new Vector3i(relativeRegion.minX() + random.nextInt(6), random.nextInt(4),
+                    relativeRegion.maxZ() - random.nextInt(5));
+            CaveObjectType type = CaveObjectType.values()[random.nextInt(CaveObjectType.values().length)];
+            facet.set(position, type);
+            expected.put(position, type);
+            // Before sorting, reads see the last entry too
+            if (i % 100 == 0) {
+                assertEquals(type, facet.get(position));
+            }
+        }
+        facet.sort();
+
+        assertEquals(expected.size(), facet.getEntryCount());
+        int previous = -1;
+        for (int i = 0; i < facet.getEntryCount(); i++) {
+            Vector3i position = new Vector3i(facet.getEntryX(i), facet.getEntryY(i), facet.getEntryZ(i));
+            assertEquals(expected.get(position), facet.getEntryType(i), "Entry at " + position);
+            // Ordered from x to z, with each position once
+            int index = position.x - relativeRegion.minX() + relativeRegion.getSizeX()
+                    * (position.y - relativeRegion.minY() + relativeRegion.getSizeY()
+                    * (position.z - relativeRegion.minZ()));
+            assertTrue(index > previous, "Entries out of order at " + position);
+            previous = index;
+        }
+        for (Map.Entry<Vector3ic, CaveObjectType> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), facet.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testSetOutsideRegion() {
+        CaveObjectFacet facet = new CaveObjectFacet(REGION, BORDER);
+        BlockRegion relativeRegion = facet.getRelativeRegion();
+        assertThrows(IllegalArgumentException.class,
+                () -> facet.set(relativeRegion.maxX() + 1, 0, 0, CaveObjectType.FLOOR));
+        assertThrows(IllegalArgumentException.class,
+                () -> facet.set(0, relativeRegion.minY() - 1, 0, CaveObjectType.FLOOR));
+        assertEquals(0, facet.getEntryCount());
+    }
+}
@@ -0,0 +1,212 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.joml.Vector3i;
+import org.joml.Vector3ic;
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.facets.DensityFacet;
+import org.terasology.engine.world.generation.facets.ElevationFacet;
+import org.terasology.math.TeraMath;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveObjectProviderTest {
+
+    @Test
+    public void testEntriesMatchBlocks() {
+        for (CaveObjectType type : CaveObjectType.values()) {
+            // Every column gets an object of the one type with a weight
+            CaveObjectProvider.CaveObjectConfiguration configuration = new CaveObjectProvider.CaveObjectConfiguration();
+            configuration.density = 1;
+            configuration.defaultWeight = type == CaveObjectType.DEFAULT ? 1 : 0;
+            configuration.floorWeight = type == CaveObjectType.FLOOR ? 1 : 0;
+            configuration.ceilingWeight = type == CaveObjectType.CEILING ? 1 : 0;
+            configuration.wallWeight = type == CaveObjectType.WALL ? 1 : 0;
+            configuration.floorMinDepth = 8;
+            configuration.ceilingMaxDepth = 12;
+
+            int found = 0;
+            for (int i = 0; i < 4; i++) {
+                TestRegion region = createRegion(i);
+                CaveObjectFacet facet = placeObjects(region, configuration);
+                Map<Vector3ic, CaveObjectType> expected = findObjects(region, type, configuration);
+                assertEquals(expected, facet.getWorldEntries(), type + " objects in " + region.getRegion());
+                found += expected.size();
+            }
+            assertTrue(found > 0, "No " + type + " objects placed");
+        }
+    }
+
+    @Test
+    public void testTypesFollowWeights() {
+        CaveObjectProvider.CaveObjectConfiguration configuration = new CaveObjectProvider.CaveObjectConfiguration();
+        configuration.density = 1;
+        configuration.defaultWeight = 1;
+        configuration.floorWeight = 2;
+        configuration.ceilingWeight = 1;
+        configuration.wallWeight = 0;
+
+        // Columns get objects the same way whichever of these types they pick, so the share of each type among
+        // the columns with objects follows the weights
+        int[] columns = new int[CaveObjectType.values().length];
+        int total = 0;
+        for (int i = 0; i < 8; i++) {
+            CaveObjectFacet facet = placeObjects(createRegion(i), configuration);
+            Map<Long, CaveObjectType> columnTypes = new HashMap<>();
+            for (int entry = 0; entry < facet.getEntryCount(); entry++) {
+                long column = (long) facet.getEntryX(entry) << 32 | facet.getEntryZ(entry) & 0xFFFFFFFFL;
+                CaveObjectType previous = columnTypes.put(column, facet.getEntryType(entry));
+                assertTrue(previous == null || previous == facet.getEntryType(entry), "Several types in a column");
+            }
+            for (CaveObjectType type : columnTypes.values()) {
+                columns[type.ordinal()]++;
+                total++;
+            }
+        }
+
+        assertTrue(total > 300, "Too few columns with objects: " + total);
+        assertEquals(0, columns[CaveObjectType.WALL.ordinal()]);
+        assertEquals(0.25, (double) columns[CaveObjectType.DEFAULT.ordinal()] / total, 0.1);
+        assertEquals(0.5, (double) columns[CaveObjectType.FLOOR.ordinal()] / total, 0.1);
+        assertEquals(0.25, (double) columns[CaveObjectType.CEILING.ordinal()] / total, 0.1);
+    }
+
+    @Test
+    public void testTypeAtTopOfDensity() {
+        // The last type, walls, has no weight
+        float[] typeWeights = {0.7f, 2.3f, 3.1f, 3.1f};
+        for (int i = 1; i <= 100; i++) {
+            float density = i / 100f;
+            assertEquals(CaveObjectType.CEILING,
+                    CaveObjectProvider.selectType(typeWeights, Math.nextDown(density), density), "Density " + density);
+            // Even if the random value reaches the total weight
+            assertEquals(CaveObjectType.CEILING, CaveObjectProvider.selectType(typeWeights, density, density));
+        }
+        // Types without weight are skipped from any end
+        float[] floorOnly = {0, 1.5f, 1.5f, 1.5f};
+        assertEquals(CaveObjectType.FLOOR, CaveObjectProvider.selectType(floorOnly, 0, 0.5f));
+        assertEquals(CaveObjectType.FLOOR, CaveObjectProvider.selectType(floorOnly, 0.5f, 0.5f));
+        assertEquals(CaveObjectType.DEFAULT, CaveObjectProvider.selectType(new float[]{2, 2, 2, 2}, 0.5f, 0.5f));
+    }
+
+    @Test
+    public void testDensity() {
+        CaveObjectProvider.CaveObjectConfiguration configuration = new CaveObjectProvider.CaveObjectConfiguration();
+        int all = 0;
+        int some = 0;
+        for (int i = 0; i < 8; i++) {
+            configuration.density = 1;
+            Map<Vector3ic, CaveObjectType> allObjects = placeObjects(createRegion(i), configuration).getWorldEntries();
+            configuration.density = 0.25f;
+            Map<Vector3ic, CaveObjectType> someObjects = placeObjects(createRegion(i), configuration).getWorldEntries();
+            configuration.density = 0;
+            assertEquals(0, placeObjects(createRegion(i), configuration).getEntryCount());
+
+            // A lower density only leaves out columns
+            assertTrue(allObjects.keySet().containsAll(someObjects.keySet()), "Objects added at a lower density");
+            all += allObjects.size();
+            some += someObjects.size();
+        }
+        assertTrue(some > 0, "No objects placed");
+        assertEquals(0.25, (double) some / all, 0.1);
+    }
+
+    @Test
+    public void testReuseCaves() {
+        CaveObjectProvider provider = new CaveObjectProvider();
+        CaveObjectProvider.CaveObjectConfiguration configuration = new CaveObjectProvider.CaveObjectConfiguration();
+        configuration.reuseCaves = true;
+        provider.setConfiguration(configuration);
+        // Only once the provider knows which world it is for
+        assertFalse(CaveFacetProvider.isRememberingRegions(17));
+        provider.setSeed(17);
+        assertTrue(CaveFacetProvider.isRememberingRegions(17));
+        assertFalse(CaveFacetProvider.isRememberingRegions(18));
+
+        provider.setConfiguration(new CaveObjectProvider.CaveObjectConfiguration());
+        assertFalse(CaveFacetProvider.isRememberingRegions(17));
+    }
+
+    private static TestRegion createRegion(int seed) {
+        BlockRegion region = TestRegion.createChunkRegion(seed * 41 - 150, -50 + (seed % 2) * 10, seed * 29 + 70);
+        TestRegion testRegion = TestRegion.withTerrain(region, -200, seed);
+        new CaveLocationProvider().process(testRegion, true);
+        return testRegion;
+    }
+
+    private static CaveObjectFacet placeObjects(TestRegion region, CaveObjectProvider.CaveObjectConfiguration
+            configuration) {
+        CaveObjectProvider provider = new CaveObjectProvider();
+        provider.setSeed(11);
+        provider.setConfiguration(configuration);
+        provider.process(region);
+        return region.getRegionFacet(CaveObjectFacet.class);
+    }
+
+    /**
+     * Finds where objects of the given type go in every column of the region, going down each column block by block.
+     */
+    private static Map<Vector3ic, CaveObjectType> findObjects(TestRegion region, CaveObjectType type,
+                                                              CaveObjectProvider.CaveObjectConfiguration
+                                                                      configuration) {
+        CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+        DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
+        ElevationFacet elevationFacet = region.getRegionFacet(ElevationFacet.class);
+        BlockRegion caveRegion = caveFacet.getWorldRegion();
+        BlockRegion worldRegion = region.getRegion();
+        Map<Vector3ic, CaveObjectType> objects = new HashMap<>();
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                int surface = TeraMath.floorToInt(elevationFacet.getWorld(x, z));
+                Integer ceiling = null;
+                for (int y = caveRegion.maxY(); y >= caveRegion.minY(); y--) {
+                    boolean cave = caveFacet.getWorld(x, y, z);
+                    if (cave && ceiling == null) {
+                        // A cave reaching the top of the facet has no ceiling, which is left out below
+                        ceiling = y == caveRegion.maxY() ? Integer.MAX_VALUE : y + 1;
+                    } else if (!cave && ceiling != null) {
+                        int floor = y;
+                        boolean inRegion = floor >= worldRegion.minY() && ceiling <= worldRegion.maxY();
+                        boolean deepEnough = floor < surface - configuration.getMinDepth(type)
+                                && floor >= surface - configuration.getMaxDepth(type);
+                        if (inRegion && deepEnough) {
+                            if (type != CaveObjectType.CEILING && (type != CaveObjectType.WALL
+                                    || isNextToWall(caveFacet, densityFacet, x, floor + 1, z))) {
+                                objects.put(new Vector3i(x, floor + 1, z), type);
+                            }
+                            if (type == CaveObjectType.CEILING || type == CaveObjectType.DEFAULT) {
+                                objects.put(new Vector3i(x, ceiling - 1, z), type);
+                            }
+                        }
+                        ceiling = null;
+                    }
+                }
+            }
+        }
+        for (Vector3ic position : objects.keySet()) {
+            assertTrue(caveFacet.getWorld(position), "Object outside of a cave at " + position);
+        }
+        return objects;
+    }
+
+    private static boolean isNextToWall(CaveFacet caveFacet, DensityFacet densityFacet, int x, int y, int z) {
+        int[][] sides = {{-1, 0}, {1, 0}, {0, -1}, {0, 1}};
+        for (int[] side : sides) {
+            int sideX = x + side[0];
+            int sideZ = z + side[1];
+            if (caveFacet.getWorldRegion().contains(sideX, y, sideZ) && densityFacet.getWorld(sideX, y, sideZ) > 0
+                    && !caveFacet.getWorld(sideX, y, sideZ)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,197 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.joml.Vector3i;
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveOccupancyProviderTest {
+    /**
+     * Not a multiple of the cell sizes, so that the cells at the edges are only partly within the region.
+     */
+    private static final Border3D BORDER = new Border3D(3, 1, 2);
+
+    @Test
+    public void testCellsMatchBlocks() {
+        int fullCells = 0;
+        for (int i = 0; i < 4; i++) {
+            TestRegion region = createRegion(i);
+            CaveOccupancyFacet facet = region.getRegionFacet(CaveOccupancyFacet.class);
+            for (int cellSize : new int[]{CaveOccupancyFacet.FINE_CELL_SIZE, CaveOccupancyFacet.COARSE_CELL_SIZE}) {
+                fullCells += assertCellsMatchBlocks(facet, cellSize);
+            }
+        }
+        assertTrue(fullCells > 0, "No full cells");
+    }
+
+    @Test
+    public void testBoxesMatchBlocks() {
+        Random random = new Random(3);
+        int emptyBoxes = 0;
+        int boxes = 0;
+        for (int i = 0; i < 4; i++) {
+            CaveOccupancyFacet facet = createRegion(i).getRegionFacet(CaveOccupancyFacet.class);
+            BlockRegion worldRegion = facet.getWorldRegion();
+            for (int box = 0; box < 500; box++) {
+                // Mostly small boxes, which are often empty, and some large ones
+                int maxSize = box % 10 == 0 ? 40 : 8;
+                int minX = worldRegion.minX() + random.nextInt(worldRegion.getSizeX());
+                int minY = worldRegion.minY() + random.nextInt(worldRegion.getSizeY());
+                int minZ = worldRegion.minZ() + random.nextInt(worldRegion.getSizeZ());
+                int maxX = Math.min(worldRegion.maxX(), minX + random.nextInt(maxSize));
+                int maxY = Math.min(worldRegion.maxY(), minY + random.nextInt(maxSize));
+                int maxZ = Math.min(worldRegion.maxZ(), minZ + random.nextInt(maxSize));
+                boolean empty = countCaves(facet.getCaveFacet(), minX, minY, minZ, maxX, maxY, maxZ) == 0;
+                assertEquals(empty, facet.isWorldBoxEmpty(minX, minY, minZ, maxX, maxY, maxZ),
+                        String.format("Box (%d, %d, %d) to (%d, %d, %d)", minX, minY, minZ, maxX, maxY, maxZ));
+                emptyBoxes += empty ? 1 : 0;
+                boxes++;
+            }
+            assertFalse(facet.isWorldBoxEmpty(worldRegion));
+        }
+        assertTrue(emptyBoxes > 0 && emptyBoxes < boxes, "Only empty or only non-empty boxes");
+    }
+
+    @Test
+    public void testNearestCaveMatchesBlocks() {
+        Random random = new Random(4);
+        int found = 0;
+        for (int i = 0; i < 4; i++) {
+            CaveOccupancyFacet facet = createRegion(i).getRegionFacet(CaveOccupancyFacet.class);
+            BlockRegion worldRegion = facet.getWorldRegion();
+            for (int point = 0; point < 100; point++) {
+                // Some of the points are outside of the region
+                int x = worldRegion.minX() - 10 + random.nextInt(worldRegion.getSizeX() + 20);
+                int y = worldRegion.minY() - 10 + random.nextInt(worldRegion.getSizeY() + 20);
+                int z = worldRegion.minZ() - 10 + random.nextInt(worldRegion.getSizeZ() + 20);
+                int maxDistance = random.nextInt(30);
+                long expected = findNearestDistanceSquared(facet, x, y, z);
+
+                Vector3i nearest = facet.findNearestWorldCave(x, y, z, maxDistance, new Vector3i());
+                String message = String.format("Nearest cave to (%d, %d, %d) within %d", x, y, z, maxDistance);
+                if (expected > (long) maxDistance * maxDistance) {
+                    assertNull(nearest, message);
+                    continue;
+                }
+                assertNotNull(nearest, message);
+                assertTrue(worldRegion.contains(nearest) && facet.getCaveFacet().getWorld(nearest), message);
+                assertEquals(expected, nearest.distanceSquared(x, y, z), message);
+                found++;
+            }
+        }
+        assertTrue(found > 0, "No caves found");
+    }
+
+    @Test
+    public void testWithoutCaves() {
+        BlockRegion region = TestRegion.createChunkRegion(0, 0, 0);
+        TestRegion testRegion = new TestRegion(region);
+        testRegion.setBorder(CaveFacet.class, BORDER);
+        testRegion.setBorder(CaveOccupancyFacet.class, BORDER);
+        testRegion.setRegionFacet(CaveFacet.class, new CaveFacet(region, BORDER));
+        new CaveOccupancyProvider().process(testRegion);
+        CaveOccupancyFacet facet = testRegion.getRegionFacet(CaveOccupancyFacet.class);
+
+        assertEquals(0, assertCellsMatchBlocks(facet, CaveOccupancyFacet.COARSE_CELL_SIZE));
+        assertTrue(facet.isWorldBoxEmpty(facet.getWorldRegion()));
+        assertNull(facet.findNearestWorldCave(5, 5, 5, 100, new Vector3i()));
+    }
+
+    /**
+     * @return a region with caves, one cell of each size of which is all caves, and its occupancy facet
+     */
+    private static TestRegion createRegion(int seed) {
+        BlockRegion region = TestRegion.createChunkRegion(seed * 37 - 200, -40 - (seed % 2) * 20, seed * 53 - 300);
+        TestRegion testRegion = TestRegion.withTerrain(region, -200, seed);
+        testRegion.setBorder(CaveOccupancyFacet.class, BORDER);
+        CaveFacet caveFacet = testRegion.getRegionFacet(CaveFacet.class);
+        int size = CaveOccupancyFacet.COARSE_CELL_SIZE;
+        int minX = Math.floorDiv(region.minX(), size) * size + size;
+        int minY = Math.floorDiv(region.minY(), size) * size + size;
+        int minZ = Math.floorDiv(region.minZ(), size) * size + size;
+        for (int z = minZ; z < minZ + size; z++) {
+            for (int y = minY; y < minY + size; y++) {
+                for (int x = minX; x < minX + size; x++) {
+                    caveFacet.setWorld(x, y, z, true);
+                }
+            }
+        }
+        new CaveOccupancyProvider().process(testRegion);
+        return testRegion;
+    }
+
+    /**
+     * Checks each cell against the positions within it, counting only those within the facet's region.
+     *
+     * @return the number of full cells
+     */
+    private static int assertCellsMatchBlocks(CaveOccupancyFacet facet, int cellSize) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        int shift = Integer.numberOfTrailingZeros(cellSize);
+        int fullCells = 0;
+        for (int cellZ = worldRegion.minZ() >> shift; cellZ <= worldRegion.maxZ() >> shift; cellZ++) {
+            for (int cellY = worldRegion.minY() >> shift; cellY <= worldRegion.maxY() >> shift; cellY++) {
+                for (int cellX = worldRegion.minX() >> shift; cellX <= worldRegion.maxX() >> shift; cellX++) {
+                    int minX = Math.max(cellX * cellSize, worldRegion.minX());
+                    int minY = Math.max(cellY * cellSize, worldRegion.minY());
+                    int minZ = Math.max(cellZ * cellSize, worldRegion.minZ());
+                    int maxX = Math.min(cellX * cellSize + cellSize - 1, worldRegion.maxX());
+                    int maxY = Math.min(cellY * cellSize + cellSize - 1, worldRegion.maxY());
+                    int maxZ = Math.min(cellZ * cellSize + cellSize - 1, worldRegion.maxZ());
+                    int caves = countCaves(facet.getCaveFacet(), minX, minY, minZ, maxX, maxY, maxZ);
+                    int volume = (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+                    String cell = String.format("Cell (%d, %d, %d) of size %d", cellX, cellY, cellZ, cellSize);
+                    assertEquals(caves > 0, facet.isCellOccupied(cellSize, cellX, cellY, cellZ), cell);
+                    assertEquals(caves == volume, facet.isCellFull(cellSize, cellX, cellY, cellZ), cell);
+                    fullCells += caves == volume ? 1 : 0;
+                }
+            }
+        }
+        return fullCells;
+    }
+
+    private static int countCaves(CaveFacet caveFacet, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        int caves = 0;
+        for (int z = minZ; z <= maxZ; z++) {
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    caves += caveFacet.getWorld(x, y, z) ? 1 : 0;
+                }
+            }
+        }
+        return caves;
+    }
+
+    /**
+     * @return the squared distance from the point to the closest cave within the facet's region, or
+     *         {@link Long#MAX_VALUE} if there are no caves
+     */
+    private static long findNearestDistanceSquared(CaveOccupancyFacet facet, int x, int y, int z) {
+        BlockRegion worldRegion = facet.getWorldRegion();
+        long nearest = Long.MAX_VALUE;
+        for (int caveZ = worldRegion.minZ(); caveZ <= worldRegion.maxZ(); caveZ++) {
+            for (int caveY = worldRegion.minY(); caveY <= worldRegion.maxY(); caveY++) {
+                for (int caveX = worldRegion.minX(); caveX <= worldRegion.maxX(); caveX++) {
+                    if (facet.getCaveFacet().getWorld(caveX, caveY, caveZ)) {
+                        long dx = caveX - x;
+                        long dy = caveY - y;
+                        long dz = caveZ - z;
+                        nearest = Math.min(nearest, dx * dx + dy * dy + dz * dz);
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,189 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.chunks.Chunk;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the cave facet providers and rasterizers over a grid of chunks without the engine, to see how generation
+ * scales with the number of generator threads. The elevation, density, surfaces and sea level are set up by
+ * {@link TestRegion}, and each chunk goes through {@link CaveFacetProvider}, {@link CaveToSurfaceProvider},
+ * {@link CaveLocationProvider}, {@link CaveObjectProvider}, {@link CaveConnectivityProvider} and
+ * {@link CaveOccupancyProvider} in the order the world generator would use, and is then filled by
+ * {@link CaveRasterizer} and {@link CaveObjectRasterizer} into a {@link TestChunk}.
+ *
+ * <p>The inputs and the chunk of each region are set up by the thread generating it, outside of the time measured
+ * for the chunk. Arguments, all optional: the number of generator threads (1), the number of chunks along each side
+ * of the grid (16), the number of layers of chunks (2), the number of threads each region may use (1) and whether
+ * to remember the regions generated (0). When remembering, the grid is generated once before it is timed, as when
+ * previewing a world again, so the timed pass reuses the caves in {@link CaveFacetProvider}'s cache; it holds 256
+ * regions, so the grid should have no more chunks than that.</p>
+ *
+ * <p>The chunks per second over the wall-clock time of the timed pass, which includes setting up the inputs, and
+ * over the time the busiest thread spent generating, which doesn't, are printed at the end along with the 50th and
+ * 99th percentile time per chunk, the peak heap and the {@link CaveMetrics} of each provider and rasterizer.</p>
+ */
+public final class CavePipelineBenchmark {
+    private static final long SEED = 42;
+    private static final int SEA_LEVEL = 0;
+    private static final int WARMUP_CHUNKS = 32;
+
+    private static final Block AIR = new Block();
+    private static final Block STONE = new Block();
+
+    private CavePipelineBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = getArgument(args, 0, 1);
+        int chunksPerSide = getArgument(args, 1, 16);
+        int layers = getArgument(args, 2, 2);
+        int parallelism = getArgument(args, 3, 1);
+        boolean rememberRegions = getArgument(args, 4, 0) != 0;
+
+        CaveFacetProvider caveFacetProvider = new CaveFacetProvider();
+        CaveLocationProvider locationProvider = new CaveLocationProvider();
+        CaveObjectProvider objectProvider = new CaveObjectProvider();
+        CaveConnectivityProvider connectivityProvider = new CaveConnectivityProvider();
+        caveFacetProvider.setSeed(SEED);
+        objectProvider.setSeed(SEED);
+        connectivityProvider.setSeed(SEED);
+        // Once the providers are set up, so that the value printed is the one the whole run used
+        CaveParallelism.setParallelism(parallelism);
+        CaveToSurfaceProvider surfaceProvider = new CaveToSurfaceProvider();
+        CaveOccupancyProvider occupancyProvider = new CaveOccupancyProvider();
+        CaveRasterizer caveRasterizer = new CaveRasterizer();
+        CaveObjectRasterizer objectRasterizer = new CaveObjectRasterizer();
+        caveRasterizer.initialize(AIR);
+        objectRasterizer.initialize(AIR, uri -> new Block());
+        Pipeline pipeline = (chunk, region) -> {
+            caveFacetProvider.process(region);
+            surfaceProvider.process(region);
+            locationProvider.process(region);
+            objectProvider.process(region);
+            connectivityProvider.process(region);
+            occupancyProvider.process(region);
+            caveRasterizer.generateChunk(chunk, region);
+            objectRasterizer.generateChunk(chunk, region);
+        };
+
+        for (int i = 0; i < WARMUP_CHUNKS; i++) {
+            pipeline.process(TestChunk.create(STONE), createRegion(i, 0, -i));
+        }
+        int chunkCount = chunksPerSide * chunksPerSide * layers;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        if (rememberRegions) {
+            CaveFacetProvider.CaveFacetConfiguration configuration = new CaveFacetProvider.CaveFacetConfiguration();
+            configuration.rememberRegions = true;
+            caveFacetProvider.setConfiguration(configuration);
+            runGrid(executor, threads, pipeline, chunksPerSide, chunkCount);
+        }
+        CaveMetrics.resetAll();
+        List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans();
+        heapPools.removeIf(pool -> pool.getType() != MemoryType.HEAP);
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        if (CaveParallelism.getParallelism() != parallelism) {
+            throw new IllegalStateException("Setting up the providers changed the parallelism to "
+                    + CaveParallelism.getParallelism());
+        }
+
+        long start = System.nanoTime();
+        Pass pass = runGrid(executor, threads, pipeline, chunksPerSide, chunkCount);
+        long wallNanos = System.nanoTime() - start;
+        executor.shutdown();
+        long busiestNanos = Arrays.stream(pass.workerNanos).max().orElse(0);
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        long[] chunkNanos = pass.chunkNanos;
+        Arrays.sort(chunkNanos);
+        System.out.printf(Locale.ROOT, "%d chunks on %d threads, %d per region%s: %.1f chunks/s wall-clock, "
+                        + "%.1f chunks/s generating on the busiest thread, p50 %.2f ms, p99 %.2f ms, "
+                        + "peak heap %d MiB%n", chunkCount, threads, CaveParallelism.getParallelism(),
+                rememberRegions ? ", remembering regions" : "", chunkCount / (wallNanos / 1e9),
+                chunkCount / (busiestNanos / 1e9), getPercentile(chunkNanos, 0.5) / 1e6,
+                getPercentile(chunkNanos, 0.99) / 1e6, peakHeap >> 20);
+        System.out.println(CaveMetrics.getSummary());
+    }
+
+    /**
+     * Generates every chunk of the grid once, spread over the given number of threads.
+     */
+    private static Pass runGrid(ExecutorService executor, int threads, Pipeline pipeline, int chunksPerSide,
+                                int chunkCount) throws Exception {
+        Pass pass = new Pass(threads, chunkCount);
+        AtomicInteger nextChunk = new AtomicInteger();
+        Future<?>[] workers = new Future<?>[threads];
+        for (int i = 0; i < threads; i++) {
+            int worker = i;
+            workers[i] = executor.submit(() -> {
+                for (int chunk = nextChunk.getAndIncrement(); chunk < chunkCount;
+                     chunk = nextChunk.getAndIncrement()) {
+                    int layer = chunk / (chunksPerSide * chunksPerSide);
+                    TestRegion region =
+                            createRegion(chunk % chunksPerSide, -1 - layer, chunk / chunksPerSide % chunksPerSide);
+                    Chunk testChunk = TestChunk.create(STONE);
+                    long chunkStart = System.nanoTime();
+                    pipeline.process(testChunk, region);
+                    pass.chunkNanos[chunk] = System.nanoTime() - chunkStart;
+                    pass.workerNanos[worker] += pass.chunkNanos[chunk];
+                }
+            });
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        return pass;
+    }
+
+    /**
+     * Sets up the inputs of the chunk at the given chunk position, which isn't included in the time per chunk.
+     */
+    private static TestRegion createRegion(int chunkX, int chunkY, int chunkZ) {
+        BlockRegion region = TestRegion.createChunkRegion(chunkX * 32, chunkY * 64, chunkZ * 32);
+        return TestRegion.withTerrain(region, SEA_LEVEL, SEED);
+    }
+
+    private static long getPercentile(long[] sortedValues, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, index))];
+    }
+
+    private static int getArgument(String[] args, int index, int defaultValue) {
+        return index < args.length ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    private interface Pipeline {
+        void process(Chunk chunk, TestRegion region);
+    }
+
+    /**
+     * The time spent generating each chunk of a pass over the grid, and by each thread.
+     */
+    private static final class Pass {
+        private final long[] workerNanos;
+        private final long[] chunkNanos;
+
+        private Pass(int threads, int chunkCount) {
+            workerNanos = new long[threads];
+            chunkNanos = new long[chunkCount];
+        }
+    }
+}
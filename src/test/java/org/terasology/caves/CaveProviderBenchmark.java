@@ -0,0 +1,174 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import com.sun.management.ThreadMXBean;
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.chunks.Chunk;
+import org.terasology.engine.world.chunks.Chunks;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Times each cave provider and rasterizer on its own, to tell whether a change to one of them helps or hurts. The
+ * elevation, density, surfaces and sea level are set up by {@link TestRegion}, and the stages before the one being
+ * timed are run on each region first, so that it gets the same inputs as in a world.
+ *
+ * <p>Each provider is timed on regions of the size of a chunk and of 8 chunks, placed in the sky, around the surface
+ * and deep underground. The rasterizers fill a {@link TestChunk}, so they are only timed on regions of the size of a
+ * chunk, and their allocations include the arguments boxed for each block the chunk gets or sets. For each of these
+ * the time per region, the regions per second and the bytes allocated per region are printed. The number of regions
+ * to time each case on is an optional argument (20), after as many regions to warm up on.</p>
+ *
+ * <p>{@link CaveLocationProvider} is timed both finding the caves of all columns up front and finding them as they
+ * are asked for. Every column is asked for in the latter case, so that both cover the same work.</p>
+ */
+public final class CaveProviderBenchmark {
+    private static final long SEED = 42;
+    private static final int SEA_LEVEL = 0;
+
+    private static final int[][] REGION_SIZES = {{32, 64, 32}, {64, 128, 64}};
+    private static final String[] DEPTH_NAMES = {"sky", "surface", "deep"};
+    /**
+     * The lowest layer of the regions at each depth, with the surface of {@link TestRegion} between -50 and 50.
+     */
+    private static final int[] DEPTH_MIN_Y = {100, -40, -1000};
+
+    private static final Block AIR = new Block();
+    private static final Block STONE = new Block();
+
+    private CaveProviderBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        List<Stage> stages = createStages();
+        System.out.println("stage, size, depth, ms per region, regions/s, KiB allocated per region");
+        for (int stage = 0; stage < stages.size(); stage++) {
+            for (int[] size : REGION_SIZES) {
+                boolean chunkSized = size[0] == Chunks.SIZE_X && size[1] == Chunks.SIZE_Y && size[2] == Chunks.SIZE_Z;
+                if (stages.get(stage).rasterizer && !chunkSized) {
+                    continue;
+                }
+                for (int depth = 0; depth < DEPTH_NAMES.length; depth++) {
+                    // Warm up on as many other regions first, so that the noise cache doesn't already hold the
+                    // timed ones
+                    run(stages, stage, size, depth, 0, iterations);
+                    Result result = run(stages, stage, size, depth, iterations, iterations);
+                    System.out.printf(Locale.ROOT, "%s, %dx%dx%d, %s, %.3f, %.1f, %.1f%n", stages.get(stage).name,
+                            size[0], size[1], size[2], DEPTH_NAMES[depth], result.nanos / 1e6 / iterations,
+                            iterations / (result.nanos / 1e9), result.allocatedBytes / 1024.0 / iterations);
+                }
+            }
+        }
+    }
+
+    /**
+     * The providers in the order the world generator runs them, followed by the rasterizers.
+     */
+    private static List<Stage> createStages() {
+        CaveFacetProvider caveFacetProvider = new CaveFacetProvider();
+        CaveToSurfaceProvider surfaceProvider = new CaveToSurfaceProvider();
+        CaveLocationProvider locationProvider = new CaveLocationProvider();
+        CaveObjectProvider objectProvider = new CaveObjectProvider();
+        CaveConnectivityProvider connectivityProvider = new CaveConnectivityProvider();
+        CaveOccupancyProvider occupancyProvider = new CaveOccupancyProvider();
+        caveFacetProvider.setSeed(SEED);
+        surfaceProvider.setSeed(SEED);
+        objectProvider.setSeed(SEED);
+        connectivityProvider.setSeed(SEED);
+        occupancyProvider.setSeed(SEED);
+        CaveRasterizer caveRasterizer = new CaveRasterizer();
+        CaveObjectRasterizer objectRasterizer = new CaveObjectRasterizer();
+        caveRasterizer.initialize(AIR);
+        objectRasterizer.initialize(AIR, uri -> new Block());
+
+        List<Stage> stages = new ArrayList<>();
+        stages.add(Stage.provider("CaveFacetProvider", caveFacetProvider::process));
+        stages.add(Stage.provider("CaveToSurfaceProvider", surfaceProvider::process));
+        stages.add(Stage.provider("CaveLocationProvider eager", region -> locationProvider.process(region, true)));
+        stages.add(Stage.provider("CaveLocationProvider lazy", region -> {
+            locationProvider.process(region, false);
+            readAllColumns(region.getRegionFacet(CaveLocationFacet.class));
+        }));
+        stages.add(Stage.provider("CaveObjectProvider", objectProvider::process));
+        stages.add(Stage.provider("CaveConnectivityProvider", connectivityProvider::process));
+        stages.add(Stage.provider("CaveOccupancyProvider", occupancyProvider::process));
+        stages.add(Stage.rasterizer("CaveRasterizer", caveRasterizer::generateChunk));
+        stages.add(Stage.rasterizer("CaveObjectRasterizer", objectRasterizer::generateChunk));
+        return stages;
+    }
+
+    /**
+     * Asks for the caves of every column, so that a lazily filled facet finds all of them.
+     */
+    private static void readAllColumns(CaveLocationFacet facet) {
+        for (int z = facet.getWorldArea().minY(); z <= facet.getWorldArea().maxY(); z++) {
+            for (int x = facet.getWorldArea().minX(); x <= facet.getWorldArea().maxX(); x++) {
+                facet.getWorldLocationEnd(x, z);
+            }
+        }
+    }
+
+    /**
+     * Times a stage on a row of regions, which are set up by running the stages before it.
+     */
+    private static Result run(List<Stage> stages, int stage, int[] size, int depth, int firstRegion, int count) {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Result result = new Result();
+        for (int i = firstRegion; i < firstRegion + count; i++) {
+            int minX = i * size[0];
+            int minZ = -i * size[2];
+            BlockRegion region = new BlockRegion(minX, DEPTH_MIN_Y[depth], minZ,
+                    minX + size[0] - 1, DEPTH_MIN_Y[depth] + size[1] - 1, minZ + size[2] - 1);
+            TestRegion testRegion = TestRegion.withTerrain(region, SEA_LEVEL, SEED + i);
+            Chunk chunk = stages.get(stage).rasterizer ? TestChunk.create(STONE) : null;
+            for (int previous = 0; previous < stage; previous++) {
+                stages.get(previous).process.accept(chunk, testRegion);
+            }
+
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            stages.get(stage).process.accept(chunk, testRegion);
+            result.nanos += System.nanoTime() - start;
+            result.allocatedBytes += threads.getThreadAllocatedBytes(threadId) - allocated;
+        }
+        return result;
+    }
+
+    private static final class Stage {
+        private final String name;
+        private final boolean rasterizer;
+        private final BiConsumer<Chunk, TestRegion> process;
+
+        private Stage(String name, boolean rasterizer, BiConsumer<Chunk, TestRegion> process) {
+            this.name = name;
+            this.rasterizer = rasterizer;
+            this.process = process;
+        }
+
+        static Stage provider(String name, Consumer<TestRegion> process) {
+            return new Stage(name, false, (chunk, region) -> process.accept(region));
+        }
+
+        /**
+         * A stage which is only run on regions of the size of a chunk, with a chunk to fill.
+         */
+        static Stage rasterizer(String name, BiConsumer<Chunk, TestRegion> process) {
+            return new Stage(name, true, process);
+        }
+    }
+
+    private static final class Result {
+        private long nanos;
+        private long allocatedBytes;
+    }
+}
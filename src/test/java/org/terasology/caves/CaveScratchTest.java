@@ -0,0 +1,114 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveScratchTest {
+
+    @BeforeEach
+    public void setUp() {
+        // The arrays are kept per thread, so start without any left over from other tests
+        CaveScratch.trim();
+    }
+
+    @Test
+    public void testLengthsRoundUpToPowersOfTwo() {
+        try (CaveScratch scratch = CaveScratch.open()) {
+            assertEquals(1, scratch.getLongs(0).length);
+            assertEquals(1, scratch.getLongs(1).length);
+            assertEquals(2, scratch.getInts(2).length);
+            assertEquals(128, scratch.getInts(100).length);
+            assertEquals(128, scratch.getFloats(128).length);
+            assertEquals(CaveScratch.MAX_POOLED_LENGTH, scratch.getLongs(CaveScratch.MAX_POOLED_LENGTH).length);
+            // Longer arrays aren't pooled, so they aren't rounded up either
+            assertEquals(CaveScratch.MAX_POOLED_LENGTH + 1, scratch.getInts(CaveScratch.MAX_POOLED_LENGTH + 1).length);
+        }
+    }
+
+    @Test
+    public void testReusesClearedArrays() {
+        long[] longs;
+        int[] ints;
+        try (CaveScratch scratch = CaveScratch.open()) {
+            longs = scratch.getLongs(100);
+            ints = scratch.getInts(100);
+            Arrays.fill(longs, -1L);
+            Arrays.fill(ints, -1);
+            assertEquals(0, CaveScratch.getFreeBytes());
+        }
+        assertEquals(128L * (Long.BYTES + Integer.BYTES), CaveScratch.getFreeBytes());
+
+        try (CaveScratch scratch = CaveScratch.open()) {
+            // Any length in the same power of 2 gets the same array back, filled with zeros
+            long[] reusedLongs = scratch.getLongs(65);
+            assertSame(longs, reusedLongs);
+            assertTrue(Arrays.stream(reusedLongs).allMatch(value -> value == 0));
+            int[] reusedInts = scratch.getInts(128);
+            assertSame(ints, reusedInts);
+            assertTrue(Arrays.stream(reusedInts).allMatch(value -> value == 0));
+            // Another length, or another type of the same length, doesn't
+            assertNotSame(longs, scratch.getLongs(64));
+            assertEquals(0, CaveScratch.getFreeBytes());
+        }
+    }
+
+    @Test
+    public void testNestedBlocks() {
+        try (CaveScratch outer = CaveScratch.open()) {
+            long[] outerLongs = outer.getLongs(32);
+            long[] innerLongs;
+            try (CaveScratch inner = CaveScratch.open()) {
+                innerLongs = inner.getLongs(32);
+                assertNotSame(outerLongs, innerLongs);
+            }
+            // Only the inner block's array was handed back
+            assertEquals(32L * Long.BYTES, CaveScratch.getFreeBytes());
+            try (CaveScratch inner = CaveScratch.open()) {
+                assertSame(innerLongs, inner.getLongs(20));
+                assertNotSame(innerLongs, inner.getLongs(20));
+            }
+            outerLongs[0] = 1;
+            assertEquals(1, outerLongs[0]);
+        }
+        assertEquals(3 * 32L * Long.BYTES, CaveScratch.getFreeBytes());
+    }
+
+    @Test
+    public void testCloseWithoutOpen() {
+        CaveScratch scratch = CaveScratch.open();
+        scratch.close();
+        assertThrows(IllegalStateException.class, scratch::close);
+    }
+
+    @Test
+    public void testKeepsLimitedFreeArrays() {
+        try (CaveScratch scratch = CaveScratch.open()) {
+            scratch.getLongs(CaveScratch.MAX_POOLED_LENGTH + 1);
+        }
+        assertEquals(0, CaveScratch.getFreeBytes());
+
+        // More than the bytes kept per thread, in arrays of the longest pooled length
+        int arrayCount = (int) (2 * CaveScratch.MAX_FREE_BYTES / (Long.BYTES * (long) CaveScratch.MAX_POOLED_LENGTH));
+        try (CaveScratch scratch = CaveScratch.open()) {
+            for (int i = 0; i < arrayCount; i++) {
+                scratch.getLongs(CaveScratch.MAX_POOLED_LENGTH);
+            }
+        }
+        assertTrue(CaveScratch.getFreeBytes() > 0);
+        assertTrue(CaveScratch.getFreeBytes() <= CaveScratch.MAX_FREE_BYTES);
+
+        CaveScratch.trim();
+        assertEquals(0, CaveScratch.getFreeBytes());
+    }
+}
@@ -0,0 +1,365 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import com.google.common.collect.Sets;
+import org.joml.Vector3i;
+import org.joml.Vector3ic;
+import org.junit.jupiter.api.Test;
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.GeneratingRegion;
+import org.terasology.engine.world.generation.facets.DensityFacet;
+import org.terasology.engine.world.generation.facets.ElevationFacet;
+import org.terasology.engine.world.generation.facets.SeaLevelFacet;
+import org.terasology.engine.world.generation.facets.SurfacesFacet;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CaveToSurfaceProviderTest {
+
+    @Test
+    public void testSealsCaves() {
+        int sealedCaves = 0;
+        for (int i = 0; i < 12; i++) {
+            TestRegion original = createRegion(i);
+            TestRegion region = createRegion(i);
+            new CaveToSurfaceProvider().process(region);
+
+            CaveFacet originalCaves = original.getRegionFacet(CaveFacet.class);
+            CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+            DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
+            int seaLevel = region.getRegionFacet(SeaLevelFacet.class).getSeaLevel();
+            for (Vector3ic pos : caveFacet.getWorldRegion()) {
+                boolean expected = originalCaves.getWorld(pos) && !isOpen(densityFacet, pos.x(), pos.y(), pos.z());
+                // Nor just below an open position at or below sea level, in the same column or one next to it
+                for (int dz = -1; dz <= 1 && pos.y() + 1 <= seaLevel + 1; dz++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        expected &= !isOpen(densityFacet, pos.x() + dx, pos.y() + 1, pos.z() + dz);
+                    }
+                }
+                assertEquals(expected, caveFacet.getWorld(pos), "Cave at " + pos);
+            }
+            sealedCaves += countCaves(originalCaves) - countCaves(caveFacet);
+        }
+        assertTrue(sealedCaves > 0, "No caves were sealed");
+    }
+
+    @Test
+    public void testMatchesPositionSets() {
+        int compared = 0;
+        int spreadSurfaces = 0;
+        for (int i = 0; i < 24; i++) {
+            // Tunnels, in which every floor has at most one other next to it to spread to, and blobs of caves
+            TestRegion expected = i % 2 == 0 ? createTunnelRegion(i) : createRegion(i);
+            TestRegion region = i % 2 == 0 ? createTunnelRegion(i) : createRegion(i);
+            int spread = processWithPositionSets(expected);
+            if (spread < 0) {
+                continue;
+            }
+            new CaveToSurfaceProvider().process(region);
+
+            assertArrayEquals(expected.getRegionFacet(CaveFacet.class).copyWords(),
+                    region.getRegionFacet(CaveFacet.class).copyWords(), "Caves in " + region.getRegion());
+            assertEquals(getSurfaces(expected.getRegionFacet(SurfacesFacet.class)),
+                    getSurfaces(region.getRegionFacet(SurfacesFacet.class)), "Surfaces in " + region.getRegion());
+            compared++;
+            spreadSurfaces += spread;
+        }
+        assertTrue(compared >= 6, "Too few regions to compare: " + compared);
+        assertTrue(spreadSurfaces > 0, "No surfaces were spread");
+    }
+
+    @Test
+    public void testSpreadsSurfacesAroundExposedFloors() {
+        int spreadSurfaces = 0;
+        for (int i = 0; i < 12; i++) {
+            TestRegion region = createRegion(i);
+            SurfacesFacet surfacesFacet = region.getRegionFacet(SurfacesFacet.class);
+            Set<Vector3ic> oldSurfaces = getSurfaces(surfacesFacet);
+
+            new CaveToSurfaceProvider().process(region);
+
+            CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+            DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
+            BlockRegion worldRegion = caveFacet.getWorldRegion();
+            // The floors below the caves which had surfaces in them
+            Set<Vector3ic> exposedFloors = new HashSet<>();
+            for (Vector3ic surface : oldSurfaces) {
+                Vector3i floor = new Vector3i(surface);
+                while (worldRegion.contains(floor) && caveFacet.getWorld(floor)) {
+                    floor.y--;
+                }
+                if (floor.y != surface.y() && worldRegion.contains(floor)) {
+                    exposedFloors.add(floor);
+                }
+            }
+
+            for (Vector3ic surface : getSurfaces(surfacesFacet)) {
+                assertFalse(caveFacet.getWorld(surface), "Surface in a cave at " + surface);
+                if (oldSurfaces.contains(surface)) {
+                    continue;
+                }
+                Vector3i above = new Vector3i(surface).add(0, 1, 0);
+                assertTrue(worldRegion.contains(above) && caveFacet.getWorld(above),
+                        "Surface which isn't a cave floor at " + surface);
+                assertTrue(exposedFloors.stream().anyMatch(floor -> Math.abs(floor.x() - surface.x())
+                                + Math.abs(floor.z() - surface.z()) <= CaveToSurfaceProvider.SURFACE_SPREAD),
+                        "Surface too far from the exposed floors at " + surface);
+                if (!exposedFloors.contains(surface)) {
+                    spreadSurfaces++;
+                }
+            }
+
+            // Every cave floor next to an exposed floor is spread to
+            for (Vector3ic floor : exposedFloors) {
+                assertTrue(surfacesFacet.getWorld(floor), "Exposed floor at " + floor);
+                for (int[] adjacent : new int[][]{{-1, 0}, {1, 0}, {0, -1}, {0, 1}}) {
+                    Vector3i spreadFloor = findSpreadFloor(caveFacet, densityFacet,
+                            floor.x() + adjacent[0], floor.y(), floor.z() + adjacent[1]);
+                    if (spreadFloor != null) {
+                        assertTrue(surfacesFacet.getWorld(spreadFloor), "Floor next to " + floor + " at "
+                                + spreadFloor);
+                    }
+                }
+            }
+        }
+        assertTrue(spreadSurfaces > 0, "No surfaces were spread");
+    }
+
+    private static TestRegion createRegion(int seed) {
+        BlockRegion region = TestRegion.createChunkRegion(seed * 37 - 200,
+                -40 + (seed % 3) * 10 - (seed % 4) * 40, seed * 53 - 300);
+        // Sea levels around the caves and below all of them, so that caves are both sealed and not
+        int seaLevel = seed % 2 == 0 ? -5 : -200;
+        return TestRegion.withTerrain(region, seaLevel, seed);
+    }
+
+    /**
+     * Replaces the caves of a region with terrain with a tunnel in each cell of a grid, going down from the surface
+     * and then only towards higher x and z, so that each part of it is only next to the parts before and after it.
+     * The cells are a column apart, so the tunnels don't touch either. Surfaces spread along such a tunnel reach at
+     * most one new floor from each floor.
+     */
+    private static TestRegion createTunnelRegion(int seed) {
+        BlockRegion region = TestRegion.createChunkRegion(seed * 37 - 200, -40 + (seed % 3) * 10, seed * 53 - 300);
+        TestRegion testRegion = TestRegion.withTerrain(region, seed % 4 == 0 ? -5 : -200, seed);
+        CaveFacet caveFacet = testRegion.getRegionFacet(CaveFacet.class);
+        ElevationFacet elevationFacet = testRegion.getRegionFacet(ElevationFacet.class);
+        BlockRegion worldRegion = caveFacet.getWorldRegion();
+        for (Vector3ic pos : worldRegion) {
+            caveFacet.setWorld(pos, false);
+        }
+
+        Random random = new Random(seed);
+        int cellSize = 9;
+        for (int cellZ = worldRegion.minZ(); cellZ + cellSize <= worldRegion.maxZ(); cellZ += cellSize) {
+            for (int cellX = worldRegion.minX(); cellX + cellSize <= worldRegion.maxX(); cellX += cellSize) {
+                int x = cellX;
+                int z = cellZ;
+                int surface = (int) Math.floor(elevationFacet.getWorld(x, z));
+                int y = surface - 4 - random.nextInt(8);
+                for (int shaftY = y + 2; shaftY <= surface; shaftY++) {
+                    setCave(caveFacet, x, shaftY, z);
+                }
+                for (int step = 0; step < 12; step++) {
+                    // Two blocks high, so that there is room for the floor to go up or down a block at each step
+                    setCave(caveFacet, x, y, z);
+                    setCave(caveFacet, x, y + 1, z);
+                    boolean alongX = random.nextBoolean();
+                    if (x < cellX + cellSize - 2 && (alongX || z == cellZ + cellSize - 2)) {
+                        x++;
+                    } else if (z < cellZ + cellSize - 2) {
+                        z++;
+                    } else {
+                        break;
+                    }
+                    // Kept below the surface, so that only the top of the shaft is exposed to the sky
+                    y = Math.min(y + random.nextInt(3) - 1, (int) Math.floor(elevationFacet.getWorld(x, z)) - 4);
+                }
+            }
+        }
+        return testRegion;
+    }
+
+    private static void setCave(CaveFacet caveFacet, int x, int y, int z) {
+        if (caveFacet.getWorldRegion().contains(x, y, z)) {
+            caveFacet.setWorld(x, y, z, true);
+        }
+    }
+
+    private static Set<Vector3ic> getSurfaces(SurfacesFacet facet) {
+        Set<Vector3ic> surfaces = new HashSet<>();
+        for (Vector3ic pos : facet.getWorldRegion()) {
+            if (facet.getWorld(pos)) {
+                surfaces.add(new Vector3i(pos));
+            }
+        }
+        return surfaces;
+    }
+
+    /**
+     * Goes block by block from a position next to a surface up through the solid ground, then down through the cave
+     * it leads to, if any.
+     *
+     * @return the solid floor of that cave, or null if there is none within the region
+     */
+    private static Vector3i findSpreadFloor(CaveFacet caveFacet, DensityFacet densityFacet, int x, int y, int z) {
+        BlockRegion worldRegion = caveFacet.getWorldRegion();
+        Vector3i pos = new Vector3i(x, y, z);
+        while (worldRegion.contains(pos) && !caveFacet.getWorld(pos) && densityFacet.getWorld(pos) > 0) {
+            pos.y++;
+        }
+        if (!worldRegion.contains(pos) || !caveFacet.getWorld(pos)) {
+            return null;
+        }
+        while (worldRegion.contains(pos) && caveFacet.getWorld(pos)) {
+            pos.y--;
+        }
+        if (!worldRegion.contains(pos) || densityFacet.getWorld(pos) <= 0) {
+            return null;
+        }
+        return pos;
+    }
+
+    private static int countCaves(CaveFacet facet) {
+        int count = 0;
+        for (Vector3ic pos : facet.getWorldRegion()) {
+            if (facet.getWorld(pos)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return whether the given position is inside the density facet and isn't solid
+     */
+    private static boolean isOpen(DensityFacet densityFacet, int x, int y, int z) {
+        return densityFacet.getWorldRegion().contains(x, y, z) && densityFacet.getWorld(x, y, z) <= 0;
+    }
+
+    /**
+     * What {@link CaveToSurfaceProvider} did before it worked on bitsets, keeping the cave positions in sets. This is
+     * a copy of it with only the formatting changed, and with a count of the floors each surface spreads to.
+     *
+     * <p>When spreading, each floor is added to the next round by reusing the vector of the surface it was spread
+     * from. A surface which spreads to more than one floor in a round therefore only passes on the last of them, and
+     * which one that is depends on the order of the set. Where that happens before the last round, the surfaces are
+     * spread differently from how the provider does it now, from every floor reached.</p>
+     *
+     * @return the number of floors the surfaces were spread to, or -1 if a surface spread to more than one floor in
+     *         a round which wasn't the last
+     */
+    private static int processWithPositionSets(GeneratingRegion region) {
+        CaveFacet caveFacet = region.getRegionFacet(CaveFacet.class);
+        DensityFacet densityFacet = region.getRegionFacet(DensityFacet.class);
+        SurfacesFacet surfacesFacet = region.getRegionFacet(SurfacesFacet.class);
+        SeaLevelFacet seaLevel = region.getRegionFacet(SeaLevelFacet.class);
+
+        Set<Vector3ic> cavePositions =
+                Sets.newHashSetWithExpectedSize((int) (0.33f * caveFacet.getWorldRegion().volume()));
+
+        for (Vector3ic pos : caveFacet.getWorldRegion()) {
+            if (caveFacet.getWorld(pos) && densityFacet.getWorldRegion().contains(pos)
+                    && surfacesFacet.getWorldRegion().contains(pos)) {
+                cavePositions.add(new Vector3i(pos));
+            }
+        }
+
+        Vector3i belowPos = new Vector3i();
+        // Ensure that the ocean can't immediately fall into a cave.
+        for (Vector3ic pos : densityFacet.getWorldRegion()) {
+            if (densityFacet.getWorld(pos) <= 0) {
+                if (cavePositions.contains(pos)) {
+                    cavePositions.remove(pos);
+                    caveFacet.setWorld(pos, false);
+                }
+                if (pos.y() <= seaLevel.getSeaLevel() + 1) {
+                    for (int x = -1; x <= 1; x++) {
+                        for (int z = -1; z <= 1; z++) {
+                            belowPos.set(pos.x() + x, pos.y() - 1, pos.z() + z);
+                            if (cavePositions.contains(belowPos)) {
+                                cavePositions.remove(belowPos);
+                                caveFacet.setWorld(belowPos, false);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // Mark any cave floors exposed to the sky as surface.
+        Set<Vector3i> newSurfaces = Sets.newHashSet();
+        for (Vector3ic pos : cavePositions) {
+            if (surfacesFacet.getWorld(pos)) {
+                surfacesFacet.setWorld(pos, false);
+                Vector3i newSurface = new Vector3i(pos);
+                while (cavePositions.contains(newSurface)) {
+                    newSurface.add(0, -1, 0);
+                }
+                if (newSurface.y >= surfacesFacet.getWorldRegion().minY()) {
+                    newSurfaces.add(newSurface);
+                    surfacesFacet.setWorld(newSurface, true);
+                }
+            }
+        }
+
+        Vector3i a1 = new Vector3i();
+        Vector3i a2 = new Vector3i();
+        Vector3i a3 = new Vector3i();
+        Vector3i a4 = new Vector3i();
+
+        int spread = 0;
+        boolean carriedOnlyLast = false;
+        Set<Vector3i> newerSurfaces = Sets.newHashSetWithExpectedSize(newSurfaces.size());
+        // Mark cave floors near to those exposed to the sky as surface.
+        for (int i = 0; i < CaveToSurfaceProvider.SURFACE_SPREAD; i++) {
+            newerSurfaces.clear();
+            for (Vector3i surface : newSurfaces) {
+                int spreadFromSurface = 0;
+                for (Vector3i adjacent : new Vector3i[]{
+                        a1.set(surface).sub(1, 0, 0),
+                        a2.set(surface).add(1, 0, 0),
+                        a3.set(surface).sub(0, 0, 1),
+                        a4.set(surface).add(0, 0, 1)
+                }) {
+                    while (!cavePositions.contains(adjacent)
+                            && densityFacet.getWorldRegion().contains(adjacent)
+                            && densityFacet.getWorld(adjacent) > 0) {
+                        adjacent.add(0, 1, 0);
+                    }
+                    // Only continue if the selected position is actually in a cave, rather than on the surface or
+                    // above the selected region.
+                    if (cavePositions.contains(adjacent)) {
+                        while (cavePositions.contains(adjacent)) {
+                            adjacent.sub(0, 1, 0);
+                        }
+                        if (surfacesFacet.getWorldRegion().contains(adjacent)
+                                && densityFacet.getWorldRegion().contains(adjacent)
+                                && densityFacet.getWorld(adjacent) > 0
+                                && !surfacesFacet.getWorld(adjacent)) {
+                            surface.set(adjacent); // reuse vector from last set
+                            newerSurfaces.add(surface);
+                            surfacesFacet.setWorld(adjacent, true);
+                            spreadFromSurface++;
+                        }
+                    }
+                }
+                spread += spreadFromSurface;
+                carriedOnlyLast |= spreadFromSurface > 1 && i < CaveToSurfaceProvider.SURFACE_SPREAD - 1;
+            }
+            Set<Vector3i> temp = newSurfaces;
+            newSurfaces = newerSurfaces;
+            newerSurfaces = temp;
+        }
+        return carriedOnlyLast ? -1 : spread;
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.world.block.Block;
+import org.terasology.engine.world.chunks.Chunk;
+import org.terasology.engine.world.chunks.Chunks;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+/**
+ * Chunks to run the cave rasterizers on without a world. Only the blocks can be read and set; everything else a chunk
+ * does, besides the methods of {@link Object}, throws an {@link UnsupportedOperationException}.
+ */
+final class TestChunk {
+    private TestChunk() {
+    }
+
+    /**
+     * @param fill the block every position starts out as
+     */
+    static Chunk create(Block fill) {
+        Block[] blocks = new Block[Chunks.SIZE_X * Chunks.SIZE_Y * Chunks.SIZE_Z];
+        Arrays.fill(blocks, fill);
+        return (Chunk) Proxy.newProxyInstance(Chunk.class.getClassLoader(), new Class<?>[]{Chunk.class},
+                (proxy, method, args) -> {
+                    int argCount = args == null ? 0 : args.length;
+                    switch (method.getName() + argCount) {
+                        case "getBlock3":
+                            return blocks[getIndex(args)];
+                        case "setBlock4":
+                            Block old = blocks[getIndex(args)];
+                            blocks[getIndex(args)] = (Block) args[3];
+                            return old;
+                        case "equals1":
+                            return proxy == args[0];
+                        case "hashCode0":
+                            return System.identityHashCode(proxy);
+                        case "toString0":
+                            return "TestChunk";
+                        default:
+                            throw new UnsupportedOperationException(method.toString());
+                    }
+                });
+    }
+
+    private static int getIndex(Object[] position) {
+        int x = (Integer) position[0];
+        int y = (Integer) position[1];
+        int z = (Integer) position[2];
+        return x + Chunks.SIZE_X * (y + Chunks.SIZE_Y * z);
+    }
+}
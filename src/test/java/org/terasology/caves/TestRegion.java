@@ -0,0 +1,133 @@
+// Copyright 2021 The Terasology Foundation
+// SPDX-License-Identifier: Apache-2.0
+
+package org.terasology.caves;
+
+import org.terasology.engine.world.block.BlockRegion;
+import org.terasology.engine.world.generation.Border3D;
+import org.terasology.engine.world.generation.GeneratingRegion;
+import org.terasology.engine.world.generation.Region;
+import org.terasology.engine.world.generation.WorldFacet;
+import org.terasology.engine.world.generation.facets.DensityFacet;
+import org.terasology.engine.world.generation.facets.ElevationFacet;
+import org.terasology.engine.world.generation.facets.SeaLevelFacet;
+import org.terasology.engine.world.generation.facets.SurfacesFacet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A region to run the cave providers on without a world generator. The facets they require are set up by hand, and
+ * each facet class can be given a border. The facets the providers produce can then be rasterized from the same
+ * region.
+ */
+class TestRegion implements GeneratingRegion, Region {
+    private final BlockRegion region;
+    private final Map<Class<? extends WorldFacet>, WorldFacet> facets = new HashMap<>();
+    private final Map<Class<? extends WorldFacet>, Border3D> borders = new HashMap<>();
+
+    TestRegion(BlockRegion region) {
+        this.region = region;
+    }
+
+    /**
+     * Sets up rolling hills with some caves below them: the elevation, density, surfaces and sea level facets, and a
+     * cave facet with randomly placed blobs of caves, all covering the borders the cave providers ask for.
+     *
+     * @param seaLevel the height of the sea, which decides where the caves are sealed
+     * @param seed what the caves are placed from; the same seed gives the same region
+     */
+    static TestRegion withTerrain(BlockRegion region, int seaLevel, long seed) {
+        TestRegion testRegion = new TestRegion(region);
+        Border3D border = new Border3D(20, CaveToSurfaceProvider.SURFACE_SPREAD, CaveToSurfaceProvider.SURFACE_SPREAD);
+        testRegion.setBorder(CaveFacet.class, border);
+        testRegion.setBorder(DensityFacet.class, border);
+        testRegion.setBorder(SurfacesFacet.class, border);
+        testRegion.setBorder(ElevationFacet.class, border);
+
+        ElevationFacet elevationFacet = new ElevationFacet(region, border);
+        BlockRegion worldRegion = new CaveFacet(region, border).getWorldRegion();
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                elevationFacet.setWorld(x, z, (float) (Math.sin(x * 0.05) * 30 + Math.cos(z * 0.07) * 20) + 0.37f);
+            }
+        }
+
+        DensityFacet densityFacet = new DensityFacet(region, border);
+        SurfacesFacet surfacesFacet = new SurfacesFacet(region, border);
+        for (int z = worldRegion.minZ(); z <= worldRegion.maxZ(); z++) {
+            for (int x = worldRegion.minX(); x <= worldRegion.maxX(); x++) {
+                float elevation = elevationFacet.getWorld(x, z);
+                for (int y = worldRegion.minY(); y <= worldRegion.maxY(); y++) {
+                    densityFacet.setWorld(x, y, z, elevation - y);
+                    surfacesFacet.setWorld(x, y, z, y == (int) Math.floor(elevation));
+                }
+            }
+        }
+        SeaLevelFacet seaLevelFacet = new SeaLevelFacet(region, new Border3D(0, 0, 0));
+        seaLevelFacet.setSeaLevel(seaLevel);
+
+        CaveFacet caveFacet = new CaveFacet(region, border);
+        Random random = new Random(seed);
+        for (int i = 0; i < 40; i++) {
+            int centerX = worldRegion.minX() + random.nextInt(worldRegion.getSizeX());
+            int centerZ = worldRegion.minZ() + random.nextInt(worldRegion.getSizeZ());
+            int centerY = (int) Math.floor(elevationFacet.getWorld(centerX, centerZ)) - random.nextInt(12);
+            int radius = 1 + random.nextInt(3);
+            int bottom = centerY - radius - random.nextInt(3);
+            for (int z = centerZ - radius; z <= centerZ + radius; z++) {
+                for (int x = centerX - radius; x <= centerX + radius; x++) {
+                    for (int y = bottom; y <= centerY + radius + 4; y++) {
+                        if (worldRegion.contains(x, y, z)) {
+                            caveFacet.setWorld(x, y, z, true);
+                        }
+                    }
+                }
+            }
+        }
+
+        testRegion.setRegionFacet(ElevationFacet.class, elevationFacet);
+        testRegion.setRegionFacet(DensityFacet.class, densityFacet);
+        testRegion.setRegionFacet(SurfacesFacet.class, surfacesFacet);
+        testRegion.setRegionFacet(SeaLevelFacet.class, seaLevelFacet);
+        testRegion.setRegionFacet(CaveFacet.class, caveFacet);
+        return testRegion;
+    }
+
+    /**
+     * @return a region of the size of a chunk, starting at the given position
+     */
+    static BlockRegion createChunkRegion(int minX, int minY, int minZ) {
+        return new BlockRegion(minX, minY, minZ, minX + 31, minY + 63, minZ + 31);
+    }
+
+    void setBorder(Class<? extends WorldFacet> type, Border3D border) {
+        borders.put(type, border);
+    }
+
+    @Override
+    public BlockRegion getRegion() {
+        return region;
+    }
+
+    @Override
+    public <T extends WorldFacet> T getRegionFacet(Class<T> type) {
+        return type.cast(facets.get(type));
+    }
+
+    @Override
+    public <T extends WorldFacet> T getFacet(Class<T> type) {
+        return getRegionFacet(type);
+    }
+
+    @Override
+    public <T extends WorldFacet> void setRegionFacet(Class<T> type, T facet) {
+        facets.put(type, facet);
+    }
+
+    @Override
+    public Border3D getBorderForFacet(Class<? extends WorldFacet> type) {
+        return borders.getOrDefault(type, new Border3D(0, 0, 0));
+    }
+}